@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A stream copy with a buffer allocated for every call, as the copy loops used to do, against the same copy with a
+ * buffer from the {@link BufferPool#SHARED shared pool}. Run with the gc profiler, {@literal gc.alloc.rate.norm}
+ * shows the bytes allocated per copy; several threads share the pool, as request threads do.
+ *
+ * @author jfk
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class BufferPoolBenchmark {
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // discarded
+        }
+
+        @Override
+        public void write(final int b) {
+            // discarded
+        }
+    };
+
+    private static void copy(final InputStream in, final byte[] buffer) throws IOException {
+        for (;;) {
+            final int read = in.read(buffer);
+
+            if (read == -1) {
+                return;
+            }
+
+            NULL.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * The size of the payload in bytes.
+     */
+    @Param({ "1024", "1048576" })
+    public int size;
+
+    private ByteBuffer payload;
+
+    /**
+     * Copy with a freshly allocated buffer.
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void copyAllocated() throws IOException {
+        copy(new BufferInputStream(payload.duplicate()), new byte[BufferPool.BUFFER_SIZE]);
+    }
+
+    /**
+     * Copy with a pooled buffer.
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void copyPooled() throws IOException {
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        try {
+            copy(new BufferInputStream(payload.duplicate()), buffer);
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    /**
+     * Create the payload.
+     */
+    @Setup
+    public void setUp() {
+        payload = ByteBuffer.wrap(new byte[size]).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-request work of {@link CachingRESTProxy} that does not involve the network: building cache keys, parsing
+ * cookies and looking up entries. Entries are fetched through a real proxy from a {@link StaticWebContentServer} once
+ * before the benchmarks run. A warm lookup finds a memoized entry, a cold one looks for an entry that is not on disk.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachingRESTProxyBenchmark {
+    private static final String WARM = "/data.json?id=1";
+    private static final String COLD = "/data.json?id=missing";
+
+    private File base;
+    private StaticWebContentServer backend;
+    private CachingRESTProxy proxy;
+    private HttpServletRequest request;
+    private Properties cookies;
+    private File warmDir;
+    private File coldDir;
+
+    /**
+     * @return the cache key of a request with a handful of parameters
+     * @throws IOException
+     */
+    @Benchmark
+    public String getQuery() throws IOException {
+        return proxy.getQuery("/search/books", request);
+    }
+
+    /**
+     * @return the entry of a memoized query
+     * @throws IOException
+     */
+    @Benchmark
+    public Object getCachedWarm() throws IOException {
+        return proxy.getCached(WARM, warmDir);
+    }
+
+    /**
+     * @return {@literal null}, since the query is not in the cache
+     * @throws IOException
+     */
+    @Benchmark
+    public Object getCachedCold() throws IOException {
+        return proxy.getCached(COLD, coldDir);
+    }
+
+    /**
+     * @return the cookies stored with an entry
+     */
+    @Benchmark
+    public Cookie[] getCookies() {
+        return proxy.getCookies(cookies);
+    }
+
+    /**
+     * @return a cookie with all attributes set
+     */
+    @Benchmark
+    public Cookie parseCookie() {
+        return CachingRESTProxy.parseCookie("e=f;Path=/jolira/test;Domain=jolira.com;Secure");
+    }
+
+    /**
+     * Start a backend and a proxy and fetch the warm entry into the cache.
+     * 
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        base = File.createTempFile("jo-", "-bench");
+        base.delete();
+
+        final File content = new File(base, "content");
+        final File cache = new File(base, "cache");
+
+        content.mkdirs();
+
+        final OutputStream out = new FileOutputStream(new File(content, "data.json"));
+
+        try {
+            out.write("{\"name\":\"jolira\",\"tools\":[\"testing\",\"proxy\",\"emulator\"]}".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        backend = new StaticWebContentServer();
+        backend.addMapping("/", content);
+        backend.start();
+        proxy = new CachingRESTProxy(false, backend.getName(), cache);
+        proxy.start();
+
+        final InputStream in = new URL("http", proxy.getHostName(), proxy.getPort(), WARM).openStream();
+
+        try {
+            while (in.read() != -1) {
+                // drain
+            }
+        } finally {
+            in.close();
+        }
+
+        final Map<String, String[]> params = new TreeMap<String, String[]>();
+
+        params.put("q", new String[] { "jolira testing tools" });
+        params.put("page", new String[] { "2" });
+        params.put("sort", new String[] { "relevance" });
+        params.put("filter", new String[] { "books", "ebooks" });
+        params.put("lang", new String[] { "en" });
+
+        request = Stubs.request(params);
+        cookies = new Properties();
+        cookies.setProperty(CachingRESTProxy.SET_COOKIE + ".0", "a=b");
+        cookies.setProperty(CachingRESTProxy.SET_COOKIE + ".1", "c=d");
+        cookies.setProperty(CachingRESTProxy.SET_COOKIE + ".2", "e=f;Path=/jolira/test;Domain=jolira.com;Secure");
+        cookies.setProperty(CachingRESTProxy.SET_COOKIE + ".3", "g=h");
+        warmDir = proxy.getDirectory(WARM);
+        coldDir = proxy.getDirectory(COLD);
+
+        if (proxy.getCached(WARM, warmDir) == null) {
+            throw new IllegalStateException(WARM + " was not cached");
+        }
+    }
+
+    /**
+     * Stop the servers and delete the cache.
+     * 
+     * @throws Exception
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        proxy.stop();
+        backend.stop();
+        Stubs.delete(base);
+    }
+}
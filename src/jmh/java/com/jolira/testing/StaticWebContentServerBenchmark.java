@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the directory of a target among many prefix mappings. The matching mapping has the shortest prefix, so
+ * every lookup has to look at all the others first.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaticWebContentServerBenchmark {
+    /**
+     * The number of mappings.
+     */
+    @Param({ "10", "1000" })
+    public int mappings;
+
+    private final StaticWebContentServer server = new StaticWebContentServer();
+
+    /**
+     * @return the file of a target that is only matched by the root mapping
+     */
+    @Benchmark
+    public File findMapping() {
+        return server.findMapping("/static/css/site.css");
+    }
+
+    /**
+     * Add the mappings.
+     */
+    @Setup
+    public void setUp() {
+        final File dir = new File(System.getProperty("java.io.tmpdir"));
+
+        for (int idx = 1; idx < mappings; idx++) {
+            server.addMapping("/mapped/" + idx, dir);
+        }
+
+        server.addMapping("/", dir);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal requests and responses for calling the request handling code of the emulators outside of a server.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+final class Stubs {
+    /**
+     * Discards everything written to it.
+     */
+    private static class NullOutputStream extends ServletOutputStream {
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // discarded
+        }
+
+        @Override
+        public void write(final int b) {
+            // discarded
+        }
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        }
+
+        if (type == long.class) {
+            return Long.valueOf(0);
+        }
+
+        return null;
+    }
+
+    static void delete(final File file) {
+        final File[] children = file.listFiles();
+
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * @param params
+     *            the parameters of the request
+     * @return a request that only knows its parameters
+     */
+    static HttpServletRequest request(final Map<String, String[]> params) {
+        return (HttpServletRequest) Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+
+                        if ("getParameterNames".equals(name)) {
+                            return Collections.enumeration(params.keySet());
+                        }
+
+                        if ("getParameterValues".equals(name)) {
+                            return params.get(args[0]);
+                        }
+
+                        if ("getParameterMap".equals(name)) {
+                            return params;
+                        }
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * @return a response that discards its headers and body
+     */
+    static HttpServletResponse response() {
+        final ServletOutputStream out = new NullOutputStream();
+
+        return (HttpServletResponse) Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getOutputStream".equals(method.getName())) {
+                            return out;
+                        }
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private Stubs() {
+        // nothing
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ways {@link WebServerEmulator} responds, for small and large payloads. The response discards the body, so the
+ * benchmarks measure the work done by the emulator itself rather than the network.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebServerEmulatorBenchmark {
+    /**
+     * The size of the payload in bytes.
+     */
+    @Param({ "1024", "1048576" })
+    public int size;
+
+    private final WebServerEmulator server = new WebServerEmulator() {
+        @Override
+        protected void handle(final String target, final HttpServletRequest request,
+                final HttpServletResponse response) {
+            // not started
+        }
+    };
+    private final HttpServletResponse response = Stubs.response();
+    private ByteBuffer buffer;
+    private File file;
+
+    /**
+     * Respond with a buffer held in memory.
+     * 
+     * @throws IOException
+     */
+    @Benchmark
+    public void respondBuffer() throws IOException {
+        server.respond("application/octet-stream", response, buffer);
+    }
+
+    /**
+     * Respond with a file.
+     * 
+     * @throws IOException
+     */
+    @Benchmark
+    public void respondFile() throws IOException {
+        server.respond("application/octet-stream", response, file);
+    }
+
+    /**
+     * Respond with the content of a stream.
+     * 
+     * @throws IOException
+     */
+    @Benchmark
+    public void respondStream() throws IOException {
+        final InputStream in = new BufferInputStream(buffer.duplicate());
+
+        try {
+            server.respond(response, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Create the payload.
+     * 
+     * @throws IOException
+     */
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] content = new byte[size];
+
+        for (int idx = 0; idx < size; idx++) {
+            content[idx] = (byte) ('a' + idx % 26);
+        }
+
+        buffer = ByteBuffer.wrap(content);
+        file = File.createTempFile("jo-", "-bench");
+
+        final OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Delete the payload.
+     */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+}
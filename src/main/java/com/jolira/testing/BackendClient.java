@@ -0,0 +1,942 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * The client used by {@link CachingRESTProxy} to talk to its backend. It keeps a bounded pool of persistent HTTP/1.1
+ * connections per backend, applies connect, read and total timeouts to every fetch and caps the number of fetches that
+ * may be in flight at any one time. Fetches that cannot get a slot within the queue timeout are shed with a
+ * {@link SaturatedException}, so a slow backend cannot tie up every server thread.
+ * <p>
+ * Fetches are either blocking, returning a {@link Response} whose body is streamed while it is being received, or
+ * asynchronous, reporting their progress to a {@link Listener}.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class BackendClient {
+    /**
+     * Receives the events of an asynchronous fetch. All methods are called by the threads of the client, never by the
+     * thread that started the fetch.
+     */
+    interface Listener {
+        /**
+         * Called after all the content has been received.
+         */
+        void onComplete() throws IOException;
+
+        /**
+         * Called for every chunk of content received.
+         */
+        void onContent(Buffer content) throws IOException;
+
+        /**
+         * Called if the fetch failed, timed out or was cancelled. No other method is called after this one.
+         */
+        void onFailure(Throwable cause);
+
+        /**
+         * Called once the status line and all headers have been received; the body of the response is {@literal null}.
+         */
+        void onHeaders(Response response) throws IOException;
+    }
+
+    /**
+     * The response of the backend.
+     */
+    static class Response {
+        private final int status;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+
+        Response(final int status, final Map<String, List<String>> headers, final InputStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        InputStream getBody() {
+            return body;
+        }
+
+        String getHeader(final String name) {
+            final List<String> values = headers.get(name);
+
+            return values == null ? null : values.get(0);
+        }
+
+        /**
+         * @return all the values of a header or {@literal null}
+         */
+        List<String> getHeaders(final String name) {
+            return headers.get(name);
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Thrown if a fetch was shed because too many fetches were in flight.
+     */
+    static class SaturatedException extends IOException {
+        private static final long serialVersionUID = 7153245212553180851L;
+
+        SaturatedException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the chunks queued by a {@link StreamingListener}, returning each chunk to the {@link BufferPool} once it
+     * has been read.
+     */
+    private class BodyStream extends InputStream {
+        private final Exchange exchange;
+        private final StreamingListener listener;
+        private ByteBuffer chunk = null;
+        private boolean eof = false;
+
+        BodyStream(final Exchange exchange, final StreamingListener listener) {
+            this.exchange = exchange;
+            this.listener = listener;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (!eof) {
+                eof = true;
+                release(chunk);
+                chunk = null;
+                abandon(exchange, listener);
+            }
+        }
+
+        private boolean next() throws IOException {
+            while (!eof && (chunk == null || !chunk.hasRemaining())) {
+                release(chunk);
+
+                try {
+                    chunk = listener.chunks.poll(readTimeout, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    chunk = null;
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+
+                if (chunk == null) {
+                    close();
+                    throw new SocketTimeoutException("no data from backend within " + readTimeout + "ms");
+                }
+
+                if (chunk == EOF) {
+                    eof = true;
+
+                    final Throwable failure = listener.failure;
+
+                    if (failure != null) {
+                        throw toIOException(failure);
+                    }
+                }
+            }
+
+            return !eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) {
+                return -1;
+            }
+
+            return chunk.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!next()) {
+                return -1;
+            }
+
+            final int count = Math.min(len, chunk.remaining());
+
+            chunk.get(b, off, count);
+
+            return count;
+        }
+    }
+
+    /**
+     * An exchange that reports its progress to a {@link Listener} and the health of its backend to the pool.
+     */
+    private class Exchange extends HttpExchange {
+        private final Listener listener;
+        private final BackendPool.Node node;
+        private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+                String.CASE_INSENSITIVE_ORDER);
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final long started = System.nanoTime();
+        private volatile boolean abandoned = false;
+        private int status = 0;
+
+        Exchange(final Listener listener, final BackendPool.Node node) {
+            this.listener = listener;
+            this.node = node;
+        }
+
+        private void abort(final IOException e) {
+            cancel();
+            fail(e);
+        }
+
+        /**
+         * Cancel an exchange whose response is no longer wanted. This is not held against the backend.
+         */
+        void abandon() {
+            abandoned = true;
+            cancel();
+            release();
+        }
+
+        /**
+         * Record a fetch that failed because of the backend, such as a refused connection or a timeout.
+         */
+        void backendFailed() {
+            if (node != null && !abandoned) {
+                node.failed();
+            }
+        }
+
+        private void fail(final Throwable cause) {
+            release();
+
+            if (failed.compareAndSet(false, true)) {
+                listener.onFailure(cause);
+            }
+        }
+
+        @Override
+        protected void onConnectionFailed(final Throwable ex) {
+            backendFailed();
+            fail(ex);
+        }
+
+        @Override
+        protected void onException(final Throwable ex) {
+            backendFailed();
+            fail(ex);
+        }
+
+        @Override
+        protected void onExpire() {
+            backendFailed();
+            fail(new SocketTimeoutException("backend did not respond within " + timeout + "ms"));
+        }
+
+        @Override
+        protected void onResponseComplete() throws IOException {
+            release();
+
+            if (failed.get()) {
+                return;
+            }
+
+            fetchTimes.record(System.nanoTime() - started);
+
+            if (node != null) {
+                if (status >= 500) {
+                    node.failed();
+                } else {
+                    node.succeeded();
+                }
+            }
+
+            try {
+                listener.onComplete();
+            } catch (final IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        protected void onResponseContent(final Buffer content) throws IOException {
+            if (failed.get()) {
+                return;
+            }
+
+            try {
+                listener.onContent(content);
+            } catch (final IOException e) {
+                abort(e);
+            }
+        }
+
+        @Override
+        protected void onResponseHeader(final Buffer name, final Buffer value) throws IOException {
+            final String _name = name.toString();
+            List<String> values = headers.get(_name);
+
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(_name, values);
+            }
+
+            values.add(value.toString());
+        }
+
+        @Override
+        protected void onResponseHeaderComplete() throws IOException {
+            final Map<String, List<String>> _headers = Collections.unmodifiableMap(headers);
+
+            try {
+                listener.onHeaders(new Response(status, _headers, null));
+            } catch (final IOException e) {
+                abort(e);
+            }
+        }
+
+        @Override
+        protected void onResponseStatus(final Buffer version, final int _status, final Buffer reason)
+                throws IOException {
+            status = _status;
+            headers.clear(); // a redirect may have been followed
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+
+                if (node != null) {
+                    node.finished();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the body to the waiting request thread through a bounded queue of chunks. The content received from the
+     * backend is copied into buffers taken from the {@link BufferPool}, which go back to the pool once they have been
+     * read or the body has been abandoned.
+     */
+    private static class StreamingListener implements Listener {
+        private final CountDownLatch headersComplete = new CountDownLatch(1);
+        private final Semaphore signal;
+        private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(MAX_QUEUED_CHUNKS);
+        private volatile Response response = null;
+        private volatile Throwable failure = null;
+        private volatile boolean abandoned = false;
+
+        /**
+         * @param signal
+         *            released once the headers have been received or the fetch failed, so a hedged fetch can wait for
+         *            the first of several listeners; may be {@literal null}
+         */
+        StreamingListener(final Semaphore signal) {
+            this.signal = signal;
+        }
+
+        /**
+         * Return the chunks nobody is going to read to the pool.
+         */
+        void drain() {
+            for (ByteBuffer chunk; (chunk = chunks.poll()) != null;) {
+                release(chunk);
+            }
+        }
+
+        private void offer(final ByteBuffer chunk) throws InterruptedIOException {
+            try {
+                while (!abandoned) {
+                    if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                release(chunk);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            release(chunk);
+        }
+
+        @Override
+        public void onComplete() throws IOException {
+            offer(EOF);
+        }
+
+        @Override
+        public void onContent(final Buffer content) throws IOException {
+            final int length = content.length();
+
+            for (int offset = 0; offset < length;) {
+                final byte[] buffer = BufferPool.SHARED.acquire();
+                final int count = content.peek(content.getIndex() + offset, buffer, 0,
+                        Math.min(buffer.length, length - offset));
+
+                offer(ByteBuffer.wrap(buffer, 0, count));
+                offset += count;
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            failure = cause;
+            headersComplete.countDown();
+            drain();
+            chunks.offer(EOF);
+
+            if (signal != null) {
+                signal.release();
+            }
+        }
+
+        @Override
+        public void onHeaders(final Response _response) {
+            response = _response;
+            headersComplete.countDown();
+
+            if (signal != null) {
+                signal.release();
+            }
+        }
+    }
+
+    static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    static final long DEFAULT_READ_TIMEOUT = 30000;
+    static final long DEFAULT_TIMEOUT = 60000;
+    static final int DEFAULT_MAX_CONNECTIONS = 32;
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+    private static final int MAX_QUEUED_CHUNKS = 16;
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private static void abandon(final Exchange exchange, final StreamingListener listener) {
+        if (exchange != null) {
+            listener.abandoned = true;
+            exchange.abandon();
+            listener.drain();
+        }
+    }
+
+    /**
+     * Return the buffer of a chunk to the pool.
+     */
+    private static void release(final ByteBuffer chunk) {
+        if (chunk != null && chunk != EOF) {
+            BufferPool.SHARED.release(chunk.array());
+        }
+    }
+
+    static IOException toIOException(final Throwable failure) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+
+        final IOException e = new IOException(failure.getMessage());
+
+        e.initCause(failure);
+
+        return e;
+    }
+
+    private final boolean ssl;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+    private long timeout = DEFAULT_TIMEOUT;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private Semaphore permits = null;
+    private HttpClient client = null;
+    private final LatencyHistogram fetchTimes = new LatencyHistogram();
+
+    /**
+     * @param ssl
+     *            {@literal true} to talk to the backend using https
+     */
+    public BackendClient(final boolean ssl) {
+        this.ssl = ssl;
+    }
+
+    private void acquire(final long wait) throws IOException {
+        try {
+            if (!permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                throw new SaturatedException(maxInFlight + " backend fetches in flight");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Fetch a resource from the backend. Blocks until the status line and all headers have been received.
+     * 
+     * @param server
+     *            the backend as {@literal host:port}
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @return the response
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the backend could not be reached or did not respond in time
+     */
+    Response fetch(final String server, final String uri, final Map<String, String> requestHeaders)
+            throws IOException {
+        return fetch(server, uri, requestHeaders, (RequestBody) null);
+    }
+
+    /**
+     * Fetch a resource from the backend, sending a request body. Blocks until the status line and all headers have
+     * been received.
+     * 
+     * @param server
+     *            the backend as {@literal host:port}
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @param body
+     *            the body to send using the method of the body or {@literal null} to send a {@literal GET}
+     * @return the response
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the backend could not be reached or did not respond in time
+     */
+    Response fetch(final String server, final String uri, final Map<String, String> requestHeaders,
+            final RequestBody body) throws IOException {
+        return fetch(server, null, uri, requestHeaders, body);
+    }
+
+    /**
+     * Fetch a resource from one of the backends of a pool. Blocks until the status line and all headers have been
+     * received. If the pool hedges fetches and the backend has not responded in time, a second fetch is sent to
+     * another backend and the first response received is returned.
+     * 
+     * @param pool
+     *            the backends
+     * @param key
+     *            the cache key of the resource, used to select the backend
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @param body
+     *            the body to send using the method of the body or {@literal null} to send a {@literal GET}; fetches
+     *            with a body are never hedged
+     * @return the response
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the backend could not be reached or did not respond in time
+     */
+    Response fetch(final BackendPool pool, final String key, final String uri,
+            final Map<String, String> requestHeaders, final RequestBody body) throws IOException {
+        final long hedgeDelay = body == null ? pool.getHedgeDelay(fetchTimes) : -1;
+
+        if (hedgeDelay < 0) {
+            final BackendPool.Node node = pool.select(key, null);
+
+            return fetch(node.server, node, uri, requestHeaders, body);
+        }
+
+        return fetchHedged(pool, key, uri, requestHeaders, hedgeDelay);
+    }
+
+    /**
+     * Fetch a resource from the backend without blocking, selecting the backend from a pool. Asynchronous fetches are
+     * never hedged.
+     * 
+     * @param pool
+     *            the backends
+     * @param key
+     *            the cache key of the resource, used to select the backend
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @param body
+     *            the body to send using the method of the body or {@literal null} to send a {@literal GET}
+     * @param listener
+     *            the listener to be notified as the response arrives
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the fetch could not be started
+     */
+    void fetch(final BackendPool pool, final String key, final String uri, final Map<String, String> requestHeaders,
+            final RequestBody body, final Listener listener) throws IOException {
+        final BackendPool.Node node = pool.select(key, null);
+
+        send(node.server, node, uri, requestHeaders, body, listener, 0);
+    }
+
+    private Response fetch(final String server, final BackendPool.Node node, final String uri,
+            final Map<String, String> requestHeaders, final RequestBody body) throws IOException {
+        final StreamingListener listener = new StreamingListener(null);
+        final Exchange exchange = send(server, node, uri, requestHeaders, body, listener, queueTimeout);
+
+        try {
+            if (!listener.headersComplete.await(timeout, TimeUnit.MILLISECONDS)) {
+                exchange.backendFailed();
+                exchange.abandon();
+                throw new SocketTimeoutException("no response from " + server + " within " + timeout + "ms");
+            }
+        } catch (final InterruptedException e) {
+            exchange.abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        final Throwable failure = listener.failure;
+
+        if (failure != null) {
+            throw toIOException(failure);
+        }
+
+        final Response response = listener.response;
+
+        return new Response(response.status, response.headers, new BodyStream(exchange, listener));
+    }
+
+    /**
+     * Fetch a resource from the backend without blocking. Unlike the blocking variant, fetches are shed immediately if
+     * too many fetches are in flight.
+     * 
+     * @param server
+     *            the backend as {@literal host:port}
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @param listener
+     *            the listener to be notified as the response arrives
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the fetch could not be started
+     */
+    void fetch(final String server, final String uri, final Map<String, String> requestHeaders,
+            final Listener listener) throws IOException {
+        fetch(server, uri, requestHeaders, null, listener);
+    }
+
+    /**
+     * Fetch a resource from the backend without blocking, sending a request body.
+     * 
+     * @param server
+     *            the backend as {@literal host:port}
+     * @param uri
+     *            the path and query to fetch
+     * @param requestHeaders
+     *            additional headers to send
+     * @param body
+     *            the body to send using the method of the body or {@literal null} to send a {@literal GET}
+     * @param listener
+     *            the listener to be notified as the response arrives
+     * @throws SaturatedException
+     *             too many fetches are in flight
+     * @throws IOException
+     *             the fetch could not be started
+     */
+    void fetch(final String server, final String uri, final Map<String, String> requestHeaders,
+            final RequestBody body, final Listener listener) throws IOException {
+        send(server, null, uri, requestHeaders, body, listener, 0);
+    }
+
+    /**
+     * Send a {@literal GET} to a backend and, if it has not responded within the hedge delay, a second one to another
+     * backend. The first response wins and the other fetch is abandoned; a failure is only reported once both fetches
+     * have failed. The hedge is only sent if a slot is free right away, so hedging never adds to an overload.
+     */
+    private Response fetchHedged(final BackendPool pool, final String key, final String uri,
+            final Map<String, String> requestHeaders, final long hedgeDelay) throws IOException {
+        final Semaphore signal = new Semaphore(0);
+        final BackendPool.Node first = pool.select(key, null);
+        final StreamingListener[] listeners = { new StreamingListener(signal), new StreamingListener(signal) };
+        final Exchange[] exchanges = new Exchange[2];
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        exchanges[0] = send(first.server, first, uri, requestHeaders, null, listeners[0], queueTimeout);
+
+        try {
+            if (signal.tryAcquire(hedgeDelay, TimeUnit.MICROSECONDS)) {
+                signal.release(); // answered in time; the loop below picks it up
+            } else {
+                final BackendPool.Node second = pool.select(key, first);
+
+                if (second != null) {
+                    try {
+                        exchanges[1] = send(second.server, second, uri, requestHeaders, null, listeners[1], 0);
+                        pool.recordHedge();
+                    } catch (final SaturatedException e) {
+                        // no spare slot; wait for the first fetch only
+                    }
+                }
+            }
+
+            for (;;) {
+                if (!signal.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    for (int idx = 0; idx < exchanges.length; idx++) {
+                        if (exchanges[idx] != null) {
+                            exchanges[idx].backendFailed();
+                        }
+
+                        abandon(exchanges[idx], listeners[idx]);
+                    }
+
+                    throw new SocketTimeoutException("no response from " + first.server + " within " + timeout
+                            + "ms");
+                }
+
+                Throwable failure = null;
+                boolean pending = false;
+
+                for (int idx = 0; idx < exchanges.length; idx++) {
+                    if (exchanges[idx] == null) {
+                        continue;
+                    }
+
+                    final Response response = listeners[idx].response;
+
+                    if (response != null) {
+                        abandon(exchanges[1 - idx], listeners[1 - idx]);
+
+                        return new Response(response.status, response.headers, new BodyStream(exchanges[idx],
+                                listeners[idx]));
+                    }
+
+                    if (listeners[idx].failure == null) {
+                        pending = true;
+                    } else if (failure == null) {
+                        failure = listeners[idx].failure;
+                    }
+                }
+
+                if (!pending) {
+                    throw toIOException(failure);
+                }
+            }
+        } catch (final InterruptedException e) {
+            abandon(exchanges[0], listeners[0]);
+            abandon(exchanges[1], listeners[1]);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @return the time taken by the fetches that completed, from sending the request to receiving the last byte
+     */
+    LatencyHistogram getFetchTimes() {
+        return fetchTimes;
+    }
+
+    /**
+     * @return the number of fetches currently in flight
+     */
+    public int getInFlight() {
+        final Semaphore _permits = permits;
+
+        return _permits == null ? 0 : maxInFlight - _permits.availablePermits();
+    }
+
+    /**
+     * @return the total timeout of a fetch in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return {@literal true} if the client has been started
+     */
+    public boolean isStarted() {
+        return client != null;
+    }
+
+    private Exchange send(final String server, final BackendPool.Node node, final String uri,
+            final Map<String, String> requestHeaders, final RequestBody body, final Listener listener,
+            final long wait) throws IOException {
+        if (client == null) {
+            throw new IllegalStateException("backend client not started");
+        }
+
+        acquire(wait);
+
+        final Exchange exchange = new Exchange(listener, node);
+        boolean sent = false;
+
+        try {
+            if (node != null) {
+                node.started();
+            }
+
+            final String protocol = ssl ? "https" : "http";
+
+            exchange.setURL(protocol + "://" + server + uri);
+
+            for (final Entry<String, String> header : requestHeaders.entrySet()) {
+                exchange.setRequestHeader(header.getKey(), header.getValue());
+            }
+
+            if (body != null) {
+                final byte[] content = body.getContent();
+
+                exchange.setMethod(body.getMethod());
+                exchange.setRequestHeader("Content-Length", Long.toString(body.getLength()));
+
+                if (content != null) {
+                    exchange.setRequestContent(new ByteArrayBuffer(content));
+                } else {
+                    exchange.setRequestContentSource(body.open()); // streamed from the spooled file
+                }
+            }
+
+            client.send(exchange);
+            sent = true;
+        } finally {
+            if (!sent) {
+                exchange.release(); // whatever went wrong, the permit and the backend's count must not leak
+            }
+        }
+
+        return exchange;
+    }
+
+    /**
+     * @param connectTimeout
+     *            the maximum time to establish a connection in milliseconds
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param maxConnections
+     *            the maximum number of persistent connections per backend
+     */
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxInFlight
+     *            the maximum number of fetches in flight across all backends
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param queueTimeout
+     *            the maximum time a blocking fetch waits for a slot if {@link #setMaxInFlight(int)} fetches are already
+     *            in flight; {@literal 0} sheds excess fetches immediately
+     */
+    public void setQueueTimeout(final long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @param readTimeout
+     *            the maximum time to wait for more data from the backend in milliseconds
+     */
+    public void setReadTimeout(final long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param timeout
+     *            the maximum time for the complete fetch in milliseconds
+     */
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Start the client. Settings have to be made before the client is started.
+     * 
+     * @throws Exception
+     *             the client could not be started
+     */
+    public synchronized void start() throws Exception {
+        if (client != null) {
+            throw new IllegalStateException();
+        }
+
+        final HttpClient _client = new HttpClient();
+        final QueuedThreadPool pool = new QueuedThreadPool();
+
+        pool.setName("backend");
+        pool.setDaemon(true);
+        _client.setThreadPool(pool);
+        _client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        _client.setMaxConnectionsPerAddress(maxConnections);
+        _client.setConnectTimeout(connectTimeout);
+        _client.setIdleTimeout(readTimeout);
+        _client.setTimeout(timeout);
+        _client.registerListener("org.eclipse.jetty.client.RedirectListener");
+        _client.start();
+
+        permits = new Semaphore(maxInFlight);
+        client = _client;
+    }
+
+    /**
+     * Stop the client and close all pooled connections.
+     * 
+     * @throws Exception
+     *             the client could not be stopped
+     */
+    public synchronized void stop() throws Exception {
+        if (client == null) {
+            return;
+        }
+
+        client.stop();
+        client = null;
+    }
+}
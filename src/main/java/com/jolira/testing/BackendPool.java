@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The backends a {@link CachingRESTProxy} fetches missing entries from. Every fetch is sent to one backend, selected
+ * by one of the following policies:
+ * <ul>
+ * <li>{@link Policy#LEAST_OUTSTANDING} picks the backend with the fewest fetches in flight relative to its weight,</li>
+ * <li>{@link Policy#ROUND_ROBIN} cycles through the backends in proportion to their weights,</li>
+ * <li>{@link Policy#CONSISTENT_HASH} maps the cache key onto a hash ring, so a key is always fetched from the same
+ * backend while that backend is healthy.</li>
+ * </ul>
+ * Backends are ejected passively: a backend that fails a number of fetches in a row (connection failures, timeouts or
+ * {@literal 5xx} responses) is skipped for a while. If all backends are ejected, they are used anyway.
+ * <p>
+ * Optionally, fetches are hedged: if a fetch has not been answered within a percentile of the recent fetch times, a
+ * second fetch is sent to another backend and whichever answers first is used. Selection only takes a few atomic
+ * operations and never locks.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class BackendPool {
+    /**
+     * The policy used to select a backend.
+     */
+    public enum Policy {
+        /**
+         * The backend with the fewest fetches in flight relative to its weight.
+         */
+        LEAST_OUTSTANDING,
+
+        /**
+         * Weighted round-robin.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Consistent hashing on the cache key.
+         */
+        CONSISTENT_HASH
+    }
+
+    /**
+     * A single backend and its state.
+     */
+    class Node {
+        final String server;
+        final int weight;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong fetches = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile long ejectedUntil = 0;
+
+        Node(final String server, final int weight) {
+            this.server = server;
+            this.weight = weight;
+        }
+
+        void failed() {
+            failures.incrementAndGet();
+
+            if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+                consecutiveFailures.set(0);
+                ejectedUntil = System.currentTimeMillis() + ejectTime;
+                ejections.incrementAndGet();
+            }
+        }
+
+        void finished() {
+            outstanding.decrementAndGet();
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        boolean isAvailable(final long now) {
+            return ejectedUntil <= now;
+        }
+
+        void started() {
+            fetches.incrementAndGet();
+            outstanding.incrementAndGet();
+        }
+
+        void succeeded() {
+            consecutiveFailures.set(0);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+
+            builder.append(server);
+            builder.append(" [weight=");
+            builder.append(weight);
+            builder.append(", outstanding=");
+            builder.append(outstanding.get());
+            builder.append(", fetches=");
+            builder.append(fetches.get());
+            builder.append(", failures=");
+            builder.append(failures.get());
+            builder.append(", ejected=");
+            builder.append(!isAvailable(System.currentTimeMillis()));
+            builder.append(']');
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The default number of failed fetches in a row that eject a backend.
+     */
+    public static final int DEFAULT_MAX_FAILURES = 5;
+
+    /**
+     * The default time an ejected backend is skipped for, in milliseconds.
+     */
+    public static final long DEFAULT_EJECT_TIME = 10000;
+
+    private static final int VIRTUAL_NODES = 100;
+    private static final long MIN_HEDGE_SAMPLES = 100;
+
+    /**
+     * Parse a list of backends, such as {@literal host1:8080,host2:8080=2}. A backend may be followed by a weight;
+     * backends without one have a weight of {@literal 1}.
+     * 
+     * @param servers
+     *            the comma-separated backends
+     * @return the pool
+     */
+    public static BackendPool parse(final String servers) {
+        final List<String> names = new ArrayList<String>();
+        final List<Integer> weights = new ArrayList<Integer>();
+
+        for (final String server : servers.split("\\s*,\\s*")) {
+            if (server.isEmpty()) {
+                continue;
+            }
+
+            final int eq = server.indexOf('=');
+
+            names.add(eq == -1 ? server : server.substring(0, eq));
+            weights.add(Integer.valueOf(eq == -1 ? "1" : server.substring(eq + 1)));
+        }
+
+        final int size = names.size();
+        final String[] _names = names.toArray(new String[size]);
+        final int[] _weights = new int[size];
+
+        for (int idx = 0; idx < size; idx++) {
+            _weights[idx] = weights.get(idx).intValue();
+        }
+
+        return new BackendPool(_names, _weights);
+    }
+
+    private final Node[] nodes;
+    private final Node[] schedule;
+    private final long[] ring;
+    private final Node[] ringNodes;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private Policy policy = Policy.LEAST_OUTSTANDING;
+    private int maxFailures = DEFAULT_MAX_FAILURES;
+    private long ejectTime = DEFAULT_EJECT_TIME;
+    private double hedgePercentile = 0;
+
+    /**
+     * @param servers
+     *            the backends as {@literal host:port}
+     * @param weights
+     *            the weights of the backends
+     */
+    public BackendPool(final String[] servers, final int[] weights) {
+        if (servers.length == 0 || servers.length != weights.length) {
+            throw new IllegalArgumentException("one weight per backend required: " + Arrays.toString(servers));
+        }
+
+        nodes = new Node[servers.length];
+
+        int totalWeight = 0;
+
+        for (int idx = 0; idx < servers.length; idx++) {
+            if (weights[idx] <= 0) {
+                throw new IllegalArgumentException("weight of " + servers[idx] + " must be positive: " + weights[idx]);
+            }
+
+            nodes[idx] = new Node(servers[idx], weights[idx]);
+            totalWeight += weights[idx];
+        }
+
+        schedule = createSchedule(totalWeight);
+        ring = new long[totalWeight * VIRTUAL_NODES];
+        ringNodes = new Node[ring.length];
+        createRing();
+    }
+
+    /**
+     * Place the virtual nodes of every backend on the hash ring, sorted by their position.
+     */
+    private void createRing() {
+        final long[] positions = new long[ring.length];
+        final Node[] owners = new Node[ring.length];
+        int count = 0;
+
+        for (final Node node : nodes) {
+            for (int idx = 0; idx < node.weight * VIRTUAL_NODES; idx++) {
+                positions[count] = QueryHash.hash128(node.server + '#' + idx)[0];
+                owners[count++] = node;
+            }
+        }
+
+        final Integer[] order = new Integer[count];
+
+        for (int idx = 0; idx < count; idx++) {
+            order[idx] = Integer.valueOf(idx);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                final long p1 = positions[i1.intValue()];
+                final long p2 = positions[i2.intValue()];
+
+                return p1 < p2 ? -1 : p1 == p2 ? 0 : 1;
+            }
+        });
+
+        for (int idx = 0; idx < count; idx++) {
+            ring[idx] = positions[order[idx].intValue()];
+            ringNodes[idx] = owners[order[idx].intValue()];
+        }
+    }
+
+    /**
+     * Spread the backends over a cycle in proportion to their weights, interleaving them as evenly as possible (smooth
+     * weighted round-robin). The cycle is computed once, so selecting a backend only takes an atomic increment.
+     */
+    private Node[] createSchedule(final int totalWeight) {
+        final Node[] _schedule = new Node[totalWeight];
+        final int[] current = new int[nodes.length];
+
+        for (int slot = 0; slot < totalWeight; slot++) {
+            int best = 0;
+
+            for (int idx = 0; idx < nodes.length; idx++) {
+                current[idx] += nodes[idx].weight;
+
+                if (current[idx] > current[best]) {
+                    best = idx;
+                }
+            }
+
+            current[best] -= totalWeight;
+            _schedule[slot] = nodes[best];
+        }
+
+        return _schedule;
+    }
+
+    /**
+     * @return the number of backends ejected so far
+     */
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    /**
+     * @param fetchTimes
+     *            the times of recent fetches
+     * @return the time after which a fetch is hedged in microseconds or {@literal -1}, if it is not to be hedged
+     */
+    long getHedgeDelay(final LatencyHistogram fetchTimes) {
+        if (hedgePercentile <= 0 || nodes.length < 2 || fetchTimes.getCount() < MIN_HEDGE_SAMPLES) {
+            return -1;
+        }
+
+        return Math.max(1, fetchTimes.getPercentile(hedgePercentile));
+    }
+
+    /**
+     * @return the number of hedged fetches sent so far
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    Node[] getNodes() {
+        return nodes;
+    }
+
+    void recordHedge() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * Select the backend for a fetch.
+     * 
+     * @param key
+     *            the cache key of the entry to fetch
+     * @param excluded
+     *            a backend not to select, such as the backend of a fetch that is being hedged, or {@literal null}
+     * @return the backend or {@literal null}, if there is no backend other than the excluded one
+     */
+    Node select(final String key, final Node excluded) {
+        final long now = System.currentTimeMillis();
+        final Node available = select(key, excluded, now, true);
+
+        return available != null ? available : select(key, excluded, now, false);
+    }
+
+    private Node select(final String key, final Node excluded, final long now, final boolean healthy) {
+        switch (policy) {
+        case ROUND_ROBIN:
+            return selectRoundRobin(excluded, now, healthy);
+        case CONSISTENT_HASH:
+            return selectConsistentHash(key, excluded, now, healthy);
+        default:
+            return selectLeastOutstanding(excluded, now, healthy);
+        }
+    }
+
+    private Node selectConsistentHash(final String key, final Node excluded, final long now, final boolean healthy) {
+        final int idx = Arrays.binarySearch(ring, QueryHash.hash128(key)[0]);
+        final int start = idx >= 0 ? idx : -idx - 1;
+
+        for (int offset = 0; offset < ring.length; offset++) {
+            final Node node = ringNodes[(start + offset) % ring.length];
+
+            if (node != excluded && (!healthy || node.isAvailable(now))) {
+                return node;
+            }
+        }
+
+        return null;
+    }
+
+    private Node selectLeastOutstanding(final Node excluded, final long now, final boolean healthy) {
+        final int start = (int) (next.getAndIncrement() % nodes.length); // spreads ties
+        Node best = null;
+
+        for (int offset = 0; offset < nodes.length; offset++) {
+            final Node node = nodes[(start + offset) % nodes.length];
+
+            if (node == excluded || healthy && !node.isAvailable(now)) {
+                continue;
+            }
+
+            if (best == null
+                    || (long) node.getOutstanding() * best.weight < (long) best.getOutstanding() * node.weight) {
+                best = node;
+            }
+        }
+
+        return best;
+    }
+
+    private Node selectRoundRobin(final Node excluded, final long now, final boolean healthy) {
+        final long start = next.getAndIncrement();
+
+        for (int offset = 0; offset < schedule.length; offset++) {
+            final Node node = schedule[(int) ((start + offset) % schedule.length)];
+
+            if (node != excluded && (!healthy || node.isAvailable(now))) {
+                return node;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param maxFailures
+     *            the number of failed fetches in a row that eject a backend
+     * @param ejectTime
+     *            the time an ejected backend is skipped for, in milliseconds
+     */
+    public void setEjection(final int maxFailures, final long ejectTime) {
+        this.maxFailures = maxFailures;
+        this.ejectTime = ejectTime;
+    }
+
+    /**
+     * Hedge fetches that take longer than a percentile of the recent fetch times. Only blocking fetches without a
+     * request body are hedged; fetches are not hedged until enough fetch times have been recorded.
+     * 
+     * @param percentile
+     *            the percentile as a fraction, such as {@literal 0.95}, or {@literal 0} to not hedge fetches
+     */
+    public void setHedgePercentile(final double percentile) {
+        hedgePercentile = percentile;
+    }
+
+    /**
+     * @param policy
+     *            the policy used to select a backend
+     */
+    public void setPolicy(final Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("BackendPool [policy=");
+        builder.append(policy);
+        builder.append(", ejections=");
+        builder.append(getEjections());
+        builder.append(", hedges=");
+        builder.append(getHedges());
+        builder.append(", nodes=");
+        builder.append(Arrays.toString(nodes));
+        builder.append(']');
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over strings that can be added to concurrently without locking. The bit positions are derived from
+ * the two halves of a {@link QueryHash} using double hashing.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expected
+     *            the number of strings expected to be added
+     * @param fpp
+     *            the desired false positive probability once that many strings were added
+     */
+    BloomFilter(final long expected, final double fpp) {
+        final long n = Math.max(expected, 1);
+        final double ln2 = Math.log(2);
+        final long m = (long) Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+        final int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE);
+
+        bits = new AtomicLongArray(Math.max(words, 1));
+        bitCount = 64L * bits.length();
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / n * ln2));
+    }
+
+    /**
+     * Add a string.
+     * 
+     * @param value
+     *            the string
+     */
+    void add(final CharSequence value) {
+        final long[] hash = QueryHash.hash128(value);
+
+        for (int idx = 0; idx < hashCount; idx++) {
+            final long bit = position(hash, idx);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+
+            for (;;) {
+                final long current = bits.get(word);
+
+                if ((current & mask) != 0 || bits.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the bits of the filter
+     */
+    long getMemory() {
+        return bitCount / 8;
+    }
+
+    /**
+     * @return the number of hash functions
+     */
+    int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @param value
+     *            the string
+     * @return {@literal false} if the string was definitely never added
+     */
+    boolean mightContain(final CharSequence value) {
+        final long[] hash = QueryHash.hash128(value);
+
+        for (int idx = 0; idx < hashCount; idx++) {
+            final long bit = position(hash, idx);
+
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private long position(final long[] hash, final int idx) {
+        final long combined = hash[0] + idx * hash[1];
+
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a buffer, such as the body of an entry stored in a segment log or in memory.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class BufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer
+     *            the buffer to read; its position is advanced as it is read
+     */
+    BufferInputStream(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int off, final int len) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int _len = Math.min(len, buffer.remaining());
+
+        buffer.get(bytes, off, _len);
+
+        return _len;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of the scratch buffers used by the copy loops of this package, so copying a body does not allocate
+ * a fresh buffer for every request. Heap arrays and direct buffers are pooled separately; both are kept in a fixed
+ * number of slots that are claimed and refilled with compare-and-set, so the pool neither locks nor allocates. A
+ * thread starts looking at a slot derived from its id, which keeps concurrent threads apart. When the pool is empty a
+ * new buffer is allocated; when it is full a released buffer is left to the garbage collector.
+ *
+ * @author jfk
+ * @since 1.3
+ */
+class BufferPool {
+    /**
+     * The size of the pooled buffers in bytes.
+     */
+    static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The pool shared by all copy loops of the package. It keeps up to four buffers of each kind per processor.
+     */
+    static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 4 * Runtime.getRuntime().availableProcessors());
+
+    private static int start(final int length) {
+        return (int) (Thread.currentThread().getId() % length);
+    }
+
+    private static <T> T take(final AtomicReferenceArray<T> slots) {
+        final int length = slots.length();
+        final int start = start(length);
+
+        for (int idx = 0; idx < length; idx++) {
+            final int slot = (start + idx) % length;
+            final T item = slots.get(slot);
+
+            if (item != null && slots.compareAndSet(slot, item, null)) {
+                return item;
+            }
+        }
+
+        return null;
+    }
+
+    private static <T> boolean put(final AtomicReferenceArray<T> slots, final T item) {
+        final int length = slots.length();
+        final int start = start(length);
+
+        for (int idx = 0; idx < length; idx++) {
+            final int slot = (start + idx) % length;
+
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, item)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<byte[]> arrays;
+    private final AtomicReferenceArray<ByteBuffer> directs;
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param bufferSize
+     *            the size of the buffers in bytes
+     * @param capacity
+     *            the maximum number of buffers of each kind kept in the pool
+     */
+    BufferPool(final int bufferSize, final int capacity) {
+        this.bufferSize = bufferSize;
+        arrays = new AtomicReferenceArray<byte[]>(capacity);
+        directs = new AtomicReferenceArray<ByteBuffer>(capacity);
+    }
+
+    /**
+     * @return a heap buffer of {@link #getBufferSize()} bytes, which should be {@link #release(byte[]) released} once
+     *         it is no longer used
+     */
+    byte[] acquire() {
+        final byte[] buffer = take(arrays);
+
+        if (buffer != null) {
+            reused.incrementAndGet();
+            return buffer;
+        }
+
+        allocated.incrementAndGet();
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * @return a cleared direct buffer of {@link #getBufferSize()} bytes, which should be
+     *         {@link #release(ByteBuffer) released} once it is no longer used
+     */
+    ByteBuffer acquireDirect() {
+        final ByteBuffer buffer = take(directs);
+
+        if (buffer != null) {
+            reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        allocated.incrementAndGet();
+
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * @return the number of buffers allocated because the pool was empty
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return the size of the pooled buffers in bytes
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of released buffers that were discarded because the pool was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of buffers handed out from the pool
+     */
+    long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Return a heap buffer to the pool. The caller must not touch it afterwards.
+     *
+     * @param buffer
+     *            the buffer; {@literal null} and buffers of a different size are ignored
+     */
+    void release(final byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && !put(arrays, buffer)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return a direct buffer to the pool. The caller must not touch it afterwards.
+     *
+     * @param buffer
+     *            the buffer; {@literal null}, heap buffers and buffers of a different size are ignored
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize && !put(directs, buffer)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("BufferPool [bufferSize=");
+        builder.append(bufferSize);
+        builder.append(", capacity=");
+        builder.append(arrays.length());
+        builder.append(", reused=");
+        builder.append(reused);
+        builder.append(", allocated=");
+        builder.append(allocated);
+        builder.append(", dropped=");
+        builder.append(dropped);
+        builder.append("]");
+
+        return builder.toString();
+    }
+}
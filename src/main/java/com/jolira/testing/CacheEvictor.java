@@ -0,0 +1,466 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a cache directory tree written by {@link CachingRESTProxy} within a quota of bytes and entries. The size and
+ * the accesses of every entry are tracked in memory only, so a hit never writes to the file system; the tracking
+ * starts out from a scan of the directory tree that uses the modification time of each entry as its last access.
+ * <p>
+ * A background thread removes the coldest entries whenever the quota is exceeded, until the cache is back to
+ * {@value #LOW_WATERMARK_PERCENT}% of the quota, so eviction neither blocks request threads nor runs for every single
+ * write. Which entries are coldest depends on the {@link Policy}. Access counts are approximate and halved after every
+ * eviction run, so entries that used to be hot eventually become eligible for eviction under {@link Policy#LFU} too.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheEvictor {
+    /**
+     * The order in which entries are evicted.
+     */
+    public enum Policy {
+        /**
+         * Evict the least recently used entries first.
+         */
+        LRU,
+
+        /**
+         * Evict the least frequently used entries first, the least recently used ones among those used equally often.
+         */
+        LFU
+    }
+
+    /**
+     * The tracked size and accesses of an entry.
+     */
+    private static class Usage {
+        final File entry;
+        final boolean simple;
+        final long size;
+        volatile long lastAccess;
+        volatile int hits;
+
+        Usage(final File entry, final boolean simple, final long size, final long lastAccess, final int hits) {
+            this.entry = entry;
+            this.simple = simple;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * The percentage of the quota the cache is shrunk to once the quota is exceeded.
+     */
+    public static final int LOW_WATERMARK_PERCENT = 90;
+
+    /**
+     * The default interval in milliseconds in which the quota is checked.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    private static final Comparator<Usage> LRU_ORDER = new Comparator<Usage>() {
+        @Override
+        public int compare(final Usage usage1, final Usage usage2) {
+            return Long.compare(usage1.lastAccess, usage2.lastAccess);
+        }
+    };
+
+    private static final Comparator<Usage> LFU_ORDER = new Comparator<Usage>() {
+        @Override
+        public int compare(final Usage usage1, final Usage usage2) {
+            final int result = Integer.compare(usage1.hits, usage2.hits);
+
+            return result != 0 ? result : LRU_ORDER.compare(usage1, usage2);
+        }
+    };
+
+    /**
+     * @return the files of an entry stored in a directory, including all versions of its body
+     */
+    private static File[] getEntryFiles(final File entry) {
+        final File[] files = entry.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                final String name = file.getName();
+
+                return CacheMetadata.FILE_NAME.equals(name) || ".prp".equals(name) || CacheMetadata.isBodyFile(name);
+            }
+        });
+
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * @return the newest version of the body that is deleted along with an entry or {@literal -1}, if no body may be
+     *         deleted; bodies that are newer belong to a writer that has not published its record yet
+     */
+    private static long getPublishedVersion(final File entry) {
+        try {
+            return CacheMetadata.read(new File(entry, CacheMetadata.FILE_NAME)).version;
+        } catch (final FileNotFoundException e) {
+            return new File(entry, ".prp").exists() ? 0 : -1;
+        } catch (final IOException e) {
+            return Long.MAX_VALUE; // a damaged record, which no body can be served for
+        }
+    }
+
+    private static long sizeOf(final File entry, final boolean simple) {
+        if (simple) {
+            return entry.length();
+        }
+
+        long size = 0;
+
+        for (final File file : getEntryFiles(entry)) {
+            size += file.length();
+        }
+
+        return size;
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final Policy policy;
+    private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicBoolean triggered = new AtomicBoolean();
+    private long interval = DEFAULT_INTERVAL;
+    private volatile ScheduledExecutorService executor = null;
+
+    /**
+     * @param dir
+     *            the cache directory
+     * @param maxBytes
+     *            the maximum number of bytes stored in the cache or {@literal 0} for no limit
+     * @param maxEntries
+     *            the maximum number of entries stored in the cache or {@literal 0} for no limit
+     * @param policy
+     *            the order in which entries are evicted
+     */
+    public CacheEvictor(final File dir, final long maxBytes, final int maxEntries, final Policy policy) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.policy = policy;
+    }
+
+    /**
+     * Remove the files of an entry, the metadata first so readers never find metadata without a body, and prune the
+     * directories that became empty. Bodies newer than the record that is removed are kept, as a writer moves a new
+     * body into place before it publishes the record naming it; such an entry is tracked again once it is published.
+     */
+    private void delete(final Usage usage) {
+        if (usage.simple) {
+            usage.entry.delete();
+        } else {
+            final long version = getPublishedVersion(usage.entry);
+
+            new File(usage.entry, CacheMetadata.FILE_NAME).delete();
+
+            for (final File file : getEntryFiles(usage.entry)) {
+                final String name = file.getName();
+
+                if (!CacheMetadata.isBodyFile(name) || CacheMetadata.getBodyVersion(name) <= version) {
+                    file.delete();
+                }
+            }
+        }
+
+        for (File parent = usage.simple ? usage.entry.getParentFile() : usage.entry; parent != null
+                && !parent.equals(dir); parent = parent.getParentFile()) {
+            if (!parent.delete()) {
+                break; // not empty
+            }
+        }
+    }
+
+    /**
+     * Evict the coldest entries until the cache is back within the low watermark of its quota.
+     * 
+     * @return the number of entries evicted
+     */
+    synchronized int evict() {
+        if (!isOverQuota(100)) {
+            return 0;
+        }
+
+        final List<Usage> candidates = new ArrayList<Usage>(usages.values());
+
+        Collections.sort(candidates, policy == Policy.LFU ? LFU_ORDER : LRU_ORDER);
+
+        int count = 0;
+
+        for (final Usage usage : candidates) {
+            if (!isOverQuota(LOW_WATERMARK_PERCENT)) {
+                break;
+            }
+
+            synchronized (usages) {
+                if (!usages.remove(usage.entry.getPath(), usage)) {
+                    continue; // rewritten in the meantime
+                }
+
+                size.addAndGet(-usage.size);
+            }
+
+            delete(usage);
+            evictions.incrementAndGet();
+            evictedBytes.addAndGet(usage.size);
+            count++;
+        }
+
+        for (final Usage usage : usages.values()) {
+            usage.hits >>= 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of entries currently tracked
+     */
+    public int getEntryCount() {
+        return usages.size();
+    }
+
+    /**
+     * @return the number of bytes evicted so far
+     */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * @return the number of entries evicted so far
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of bytes currently tracked
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    private boolean isOverQuota(final int percent) {
+        if (maxBytes > 0 && size.get() * 100 > maxBytes * percent) {
+            return true;
+        }
+
+        return maxEntries > 0 && usages.size() * 100L > (long) maxEntries * percent;
+    }
+
+    /**
+     * Record a hit. This only updates the in-memory tracking.
+     * 
+     * @param entry
+     *            the file or directory holding the entry
+     */
+    public void recordAccess(final File entry) {
+        final Usage usage = usages.get(entry.getPath());
+
+        if (usage != null) {
+            usage.lastAccess = System.currentTimeMillis();
+            usage.hits++; // racy, but the count only needs to be approximate
+        }
+    }
+
+    /**
+     * Record an entry that was written to the cache, and trigger an eviction run if it pushed the cache over its quota.
+     * 
+     * @param entry
+     *            the file or directory holding the entry
+     * @param simple
+     *            {@literal true} if the entry is a single file, {@literal false} if it is a directory holding the body
+     *            and its metadata
+     */
+    public void recordWrite(final File entry, final boolean simple) {
+        final String path = entry.getPath();
+        final long _size = sizeOf(entry, simple);
+
+        synchronized (usages) {
+            final Usage previous = usages.get(path);
+            final int hits = previous == null ? 0 : previous.hits;
+
+            usages.put(path, new Usage(entry, simple, _size, System.currentTimeMillis(), hits));
+            size.addAndGet(previous == null ? _size : _size - previous.size);
+        }
+
+        if (isOverQuota(100)) {
+            trigger();
+        }
+    }
+
+    /**
+     * Track all the entries found in the cache directory.
+     */
+    void scan() {
+        scan(dir);
+    }
+
+    private void scan(final File file) {
+        final File[] children = file.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        boolean entry = false;
+
+        for (final File child : children) {
+            final String name = child.getName();
+
+            if (CacheMetadata.FILE_NAME.equals(name) || ".prp".equals(name)) {
+                entry = true;
+            } else if (CacheMetadata.isProxyFile(name)) {
+                continue;
+            } else if (child.isDirectory()) {
+                scan(child);
+            } else {
+                track(child, true);
+            }
+        }
+
+        if (entry) {
+            track(file, false);
+        }
+    }
+
+    /**
+     * Set the interval in which the quota is checked, in addition to the checks triggered by writes.
+     * 
+     * @param interval
+     *            the interval in milliseconds
+     */
+    public void setInterval(final long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Scan the cache directory and start the background thread. The scan runs on the background thread, so the proxy
+     * does not have to wait for it.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cache-evictor");
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("CacheEvictor [dir=");
+        builder.append(dir);
+        builder.append(", policy=");
+        builder.append(policy);
+        builder.append(", entries=");
+        builder.append(getEntryCount());
+        builder.append(", size=");
+        builder.append(getSize());
+        builder.append(", evictions=");
+        builder.append(getEvictions());
+        builder.append(", evictedBytes=");
+        builder.append(getEvictedBytes());
+        builder.append("]");
+
+        return builder.toString();
+    }
+
+    private void track(final File entry, final boolean simple) {
+        final long _size = sizeOf(entry, simple);
+        final Usage usage = new Usage(entry, simple, _size, entry.lastModified(), 0);
+
+        synchronized (usages) {
+            if (usages.putIfAbsent(entry.getPath(), usage) == null) {
+                size.addAndGet(_size); // entries written since the scan started are already tracked
+            }
+        }
+    }
+
+    private void trigger() {
+        final ScheduledExecutorService _executor = executor;
+
+        if (_executor == null || !triggered.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    triggered.set(false);
+                    evict();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            triggered.set(false); // stopped in the meantime
+        }
+    }
+}
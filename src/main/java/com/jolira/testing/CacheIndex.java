@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory index of the entries in a cache directory tree, used to answer lookups for entries that are not in the
+ * cache without touching the file system. The index is a Bloom filter over the paths of all entries: a negative answer
+ * is definite, a positive one still has to be confirmed by looking at the file system.
+ * <p>
+ * The index is built by scanning the directory tree in parallel and kept up to date by calling {@link #add(File)}
+ * whenever an entry is written. Once more entries were added than the filter was sized for, a new filter twice the
+ * size is started, so the false positive rate stays bounded as the cache grows. Entries that are removed from the cache
+ * stay in the filter and simply turn into false positives. Entries that are copied into the cache directory by hand
+ * while the proxy is running are not seen until the index is rebuilt.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheIndex {
+    /**
+     * Collects the entries of a directory and forks a task for each sub-directory.
+     */
+    @SuppressWarnings("serial")
+    private static class Scan extends RecursiveAction {
+        private final File dir;
+        private final Queue<String> entries;
+
+        Scan(final File dir, final Queue<String> entries) {
+            this.dir = dir;
+            this.entries = entries;
+        }
+
+        @Override
+        protected void compute() {
+            final File[] children = dir.listFiles();
+
+            if (children == null) {
+                return;
+            }
+
+            final Collection<Scan> scans = new ArrayList<Scan>();
+
+            for (final File child : children) {
+                final String name = child.getName();
+
+                if (CacheMetadata.FILE_NAME.equals(name) || ".prp".equals(name)) {
+                    entries.add(dir.getPath());
+                } else if (CacheMetadata.isProxyFile(name)) {
+                    continue;
+                } else if (child.isDirectory()) {
+                    scans.add(new Scan(child, entries));
+                } else {
+                    entries.add(child.getPath());
+                }
+            }
+
+            invokeAll(scans);
+        }
+    }
+
+    /**
+     * The false positive probability the filters are sized for.
+     */
+    public static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private static final long MIN_CAPACITY = 64 * 1024;
+
+    private final File dir;
+    private final List<BloomFilter> filters = new CopyOnWriteArrayList<BloomFilter>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private volatile long capacity = 0;
+    private long buildTime = 0;
+
+    /**
+     * @param dir
+     *            the cache directory
+     */
+    public CacheIndex(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Record an entry that was written to the cache.
+     * 
+     * @param entry
+     *            the file or directory holding the entry
+     */
+    public void add(final File entry) {
+        if (added.incrementAndGet() > capacity) {
+            grow();
+        }
+
+        filters.get(filters.size() - 1).add(entry.getPath());
+        size.incrementAndGet();
+    }
+
+    /**
+     * Scan the cache directory and rebuild the index.
+     * 
+     * @param parallelism
+     *            the number of threads used to scan the directory tree
+     */
+    public synchronized void build(final int parallelism) {
+        final long start = System.nanoTime();
+        final Queue<String> entries = new ConcurrentLinkedQueue<String>();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new Scan(dir, entries));
+        } finally {
+            pool.shutdown();
+        }
+
+        final int count = entries.size();
+        final BloomFilter filter = new BloomFilter(Math.max(2L * count, MIN_CAPACITY), FALSE_POSITIVE_PROBABILITY);
+
+        for (final String entry : entries) {
+            filter.add(entry);
+        }
+
+        filters.clear();
+        filters.add(filter);
+        capacity = Math.max(2L * count, MIN_CAPACITY);
+        added.set(count);
+        size.set(count);
+        buildTime = (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * @return the time it took to build the index in milliseconds
+     */
+    public synchronized long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * @return the number of bytes used by the index
+     */
+    public long getMemory() {
+        long memory = 0;
+
+        for (final BloomFilter filter : filters) {
+            memory += filter.getMemory();
+        }
+
+        return memory;
+    }
+
+    /**
+     * @return the number of entries that were found by the scan or added since
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    private synchronized void grow() {
+        if (added.get() <= capacity) {
+            return; // somebody else grew the index already
+        }
+
+        final long _capacity = Math.max(2 * capacity, MIN_CAPACITY);
+
+        filters.add(new BloomFilter(_capacity, FALSE_POSITIVE_PROBABILITY));
+        added.set(1);
+        capacity = _capacity;
+    }
+
+    /**
+     * @param entry
+     *            the file or directory the entry would be stored in
+     * @return {@literal false} if the entry is definitely not in the cache
+     */
+    public boolean mightContain(final File entry) {
+        final String path = entry.getPath();
+
+        for (final BloomFilter filter : filters) {
+            if (filter.mightContain(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("CacheIndex [dir=");
+        builder.append(dir);
+        builder.append(", entries=");
+        builder.append(getSize());
+        builder.append(", memory=");
+        builder.append(getMemory());
+        builder.append(", buildTime=");
+        builder.append(getBuildTime());
+        builder.append("ms]");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * The metadata of a cache entry stored in a directory tree, in a compact binary record. Cookies are stored with their
+ * attributes already split up, so decoding a record never has to parse {@literal Set-Cookie} values. The record also
+ * holds the length and the CRC32 checksum of the body it describes (as stored, that is after applying its content
+ * encoding), the query it was fetched for (so entries stored under a hash of the query can be checked for collisions)
+ * and the {@link Freshness} of the entry.
+ * <p>
+ * The body of an entry is stored in a file named after its version (see {@link #getBodyFile(File)}). A new body is
+ * written under a new version and the record naming it replaces the old one with an atomic rename, so a reader always
+ * finds a record together with the complete body it describes.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class CacheMetadata {
+    /**
+     * When an entry was fetched, together with the validators and caching directives the backend sent with it.
+     */
+    static class Freshness {
+        private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])(s-maxage|max-age)\\s*=\\s*\"?(\\d+)",
+                Pattern.CASE_INSENSITIVE);
+        private static final Pattern NO_CACHE = Pattern.compile("(?:^|[,\\s])(no-cache|no-store)(?:$|[,\\s=])",
+                Pattern.CASE_INSENSITIVE);
+
+        final long fetched;
+        final String etag;
+        final String lastModified;
+        final String cacheControl;
+
+        Freshness(final long fetched, final String etag, final String lastModified, final String cacheControl) {
+            this.fetched = fetched;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+        }
+
+        /**
+         * Compute the time the entry expires. {@literal s-maxage} takes precedence over {@literal max-age};
+         * {@literal no-cache} and {@literal no-store} make the entry expire right away. Without any of these
+         * directives, the default time to live applies.
+         * 
+         * @param defaultTtl
+         *            the time to live in milliseconds of entries without an explicit max age or {@literal 0} to keep
+         *            such entries forever
+         * @return the time the entry expires in milliseconds since the epoch
+         */
+        long getExpires(final long defaultTtl) {
+            if (cacheControl != null) {
+                if (NO_CACHE.matcher(cacheControl).find()) {
+                    return fetched;
+                }
+
+                final Matcher matcher = MAX_AGE.matcher(cacheControl);
+                long maxAge = -1;
+
+                while (matcher.find()) {
+                    final long age = Long.parseLong(matcher.group(2));
+
+                    if ("s-maxage".equalsIgnoreCase(matcher.group(1))) {
+                        maxAge = age;
+                        break;
+                    }
+
+                    maxAge = age;
+                }
+
+                if (maxAge >= 0) {
+                    return fetched + maxAge * 1000;
+                }
+            }
+
+            return defaultTtl > 0 ? fetched + defaultTtl : Long.MAX_VALUE;
+        }
+
+        /**
+         * @return {@literal true} if the entry can be revalidated with a conditional request
+         */
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * The name of the file holding the record inside an entry directory.
+     */
+    static final String FILE_NAME = ".mdr";
+
+    /**
+     * The name of the file holding the body of an entry written before bodies were versioned.
+     */
+    static final String BODY_FILE_NAME = ".dmp";
+
+    private static final String TEMP_PREFIX = ".fetch";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC_V1 = 0x4a4c4d31; // "JLM1"
+    private static final int MAGIC_V2 = 0x4a4c4d32; // "JLM2", adds the query
+    private static final int MAGIC_V3 = 0x4a4c4d33; // "JLM3", adds the freshness
+    private static final int MAGIC_V4 = 0x4a4c4d34; // "JLM4", adds the content encoding
+    private static final int MAGIC = 0x4a4c4d35; // "JLM5", adds the version of the body
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SECURE = 1;
+
+    /**
+     * Compute the checksum of a body stored in a file.
+     * 
+     * @param file
+     *            the file
+     * @return the CRC32 checksum of the content of the file
+     * @throws IOException
+     *             reading the file failed
+     */
+    static int checksum(final File file) throws IOException {
+        final CRC32 checksum = new CRC32();
+        final InputStream in = new FileInputStream(file);
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        try {
+            for (;;) {
+                final int read = in.read(buffer);
+
+                if (read == -1) {
+                    return (int) checksum.getValue();
+                }
+
+                checksum.update(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+            in.close();
+        }
+    }
+
+    /**
+     * Decode a record.
+     * 
+     * @param bytes
+     *            the encoded record
+     * @return the decoded record
+     * @throws IOException
+     *             the bytes do not hold a valid record
+     */
+    static CacheMetadata decode(final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        try {
+            final int magic = buffer.getInt();
+
+            if (magic != MAGIC && magic != MAGIC_V4 && magic != MAGIC_V3 && magic != MAGIC_V2 && magic != MAGIC_V1) {
+                throw new IOException("not a metadata record");
+            }
+
+            final String query = magic != MAGIC_V1 ? getString(buffer) : null;
+            final int status = buffer.getInt();
+            final long length = buffer.getLong();
+            final int checksum = buffer.getInt();
+            final Freshness freshness = magic == MAGIC || magic == MAGIC_V4 || magic == MAGIC_V3 ? new Freshness(
+                    buffer.getLong(), getString(buffer), getString(buffer), getString(buffer)) : new Freshness(0, null,
+                    null, null);
+            final String contentType = getString(buffer);
+            final String contentEncoding = magic == MAGIC || magic == MAGIC_V4 ? getString(buffer) : null;
+            final int count = buffer.getShort();
+            final Cookie[] cookies = new Cookie[count];
+
+            for (int idx = 0; idx < count; idx++) {
+                final String name = getString(buffer);
+                final String value = getString(buffer);
+                final String domain = getString(buffer);
+                final String path = getString(buffer);
+                final byte flags = buffer.get();
+                final Cookie cookie = new Cookie(name, value);
+
+                if (domain != null) {
+                    cookie.setDomain(domain);
+                }
+
+                if (path != null) {
+                    cookie.setPath(path);
+                }
+
+                cookie.setSecure((flags & SECURE) != 0);
+                cookies[idx] = cookie;
+            }
+
+            final long version = magic == MAGIC ? buffer.getLong() : 0;
+
+            return new CacheMetadata(query, status, contentType, contentEncoding, cookies, length, checksum, freshness,
+                    version);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("truncated metadata record");
+        }
+    }
+
+    /**
+     * @param dir
+     *            the entry directory
+     * @param version
+     *            the version of the body
+     * @return the file holding that version of the body
+     */
+    static File getBodyFile(final File dir, final long version) {
+        return new File(dir, version == 0 ? BODY_FILE_NAME : BODY_FILE_NAME + '.' + Long.toHexString(version));
+    }
+
+    /**
+     * @param name
+     *            the name of a body file, as accepted by {@link #isBodyFile(String)}
+     * @return the version of the body held by the file; {@literal 0} for bodies that carry no version
+     */
+    static long getBodyVersion(final String name) {
+        if (name.length() <= BODY_FILE_NAME.length() + 1) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(name.substring(BODY_FILE_NAME.length() + 1), 16);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getShort();
+
+        if (length < 0) {
+            return null;
+        }
+
+        final int position = buffer.position();
+
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        buffer.position(position + length);
+
+        return new String(buffer.array(), position, length, UTF8);
+    }
+
+    private static void putString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes(UTF8);
+
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("value too long for a metadata record: " + bytes.length);
+        }
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param name
+     *            the name of a file inside an entry directory
+     * @return {@literal true} if the file holds a version of the body of the entry
+     */
+    static boolean isBodyFile(final String name) {
+        return name.startsWith(BODY_FILE_NAME) && (name.length() == BODY_FILE_NAME.length()
+                || name.charAt(BODY_FILE_NAME.length()) == '.');
+    }
+
+    /**
+     * @param name
+     *            the name of a file inside the cache directory
+     * @return {@literal true} if the file is one the proxy keeps for an entry (its record, the properties written by an
+     *         earlier version or a version of its body) or a temporary file; all other files and directories hold
+     *         entries, even if their names start with a dot
+     */
+    static boolean isProxyFile(final String name) {
+        return FILE_NAME.equals(name) || ".prp".equals(name) || isBodyFile(name) || isTempFile(name);
+    }
+
+    /**
+     * @param name
+     *            the name of a file inside the cache directory
+     * @return {@literal true} if the file is a temporary file an entry or a record is written to before it is published
+     */
+    static boolean isTempFile(final String name) {
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Read a record from a file.
+     * 
+     * @param file
+     *            the file
+     * @return the decoded record
+     * @throws IOException
+     *             the file could not be read or does not hold a valid record
+     */
+    static CacheMetadata read(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+
+        try {
+            int off = 0;
+
+            while (off < bytes.length) {
+                final int read = in.read(bytes, off, bytes.length - off);
+
+                if (read == -1) {
+                    throw new IOException("truncated metadata record " + file);
+                }
+
+                off += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        return decode(bytes);
+    }
+
+    final String query;
+    final int status;
+    final String contentType;
+    final String contentEncoding;
+    final Cookie[] cookies;
+    final long length;
+    final int checksum;
+    final Freshness freshness;
+    final long version;
+
+    CacheMetadata(final String query, final int status, final String contentType, final String contentEncoding,
+            final Cookie[] cookies, final long length, final int checksum, final Freshness freshness) {
+        this(query, status, contentType, contentEncoding, cookies, length, checksum, freshness, 0);
+    }
+
+    CacheMetadata(final String query, final int status, final String contentType, final String contentEncoding,
+            final Cookie[] cookies, final long length, final int checksum, final Freshness freshness,
+            final long version) {
+        this.query = query;
+        this.status = status;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.cookies = cookies;
+        this.length = length;
+        this.checksum = checksum;
+        this.freshness = freshness;
+        this.version = version;
+    }
+
+    /**
+     * @return the encoded record
+     * @throws IOException
+     *             a value cannot be encoded
+     */
+    byte[] encode() throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeInt(MAGIC);
+        putString(out, query);
+        out.writeInt(status);
+        out.writeLong(length);
+        out.writeInt(checksum);
+        out.writeLong(freshness.fetched);
+        putString(out, freshness.etag);
+        putString(out, freshness.lastModified);
+        putString(out, freshness.cacheControl);
+        putString(out, contentType);
+        putString(out, contentEncoding);
+        out.writeShort(cookies.length);
+
+        for (final Cookie cookie : cookies) {
+            putString(out, cookie.getName());
+            putString(out, cookie.getValue());
+            putString(out, cookie.getDomain());
+            putString(out, cookie.getPath());
+            out.writeByte(cookie.getSecure() ? SECURE : 0);
+        }
+
+        out.writeLong(version);
+        out.close();
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param dir
+     *            the entry directory
+     * @return the file holding the body described by this record
+     */
+    File getBodyFile(final File dir) {
+        return getBodyFile(dir, version);
+    }
+
+    /**
+     * @param _freshness
+     *            the new freshness
+     * @return a copy of this record with a different freshness, describing the same body
+     */
+    CacheMetadata refresh(final Freshness _freshness) {
+        return new CacheMetadata(query, status, contentType, contentEncoding, cookies, length, checksum, _freshness,
+                version);
+    }
+
+    /**
+     * Write the record to a file.
+     * 
+     * @param file
+     *            the file
+     * @throws IOException
+     *             writing failed
+     */
+    void write(final File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(encode());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refreshes cache entries in the background, so clients of {@link CachingRESTProxy} are served expired entries right
+ * away instead of waiting for the backend (stale-while-revalidate). Entries that are requested frequently shortly
+ * before they expire are refreshed ahead of time, so they do not go stale in the first place.
+ * <p>
+ * Refreshes run on a fixed number of threads and wait in a bounded queue; refreshes that do not fit into the queue are
+ * dropped, the entry is simply scheduled again by the next request for it. Only one refresh per key is pending at any
+ * one time. The refresh lag, the time between an entry expiring and its refresh completing (that is, the time stale
+ * content was served for), is tracked for monitoring.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheRefresher {
+    /**
+     * The default number of requests shortly before an entry expires that make the entry eligible for refresh-ahead.
+     */
+    public static final int DEFAULT_HOT_THRESHOLD = 3;
+
+    /**
+     * The default time before an entry expires during which it may be refreshed ahead, in milliseconds.
+     */
+    public static final long DEFAULT_REFRESH_AHEAD = 10000;
+
+    private static final int SKETCH_WIDTH = 4096;
+
+    private final int threads;
+    private final int maxQueued;
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+    private final MemoryCache.FrequencySketch sketch = new MemoryCache.FrequencySketch(SKETCH_WIDTH);
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong totalLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+    private long refreshAhead = DEFAULT_REFRESH_AHEAD;
+    private int hotThreshold = DEFAULT_HOT_THRESHOLD;
+    private volatile ThreadPoolExecutor executor = null;
+
+    /**
+     * @param threads
+     *            the number of refreshes that may run concurrently
+     * @param maxQueued
+     *            the number of refreshes that may wait for a thread
+     */
+    public CacheRefresher(final int threads, final int maxQueued) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+
+        this.threads = threads;
+        this.maxQueued = Math.max(1, maxQueued);
+    }
+
+    private void complete(final long expires, final boolean succeeded) {
+        if (!succeeded) {
+            failures.incrementAndGet();
+            return;
+        }
+
+        final long lag = Math.max(0, System.currentTimeMillis() - expires);
+
+        refreshes.incrementAndGet();
+        totalLag.addAndGet(lag);
+
+        for (;;) {
+            final long max = maxLag.get();
+
+            if (lag <= max || maxLag.compareAndSet(max, lag)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the average refresh lag in milliseconds
+     */
+    public long getAverageLag() {
+        final long count = refreshes.get();
+
+        return count == 0 ? 0 : totalLag.get() / count;
+    }
+
+    /**
+     * @return the number of refreshes dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of refreshes not scheduled because a refresh for the same key was already pending
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of refreshes that failed
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the longest refresh lag in milliseconds
+     */
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    /**
+     * @return the number of refreshes that are queued or running
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of refreshes that completed successfully
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return the number of refreshes that were scheduled
+     */
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * Record a request for an entry that has not expired yet and decide whether it should be refreshed ahead of time.
+     * 
+     * @param key
+     *            the key
+     * @param expires
+     *            the time the entry expires in milliseconds since the epoch
+     * @param now
+     *            the current time in milliseconds since the epoch
+     * @return {@literal true} if the entry is about to expire and was requested frequently enough to refresh it now
+     */
+    boolean isDue(final String key, final long expires, final long now) {
+        if (refreshAhead <= 0 || now < expires - refreshAhead) {
+            return false;
+        }
+
+        synchronized (sketch) {
+            sketch.increment(key);
+
+            return sketch.frequency(key) >= hotThreshold;
+        }
+    }
+
+    /**
+     * Schedule a refresh, unless one is already pending for the key.
+     * 
+     * @param key
+     *            the key
+     * @param expires
+     *            the time the entry expires (or expired) in milliseconds since the epoch
+     * @param refresh
+     *            performs the refresh; an exception counts as a failed refresh
+     * @return {@literal true} if the refresh was scheduled
+     */
+    boolean schedule(final String key, final long expires, final Callable<?> refresh) {
+        final ThreadPoolExecutor _executor = executor;
+
+        if (_executor == null) {
+            return false;
+        }
+
+        if (pending.putIfAbsent(key, Long.valueOf(expires)) != null) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean succeeded = false;
+
+                    try {
+                        refresh.call();
+                        succeeded = true;
+                    } catch (final Exception e) {
+                        // the entry stays stale and is scheduled again by the next request for it
+                    } finally {
+                        pending.remove(key);
+                        complete(expires, succeeded);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            pending.remove(key);
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        scheduled.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Set the number of requests during the refresh-ahead window that make an entry eligible for refresh-ahead.
+     * 
+     * @param hotThreshold
+     *            the number of requests
+     */
+    public void setHotThreshold(final int hotThreshold) {
+        this.hotThreshold = hotThreshold;
+    }
+
+    /**
+     * Set the time before an entry expires during which frequently requested entries are refreshed ahead.
+     * 
+     * @param refreshAhead
+     *            the time in milliseconds or {@literal 0} to only refresh entries once they expired
+     */
+    public void setRefreshAhead(final long refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * Start the refresher threads.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                maxQueued), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cache-refresher-" + count.incrementAndGet());
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stop the refresher threads; queued refreshes are dropped and running ones are interrupted.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+        pending.clear();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("CacheRefresher [threads=");
+        builder.append(threads);
+        builder.append(", pending=");
+        builder.append(getPending());
+        builder.append(", refreshes=");
+        builder.append(getRefreshes());
+        builder.append(", failures=");
+        builder.append(getFailures());
+        builder.append(", dropped=");
+        builder.append(getDropped());
+        builder.append(", averageLag=");
+        builder.append(getAverageLag());
+        builder.append("ms, maxLag=");
+        builder.append(getMaxLag());
+        builder.append("ms]");
+
+        return builder.toString();
+    }
+}
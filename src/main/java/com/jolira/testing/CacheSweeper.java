@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Removes what interrupted writes leave behind in a cache directory: temporary files of fetches that never completed
+ * and bodies that are not named by the metadata record of their entry, either because they were superseded or
+ * because the process died before the record was written. Only files that have not been modified for a grace period
+ * are removed, so writes that are still in progress (for instance by another proxy sharing the directory) are left
+ * alone.
+ *
+ * @author jfk
+ * @since 1.3
+ */
+class CacheSweeper implements Runnable {
+    /**
+     * The default time in milliseconds a file has to be left untouched before it is considered orphaned.
+     */
+    static final long DEFAULT_GRACE = 60000;
+
+    private final File dir;
+    private final long grace;
+    private long cutoff = 0;
+    private int removed = 0;
+
+    /**
+     * @param dir
+     *            the cache directory
+     * @param grace
+     *            the time in milliseconds a file has to be left untouched before it is removed
+     */
+    CacheSweeper(final File dir, final long grace) {
+        this.dir = dir;
+        this.grace = grace;
+    }
+
+    /**
+     * @return the name of the body file of the entry stored in a directory or {@literal null}, if it holds no entry
+     */
+    private String getCurrentBody(final File entry) {
+        final File record = new File(entry, CacheMetadata.FILE_NAME);
+
+        if (record.isFile()) {
+            try {
+                return CacheMetadata.read(record).getBodyFile(entry).getName();
+            } catch (final IOException e) {
+                return null; // unreadable; leave the bodies alone
+            }
+        }
+
+        return new File(entry, ".prp").isFile() ? CacheMetadata.BODY_FILE_NAME : null;
+    }
+
+    /**
+     * @return the number of files removed by the last sweep
+     */
+    int getRemoved() {
+        return removed;
+    }
+
+    private boolean isOrphaned(final File file) {
+        final long lastModified = file.lastModified();
+
+        return lastModified != 0 && lastModified < cutoff;
+    }
+
+    private void remove(final File file) {
+        if (isOrphaned(file) && file.delete()) {
+            removed++;
+        }
+    }
+
+    @Override
+    public void run() {
+        sweep();
+    }
+
+    /**
+     * Sweep the cache directory.
+     *
+     * @return the number of files removed
+     */
+    synchronized int sweep() {
+        cutoff = System.currentTimeMillis() - grace;
+        removed = 0;
+        sweep(dir);
+
+        return removed;
+    }
+
+    private void sweep(final File file) {
+        final File[] children = file.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        boolean bodies = false;
+
+        for (final File child : children) {
+            final String name = child.getName();
+
+            if (CacheMetadata.isTempFile(name)) {
+                remove(child);
+            } else if (CacheMetadata.isBodyFile(name)) {
+                bodies = true;
+            } else if (child.isDirectory()) {
+                sweep(child);
+            }
+        }
+
+        if (!bodies) {
+            return;
+        }
+
+        final String current = getCurrentBody(file);
+
+        if (current == null && new File(file, CacheMetadata.FILE_NAME).exists()) {
+            return;
+        }
+
+        for (final File child : children) {
+            final String name = child.getName();
+
+            if (CacheMetadata.isBodyFile(name) && !name.equals(current)) {
+                remove(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Warms up the cache of a freshly started {@link CachingRESTProxy} by requesting a list of targets from the proxy
+ * itself, so every target goes through the normal caching path (key normalization, coalescing, the memory tier and so
+ * on). Targets are requested by a bounded number of threads and, if a rate is set, spaced out evenly so the backend is
+ * not overwhelmed. Progress, throughput and failures are tracked and can be reported while the warm-up is running.
+ * <p>
+ * Targets are read either from a plain list (one path or URL per line) or from an access log in the NCSA format
+ * written by Jetty's {@literal NCSARequestLog}, of which only successful {@literal GET} requests are used.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheWarmer {
+    private static final Pattern NCSA = Pattern.compile("\"(?:GET|HEAD) (\\S+) HTTP/[\\d.]+\" (\\d{3}) ");
+    private static final Pattern URL_PREFIX = Pattern.compile("https?://[^/]*(/.*)?");
+    private static final int MAX_RECORDED_FAILURES = 100;
+    private static final int TIMEOUT = 30000;
+
+    /**
+     * Read the targets to warm up from a file, dropping duplicates.
+     * 
+     * @param file
+     *            a list of targets or an access log in the NCSA format
+     * @return the targets in the order they were found
+     * @throws IOException
+     *             the file could not be read
+     */
+    public static List<String> readTargets(final File file) throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+        try {
+            return readTargets(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<String> readTargets(final Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        final Set<String> targets = new LinkedHashSet<String>();
+
+        for (;;) {
+            final String line = in.readLine();
+
+            if (line == null) {
+                break;
+            }
+
+            final String target = toTarget(line.trim());
+
+            if (target != null) {
+                targets.add(target);
+            }
+        }
+
+        return new ArrayList<String>(targets);
+    }
+
+    /**
+     * @return the target of a line of a list or an access log or {@literal null}, if the line holds no target to warm
+     *         up
+     */
+    private static String toTarget(final String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+
+        if (line.startsWith("/")) {
+            return line;
+        }
+
+        final Matcher url = URL_PREFIX.matcher(line);
+
+        if (url.matches()) {
+            final String path = url.group(1);
+
+            return path == null ? "/" : path;
+        }
+
+        final Matcher logged = NCSA.matcher(line);
+
+        if (!logged.find()) {
+            return null;
+        }
+
+        final int status = Integer.parseInt(logged.group(2));
+
+        return status < 400 ? logged.group(1) : null;
+    }
+
+    private final boolean ssl;
+    private final String server;
+    private final int threads;
+    private final long interval;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    private long nextSlot = 0;
+    private volatile long started = 0;
+    private volatile long finished = 0;
+
+    /**
+     * @param ssl
+     *            {@literal true} if the proxy uses SSL; its certificate has to be trusted by this JVM
+     * @param server
+     *            the proxy as {@literal host:port}
+     * @param threads
+     *            the number of targets requested concurrently
+     * @param rate
+     *            the maximum number of targets requested per second or {@literal 0} for no limit
+     */
+    public CacheWarmer(final boolean ssl, final String server, final int threads, final double rate) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+
+        this.ssl = ssl;
+        this.server = server;
+        this.threads = threads;
+        interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+    }
+
+    /**
+     * Wait for the next slot permitted by the rate limit.
+     */
+    private void acquire() throws InterruptedException {
+        if (interval == 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long slot;
+
+        synchronized (this) {
+            slot = Math.max(now, nextSlot);
+            nextSlot = slot + interval;
+        }
+
+        TimeUnit.NANOSECONDS.sleep(slot - now);
+    }
+
+    private void fetch(final String target) throws IOException {
+        final URL url = new URL((ssl ? "https://" : "http://") + server + target);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+
+        final int status = connection.getResponseCode();
+
+        if (status >= 400) {
+            final InputStream error = connection.getErrorStream();
+
+            if (error != null) {
+                error.close();
+            }
+
+            throw new IOException("status " + status);
+        }
+
+        final InputStream in = connection.getInputStream();
+
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        try {
+            for (;;) {
+                final int read = in.read(buffer);
+
+                if (read == -1) {
+                    break;
+                }
+
+                bytes.addAndGet(read);
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+            in.close(); // the connection is kept alive for the next target
+        }
+    }
+
+    /**
+     * @return the number of body bytes received so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of targets requested so far, whether they succeeded or not
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the time the warm-up has been running for (or ran for, if it finished) in milliseconds
+     */
+    public long getElapsed() {
+        final long _started = started;
+
+        if (_started == 0) {
+            return 0;
+        }
+
+        final long _finished = finished;
+
+        return (_finished == 0 ? System.currentTimeMillis() : _finished) - _started;
+    }
+
+    /**
+     * @return up to the first 100 targets that failed, together with the reason
+     */
+    public List<String> getFailed() {
+        synchronized (failed) {
+            return new ArrayList<String>(failed);
+        }
+    }
+
+    /**
+     * @return the number of targets that failed
+     */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of targets requested per second
+     */
+    public double getThroughput() {
+        final long elapsed = getElapsed();
+
+        return elapsed == 0 ? 0 : completed.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return the number of targets to be warmed up
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("CacheWarmer [completed=");
+        builder.append(getCompleted());
+        builder.append('/');
+        builder.append(getTotal());
+        builder.append(", failures=");
+        builder.append(getFailures());
+        builder.append(", bytes=");
+        builder.append(getBytes());
+        builder.append(", throughput=");
+        builder.append(Math.round(getThroughput() * 10) / 10.0);
+        builder.append("/s, elapsed=");
+        builder.append(getElapsed());
+        builder.append("ms]");
+
+        return builder.toString();
+    }
+
+    /**
+     * Request all the targets and wait until they have been requested.
+     * 
+     * @param targets
+     *            the targets, such as {@literal /search?q=jolira}
+     * @param report
+     *            the stream progress is reported to or {@literal null}
+     * @param reportInterval
+     *            the time between two progress reports in milliseconds
+     * @throws InterruptedIOException
+     *             the calling thread was interrupted; the warm-up is cancelled
+     */
+    public void warm(final Collection<String> targets, final PrintStream report, final long reportInterval)
+            throws InterruptedIOException {
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>(targets);
+        final AtomicInteger count = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cache-warmer-" + count.incrementAndGet());
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        total.addAndGet(queue.size());
+        started = System.currentTimeMillis();
+        finished = 0;
+
+        for (int idx = 0; idx < threads; idx++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (String target = queue.poll(); target != null; target = queue.poll()) {
+                        try {
+                            acquire();
+                        } catch (final InterruptedException e) {
+                            return; // cancelled
+                        }
+
+                        try {
+                            fetch(target);
+                        } catch (final IOException e) {
+                            if (failures.incrementAndGet() <= MAX_RECORDED_FAILURES) {
+                                failed.add(target + ": " + e.getMessage());
+                            }
+                        } finally {
+                            completed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        final long wait = report == null ? Long.MAX_VALUE : Math.max(1, reportInterval);
+
+        try {
+            while (!executor.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                if (report != null) {
+                    report.println(this);
+                }
+            }
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("warm-up cancelled");
+        } finally {
+            finished = System.currentTimeMillis();
+        }
+
+        if (report != null) {
+            report.println(this);
+        }
+    }
+}
@@ -7,8 +7,12 @@ package com.jolira.testing;
 
 import static com.jolira.testing.StaticWebContentServer.DEFAULT_MIME_TYPE;
 import static com.jolira.testing.StaticWebContentServer.mimeTypeByExtension;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_GATEWAY;
+import static javax.servlet.http.HttpServletResponse.SC_GATEWAY_TIMEOUT;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -19,20 +23,39 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map.Entry;
-
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -43,6 +66,9 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Parser;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.io.Buffer;
 
 /**
  * REST has a number of wonderful characteristics. One of which is that it can be cached very easily. This class allows
@@ -54,11 +80,356 @@ import org.apache.commons.cli.Parser;
  * @since 1.0
  */
 public class CachingRESTProxy {
+    /**
+     * Streams the response of an asynchronous backend fetch to the suspended client while writing it to the cache. The
+     * flight lands once the entry has been published. When an expired entry is revalidated, a {@literal 304 Not
+     * Modified} refreshes the entry and an error lets the client be served the stale entry.
+     * <p>
+     * The body is written to the client from the thread of the backend client that delivers it, not from a thread of
+     * the server. A client that reads slowly therefore holds on to a thread of the backend client until it has accepted
+     * each chunk; only clients that went away are given up on. The continuation is completed or resumed exactly once,
+     * even if the backend client reports a failure after the fetch completed, as it does when publishing fails.
+     */
+    private class AsyncFetch implements BackendClient.Listener {
+        private final String query;
+        private final File queryDir;
+        private final CachedResponse stale;
+        private final RequestCoalescer.Flight flight;
+        private final Continuation continuation;
+        private final HttpServletResponse response;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private EntryWriter writer = null;
+        private OutputStream out = null;
+        private boolean passedThrough = false;
+
+        AsyncFetch(final String query, final File queryDir, final CachedResponse stale,
+                final RequestCoalescer.Flight flight, final Continuation continuation,
+                final HttpServletResponse response) {
+            this.query = query;
+            this.queryDir = queryDir;
+            this.stale = stale;
+            this.flight = flight;
+            this.continuation = continuation;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete() throws IOException {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (writer == null && !passedThrough) {
+                serveStale();
+                return;
+            }
+
+            try {
+                if (writer != null) {
+                    writer.publish();
+                }
+            } catch (final IOException e) {
+                metrics.recordError(); // the backend client reports the failure again, which is ignored
+                throw e;
+            } finally {
+                coalescer.land(query, flight);
+                closeQuietly(out);
+                complete(continuation);
+            }
+        }
+
+        @Override
+        public void onContent(final Buffer content) throws IOException {
+            if (writer == null && !passedThrough) {
+                return; // the body of a revalidation that failed
+            }
+
+            final byte[] array = content.array();
+
+            if (array != null) {
+                write(array, content.getIndex(), content.length());
+                return;
+            }
+
+            final byte[] buffer = BufferPool.SHARED.acquire();
+
+            try {
+                final int length = content.length();
+
+                for (int off = 0; off < length;) {
+                    final int len = content.peek(content.getIndex() + off, buffer, 0,
+                            Math.min(buffer.length, length - off));
+
+                    write(buffer, 0, len);
+                    off += len;
+                }
+            } finally {
+                BufferPool.SHARED.release(buffer);
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+
+            final int status = cause instanceof SocketTimeoutException ? SC_GATEWAY_TIMEOUT : SC_BAD_GATEWAY;
+
+            flight.fail(status);
+            coalescer.land(query, flight);
+
+            if (writer != null || passedThrough) {
+                if (writer != null) {
+                    writer.discard();
+                }
+
+                closeQuietly(out); // the client receives a truncated response
+                metrics.recordError();
+                complete(continuation);
+                return;
+            }
+
+            if (stale != null) {
+                continuation.setAttribute(ALLOW_STALE, Boolean.TRUE);
+                resume(continuation);
+                return;
+            }
+
+            continuation.setAttribute(FETCH_FAILURE, Integer.valueOf(status));
+            resume(continuation);
+        }
+
+        @Override
+        public void onHeaders(final BackendClient.Response backendResponse) throws IOException {
+            final int status = backendResponse.getStatus();
+
+            if (stale != null && (status == SC_NOT_MODIFIED || !replaces(stale, status))) {
+                if (status == SC_NOT_MODIFIED) {
+                    refresh(query, queryDir, stale, backendResponse);
+                }
+
+                return;
+            }
+
+            if (!isCacheable(status)) {
+                flight.passThrough();
+                coalescer.land(query, flight); // nothing is cached, so the followers fetch the response themselves
+                passThrough(response, backendResponse);
+                out = response.getOutputStream();
+                passedThrough = true;
+                metrics.recordMiss();
+                return;
+            }
+
+            writer = new EntryWriter(query, queryDir, backendResponse);
+            out = prepare(response, writer);
+            metrics.recordMiss();
+        }
+
+        private void serveStale() {
+            coalescer.land(query, flight);
+            continuation.setAttribute(ALLOW_STALE, Boolean.TRUE);
+            resume(continuation);
+        }
+
+        private void write(final byte[] buffer, final int off, final int len) throws IOException {
+            if (writer != null) {
+                writer.write(buffer, off, len);
+            }
+
+            out = writeQuietly(out, buffer, off, len);
+        }
+    }
+
+    /**
+     * Writes a cache entry to temporary files and publishes it once it is complete, so readers never see a partially
+     * written entry. The body is moved to a file of its own version first and only then becomes visible through the
+     * metadata record naming it, which replaces the old record with an atomic rename. Readers never take a lock and
+     * never see a body together with the metadata of another one. Bodies the backend sent encoded are stored as they
+     * are; compressible bodies the backend sent unencoded are compressed while they are written, if the proxy stores
+     * entries compressed.
+     */
+    private class EntryWriter {
+        private final String query;
+        private final File queryDir;
+        private final BackendClient.Response backendResponse;
+        private final String contentEncoding;
+        private final boolean simple;
+        private final File resourceFile;
+        private final File tmpFile;
+        private final OutputStream out;
+        private final CRC32 checksum = new CRC32();
+        private final long fetched = System.currentTimeMillis();
+        private final long version = versions.incrementAndGet();
+        private long length = 0;
+
+        EntryWriter(final String query, final File queryDir, final BackendClient.Response backendResponse)
+                throws IOException {
+            this.query = query;
+            this.queryDir = queryDir;
+            this.backendResponse = backendResponse;
+
+            final String backendEncoding = backendResponse.getHeader(CONTENT_ENCODING);
+            final boolean compress = backendEncoding == null && compressed && isCompressible(backendResponse);
+
+            contentEncoding = compress ? GZIP : backendEncoding;
+            simple = contentEncoding == null && isSimple(queryDir, backendResponse);
+            resourceFile = simple ? queryDir : CacheMetadata.getBodyFile(queryDir, version);
+            tmpFile = log != null ? log.createTempFile() : createTempFile(resourceFile);
+
+            // the checksum and the length describe the body as it is stored
+            final OutputStream stored = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)),
+                    checksum);
+
+            out = compress ? new GZIPOutputStream(stored, 8192) : stored;
+        }
+
+        void discard() {
+            closeQuietly(out);
+            tmpFile.delete();
+        }
+
+        String getContentType() {
+            return simple ? getDefaultContentType(queryDir) : backendResponse.getHeader(CONTENT_TYPE);
+        }
+
+        /**
+         * @return the cookies in the order they are replayed from the cache
+         */
+        String[] getCookies() {
+            final List<String> cookies = backendResponse.getHeaders(SET_COOKIE);
+
+            if (cookies == null) {
+                return new String[0];
+            }
+
+            final int size = cookies.size();
+            final String[] replayed = new String[size];
+
+            for (int idx = 0; idx < size; idx++) {
+                replayed[idx] = cookies.get(size - idx - 1);
+            }
+
+            return replayed;
+        }
+
+        private CacheMetadata getMetadata() {
+            final String[] cookies = getCookies();
+            final Cookie[] parsed = new Cookie[cookies.length];
+
+            for (int idx = 0; idx < cookies.length; idx++) {
+                parsed[idx] = parseCookie(cookies[idx]);
+            }
+
+            final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(fetched,
+                    backendResponse.getHeader(ETAG), backendResponse.getHeader(LAST_MODIFIED),
+                    backendResponse.getHeader(CACHE_CONTROL));
+
+            return new CacheMetadata(query, backendResponse.getStatus(), getContentType(), contentEncoding, parsed,
+                    length, (int) checksum.getValue(), freshness, version);
+        }
+
+        void publish() throws IOException {
+            try {
+                out.close();
+                length = tmpFile.length();
+
+                if (memory != null) {
+                    memory.remove(query); // the entry may replace an expired one
+                }
+
+                if (log != null) {
+                    log.put(query, getMetadata(), tmpFile);
+                    tmpFile.delete();
+                    return;
+                }
+
+                if (index != null) {
+                    index.add(queryDir); // before the entry becomes visible, so it is never missed
+                }
+
+                final long previous = simple ? -1 : getBodyVersion(queryDir);
+
+                move(tmpFile, resourceFile);
+
+                if (!simple) {
+                    cacheMetadata(queryDir, getMetadata());
+                    removeBodies(queryDir, version, previous);
+                }
+
+                if (evictor != null) {
+                    evictor.recordWrite(queryDir, simple);
+                }
+            } catch (final IOException e) {
+                tmpFile.delete();
+                throw e;
+            }
+        }
+
+        void write(final byte[] buffer, final int off, final int len) throws IOException {
+            out.write(buffer, off, len);
+            metrics.recordBackendBytes(len);
+        }
+    }
+
+    /**
+     * A decoded metadata record together with the modification time of the file it was read from.
+     */
+    private static class Memo {
+        final long lastModified;
+        final CachedResponse response;
+        volatile boolean referenced = false;
+
+        Memo(final long lastModified, final CachedResponse response) {
+            this.lastModified = lastModified;
+            this.response = response;
+        }
+    }
+
     static abstract class CachedResponse {
+        /**
+         * @return the body, if the entry is not stored in a file of its own
+         */
+        ByteBuffer getContent() {
+            return null;
+        }
+
+        /**
+         * @return the encoding the body is stored in or {@literal null}, if it is stored as is
+         */
+        String getContentEncoding() {
+            final CacheMetadata metadata = getMetadata();
+
+            return metadata == null ? null : metadata.contentEncoding;
+        }
+
         abstract String getContentType();
 
         abstract Cookie[] getCookies();
 
+        /**
+         * @return when the entry was fetched, together with its validators
+         */
+        abstract CacheMetadata.Freshness getFreshness();
+
+        /**
+         * @return the metadata record of the entry or {@literal null}, if the entry does not have one
+         */
+        CacheMetadata getMetadata() {
+            return null;
+        }
+
+        /**
+         * @return the query the entry was fetched for or {@literal null}, if it is not known
+         */
+        String getQuery() {
+            return null;
+        }
+
+        /**
+         * @return the file holding the body or {@literal null}, if the body is returned by {@link #getContent()}
+         */
         abstract File getResource();
 
         abstract int getStatus();
@@ -68,10 +439,132 @@ public class CachingRESTProxy {
     private static final String ENCODING = System.getProperty("file.encoding");
     private static final String STATUS_PROPERTY = "status";
     private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String VARY = "Vary";
+    private static final String GZIP = "gzip";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
     private static final String CACHE = "cache";
     private static final String SERVER = "server";
     private static final String USE_SSL = "ssl";
     private static final String HELP = "help";
+    private static final String MEMORY = "memory";
+    private static final String DIRECT = "direct";
+    private static final String CONNECT_TIMEOUT = "connect-timeout";
+    private static final String READ_TIMEOUT = "read-timeout";
+    private static final String TIMEOUT = "timeout";
+    private static final String MAX_CONNECTIONS = "max-connections";
+    private static final String MAX_IN_FLIGHT = "max-in-flight";
+    private static final long DEFAULT_COALESCE_TIMEOUT = 30000;
+    private static final String ASYNC = "async";
+    private static final String LOG = "log";
+    private static final String HASHED_KEYS = "hashed-keys";
+    private static final String INDEX = "index";
+    private static final int INDEX_PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int MAX_MEMOIZED = 10000;
+
+    /**
+     * Versions of the bodies written by this process; seeded from the clock, so they keep increasing across restarts.
+     */
+    private static final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static final String DEFAULT_TTL = "ttl";
+    private static final String REFRESH_THREADS = "refresh-threads";
+    private static final String CLIENT_ERROR_TTL = "client-error-ttl";
+    private static final String SERVER_ERROR_TTL = "server-error-ttl";
+    private static final int MAX_QUEUED_REFRESHES = 1024;
+    private static final String MAX_DISK_BYTES = "max-disk-bytes";
+    private static final String MAX_DISK_ENTRIES = "max-disk-entries";
+    private static final String EVICTION = "eviction";
+    private static final String COMPRESS = "compress";
+    private static final String CACHEABLE_POST = "cacheable-post";
+    private static final String KEY_RULES = "key-rules";
+    private static final String WARM = "warm";
+    private static final String WARM_THREADS = "warm-threads";
+    private static final String WARM_RATE = "warm-rate";
+    private static final long WARM_REPORT_INTERVAL = 10000;
+    private static final String STATS = "stats";
+    private static final String DEFAULT_STATS_PATH = "/_stats";
+    private static final String BALANCE = "balance";
+    private static final String HEDGE = "hedge";
+    private static final String JSON = "application/json";
+    private static final String FETCH_FAILURE = CachingRESTProxy.class.getName() + ".failure";
+    private static final String ALLOW_STALE = CachingRESTProxy.class.getName() + ".stale";
+    private static final String FOLLOWED = CachingRESTProxy.class.getName() + ".followed";
+    private static final String REQUEST_BODY = CachingRESTProxy.class.getName() + ".body";
+    private static final String REQUEST_TIMER = CachingRESTProxy.class.getName() + ".timer";
+
+    /**
+     * @return {@literal true} if the {@literal Accept-Encoding} header of a request allows a particular encoding
+     */
+    static boolean accepts(final String acceptEncoding, final String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        final StringTokenizer izer = new StringTokenizer(acceptEncoding, ",");
+
+        while (izer.hasMoreTokens()) {
+            final String token = izer.nextToken();
+            final int semicolon = token.indexOf(';');
+            final String name = (semicolon == -1 ? token : token.substring(0, semicolon)).trim();
+
+            if (!name.equalsIgnoreCase(encoding) && !"*".equals(name)) {
+                continue;
+            }
+
+            if (semicolon == -1) {
+                return true;
+            }
+
+            final String param = token.substring(semicolon + 1).trim();
+
+            if (!param.startsWith("q=")) {
+                return true;
+            }
+
+            try {
+                return Float.parseFloat(param.substring(2)) > 0;
+            } catch (final NumberFormatException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private static void closeQuietly(final OutputStream out) {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.close();
+        } catch (final IOException e) {
+            // the client went away
+        }
+    }
+
+    private static File createTempFile(final File target) throws IOException {
+        final File dir = target.getParentFile();
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        return File.createTempFile(".fetch", ".tmp", dir);
+    }
+
+    /**
+     * @return a path or parameter name with every {@literal #} encoded
+     */
+    private static String escapeHash(final String value) {
+        return value.indexOf('#') == -1 ? value : value.replace("#", "%23");
+    }
 
     private static String getCookieKey(final int idx) {
         return SET_COOKIE + '.' + idx;
@@ -89,45 +582,39 @@ public class CachingRESTProxy {
         return ext == null ? DEFAULT_MIME_TYPE : mimeTypeByExtension.get(ext);
     }
 
+    private static File getMetadataFile(final File query) {
+        return new File(query, CacheMetadata.FILE_NAME);
+    }
+
     private static File getPropertiesFile(final File query) {
         return new File(query, ".prp");
     }
 
-    private static String getQuery(final String target, final HttpServletRequest request)
-            throws UnsupportedEncodingException {
-        final StringBuilder buf = new StringBuilder();
-
-        buf.append(target);
-
-        final Map<String, String[]> params = getSortedParameters(request);
-        final Set<Entry<String, String[]>> entries = params.entrySet();
-        boolean first = true;
-
-        for (final Entry<String, String[]> entry : entries) {
-            final String name = entry.getKey();
-            final String[] vals = entry.getValue();
-
-            for (final String val : vals) {
-                final String encoded = URLEncoder.encode(val, ENCODING);
+    /**
+     * @return the body read for the request or {@literal null}, if the response to the request is cached without it
+     */
+    private static RequestBody getRequestBody(final HttpServletRequest request) {
+        return (RequestBody) request.getAttribute(REQUEST_BODY);
+    }
 
-                if (first) {
-                    first = false;
-                    buf.append('?');
-                } else {
-                    buf.append('&');
-                }
+    /**
+     * @return the version of the body of an entry or {@literal -1}, if the directory holds no entry
+     */
+    private static long getBodyVersion(final File queryDir) {
+        final File metadataFile = getMetadataFile(queryDir);
 
-                buf.append(name);
-                buf.append('=');
-                buf.append(encoded);
-            }
+        try {
+            return CacheMetadata.read(metadataFile).version;
+        } catch (final IOException e) {
+            return getPropertiesFile(queryDir).exists() ? 0 : -1;
         }
-
-        return buf.toString();
     }
 
+    /**
+     * @return the body of an entry written by an earlier version, which is described by a properties file
+     */
     private static File getResourceFile(final File query) {
-        return new File(query, ".dmp");
+        return CacheMetadata.getBodyFile(query, 0);
     }
 
     private static Map<String, String[]> getSortedParameters(final HttpServletRequest request) {
@@ -159,14 +646,48 @@ public class CachingRESTProxy {
         final Options options = new Options();
 
         options.addOption("c", CACHE, true, "chache directory (mandatory!)");
-        options.addOption("s", SERVER, true, "server name and port number as server:port");
+        options.addOption("s", SERVER, true,
+                "backend as server:port or a comma-separated list of backends weighted as server:port=n");
         options.addOption("x", USE_SSL, false, "use ssl");
+        options.addOption("a", ASYNC, false, "handle misses asynchronously");
+        options.addOption("l", LOG, false, "store entries in append-only segment files inside the cache directory");
+        options.addOption("k", HASHED_KEYS, false, "store entries under a hash of the query");
+        options.addOption("i", INDEX, false, "index the cache directory at startup to answer misses from memory");
+        options.addOption("m", MEMORY, true, "size of the in-memory tier for hot entries in bytes");
+        options.addOption("d", DIRECT, false, "keep the in-memory tier off-heap");
+        options.addOption(null, DEFAULT_TTL, true,
+                "time to live in milliseconds of entries the backend did not give a max-age (default: forever)");
+        options.addOption(null, CLIENT_ERROR_TTL, true, "time to live in milliseconds of cached 4xx responses");
+        options.addOption(null, SERVER_ERROR_TTL, true, "time to live in milliseconds of cached 5xx responses");
+        options.addOption(null, REFRESH_THREADS, true,
+                "serve expired entries right away and refresh them in the background with this many threads");
+        options.addOption(null, MAX_DISK_BYTES, true, "maximum number of bytes stored in the cache directory");
+        options.addOption(null, MAX_DISK_ENTRIES, true, "maximum number of entries stored in the cache directory");
+        options.addOption(null, EVICTION, true, "order in which entries are evicted from disk: lru (default) or lfu");
+        options.addOption("z", COMPRESS, false, "store compressible entries gzip-compressed");
+        options.addOption(null, KEY_RULES, true, "file with the rules that normalize queries into cache keys");
+        options.addOption(null, CACHEABLE_POST, true,
+                "cache POST requests whose path matches this regular expression, keyed by a hash of the body");
+        options.addOption("w", WARM, true, "warm up the cache with the targets in this list or NCSA access log");
+        options.addOption(null, WARM_THREADS, true, "number of concurrent warm-up requests (default: 4)");
+        options.addOption(null, WARM_RATE, true, "maximum number of targets requested per second during warm-up");
+        options.addOption(null, STATS, false, "serve the metrics of the proxy as JSON at " + DEFAULT_STATS_PATH);
+        options.addOption(null, CONNECT_TIMEOUT, true, "backend connect timeout in milliseconds");
+        options.addOption(null, READ_TIMEOUT, true, "backend read timeout in milliseconds");
+        options.addOption(null, TIMEOUT, true, "total backend fetch timeout in milliseconds");
+        options.addOption(null, MAX_CONNECTIONS, true, "maximum number of pooled connections per backend");
+        options.addOption(null, MAX_IN_FLIGHT, true, "maximum number of concurrent backend fetches");
+        options.addOption(null, BALANCE, true,
+                "backend selection: least_outstanding (default), round_robin or consistent_hash");
+        options.addOption(null, HEDGE, true,
+                "hedge fetches slower than this percentile of the fetch times, such as 0.95 (default: off)");
         options.addOption("?", HELP, false, "display help");
 
         final CommandLine cli = parser.parse(options, args);
         final String server = cli.getOptionValue(SERVER);
         final String cache = cli.getOptionValue(CACHE);
         final boolean ssl = cli.hasOption(USE_SSL);
+        final String memory = cli.getOptionValue(MEMORY);
 
         if (cli.hasOption(HELP) || cache == null) {
             formatter.printHelp(CachingRESTProxy.class.getName(), options);
@@ -175,154 +696,330 @@ public class CachingRESTProxy {
 
         final CachingRESTProxy proxy = new CachingRESTProxy(ssl, server, new File(cache));
 
-        proxy.start();
-    }
+        proxy.setAsync(cli.hasOption(ASYNC));
+        proxy.setHashedKeys(cli.hasOption(HASHED_KEYS));
+        proxy.setIndexed(cli.hasOption(INDEX));
+        proxy.setCompressed(cli.hasOption(COMPRESS));
 
-    private final WebServerEmulator server;
-    private final File cache;
+        if (cli.hasOption(STATS)) {
+            proxy.setStatsPath(DEFAULT_STATS_PATH);
+        }
 
-    private final boolean ssl;
+        if (cli.hasOption(KEY_RULES)) {
+            proxy.setKeyNormalizer(KeyNormalizer.load(new File(cli.getOptionValue(KEY_RULES))));
+        }
 
-    private final String backend;
+        final String[] cacheablePosts = cli.getOptionValues(CACHEABLE_POST);
 
-    /**
-     * Create a new proxy.
-     * 
-     * @param ssl
-     *            {@literal true} to indicate that the server uses SSL.
-     * @param server
-     *            the server name and password
-     * @param cache
-     *            the cache
-     */
-    public CachingRESTProxy(final boolean ssl, final String server, final File cache) {
-        backend = server;
-        this.ssl = ssl;
-        this.cache = cache;
-        this.server = ssl ? new SecureWebServerEmulator() {
-            @Override
-            protected void handle(final String target, final HttpServletRequest request,
-                    final HttpServletResponse response) throws IOException, ServletException {
-                CachingRESTProxy.this.handle(target, request, response);
-            }
-        } : new WebServerEmulator() {
-            @Override
-            protected void handle(final String target, final HttpServletRequest request,
-                    final HttpServletResponse response) throws IOException, ServletException {
-                CachingRESTProxy.this.handle(target, request, response);
+        if (cacheablePosts != null) {
+            for (final String pattern : cacheablePosts) {
+                proxy.addCacheableMethod("POST", pattern);
             }
-        };
-    }
+        }
 
-    private void cacheResponse(final File queryDir, final HttpURLConnection connection, final InputStream in)
-            throws IOException, FileNotFoundException {
-        final String contentType = connection.getHeaderField(CONTENT_TYPE);
-        final int code = connection.getResponseCode();
-        final String defaultContentType = getDefaultContentType(queryDir);
-        final Map<String, List<String>> fields = connection.getHeaderFields();
-        final Collection<String> cookies = fields.get(SET_COOKIE);
-        final boolean simple = code == SC_OK && equalsContentType(defaultContentType, contentType) && isEmpty(cookies);
-        final File resourceFile = simple ? queryDir : getResourceFile(queryDir);
+        if (cli.hasOption(DEFAULT_TTL)) {
+            proxy.setDefaultTtl(Long.parseLong(cli.getOptionValue(DEFAULT_TTL)));
+        }
 
-        copy(in, resourceFile);
+        if (cli.hasOption(CLIENT_ERROR_TTL) || cli.hasOption(SERVER_ERROR_TTL)) {
+            final long clientErrorTtl = Long.parseLong(cli.getOptionValue(CLIENT_ERROR_TTL, "0"));
+            final long serverErrorTtl = Long.parseLong(cli.getOptionValue(SERVER_ERROR_TTL, "0"));
 
-        if (simple) {
-            return;
+            proxy.setErrorTtl(clientErrorTtl, serverErrorTtl);
         }
 
-        final Properties prps = new Properties();
+        if (cli.hasOption(REFRESH_THREADS)) {
+            final int threads = Integer.parseInt(cli.getOptionValue(REFRESH_THREADS));
 
-        if (contentType != null) {
-            prps.put(CONTENT_TYPE, contentType);
+            proxy.setRefresher(new CacheRefresher(threads, MAX_QUEUED_REFRESHES));
         }
 
-        if (cookies != null) {
-            int idx = 0;
+        if (cli.hasOption(MAX_DISK_BYTES) || cli.hasOption(MAX_DISK_ENTRIES)) {
+            final long maxBytes = Long.parseLong(cli.getOptionValue(MAX_DISK_BYTES, "0"));
+            final int maxEntries = Integer.parseInt(cli.getOptionValue(MAX_DISK_ENTRIES, "0"));
+            final String policy = cli.getOptionValue(EVICTION, CacheEvictor.Policy.LRU.name());
 
-            for (final String cookie : cookies) {
-                final String key = getCookieKey(idx++);
+            proxy.setDiskQuota(maxBytes, maxEntries, CacheEvictor.Policy.valueOf(policy.toUpperCase()));
+        }
 
-                prps.put(key, cookie);
-            }
+        if (cli.hasOption(LOG)) {
+            proxy.setSegmentLog(new SegmentLogStore(new File(cache)));
         }
 
-        prps.put(STATUS_PROPERTY, Integer.toString(code));
+        if (memory != null) {
+            final long maxBytes = Long.parseLong(memory);
+            final boolean direct = cli.hasOption(DIRECT);
 
-        final File propertiesFile = getPropertiesFile(queryDir);
-        final OutputStream out = new FileOutputStream(propertiesFile);
+            proxy.setMemoryCache(new MemoryCache(maxBytes, direct));
+        }
 
-        try {
-            prps.store(out, "gerated by " + CachingRESTProxy.class);
-        } finally {
-            out.close();
+        final BackendClient client = proxy.getBackendClient();
+
+        if (cli.hasOption(CONNECT_TIMEOUT)) {
+            client.setConnectTimeout(Integer.parseInt(cli.getOptionValue(CONNECT_TIMEOUT)));
         }
-    }
 
-    private boolean cacheResponse(final String query, final File queryDir, final HttpServletRequest request)
-            throws IOException {
-        if (backend == null) {
-            return false;
+        if (cli.hasOption(READ_TIMEOUT)) {
+            client.setReadTimeout(Long.parseLong(cli.getOptionValue(READ_TIMEOUT)));
         }
 
-        final String protocol = ssl ? "https" : "http";
-        final String _url = protocol + "://" + backend + query;
-        final URL url = new URL(_url);
-        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        final Cookie[] cookies = request.getCookies();
+        if (cli.hasOption(TIMEOUT)) {
+            client.setTimeout(Long.parseLong(cli.getOptionValue(TIMEOUT)));
+        }
 
-        if (cookies != null) {
-            final StringBuilder cookieVal = new StringBuilder();
+        if (cli.hasOption(MAX_CONNECTIONS)) {
+            client.setMaxConnections(Integer.parseInt(cli.getOptionValue(MAX_CONNECTIONS)));
+        }
 
-            for (final Cookie cookie : cookies) {
-                final String value = cookie.getValue();
-                final String name = cookie.getName();
+        if (cli.hasOption(MAX_IN_FLIGHT)) {
+            client.setMaxInFlight(Integer.parseInt(cli.getOptionValue(MAX_IN_FLIGHT)));
+        }
 
-                cookieVal.append(name);
-                cookieVal.append('=');
-                cookieVal.append(value);
-                cookieVal.append(';');
-            }
+        final BackendPool backends = proxy.getBackendPool();
 
-            connection.setRequestProperty("Cookie", cookieVal.toString());
+        if (backends != null && cli.hasOption(BALANCE)) {
+            backends.setPolicy(BackendPool.Policy.valueOf(cli.getOptionValue(BALANCE).toUpperCase()));
         }
 
-        final InputStream in = connection.getInputStream();
+        if (backends != null && cli.hasOption(HEDGE)) {
+            backends.setHedgePercentile(Double.parseDouble(cli.getOptionValue(HEDGE)));
+        }
 
-        try {
-            cacheResponse(queryDir, connection, in);
-        } finally {
-            in.close();
+        proxy.start();
+
+        final CacheIndex index = proxy.getIndex();
+
+        if (index != null) {
+            System.out.println(index);
         }
 
-        return true;
+        final String warm = cli.getOptionValue(WARM);
+
+        if (warm != null) {
+            final int threads = Integer.parseInt(cli.getOptionValue(WARM_THREADS, "4"));
+            final double rate = Double.parseDouble(cli.getOptionValue(WARM_RATE, "0"));
+            final CacheWarmer warmer = proxy.createWarmer(threads, rate);
+
+            warmer.warm(CacheWarmer.readTargets(new File(warm)), System.out, WARM_REPORT_INTERVAL);
+
+            for (final String failure : warmer.getFailed()) {
+                System.out.println("failed: " + failure);
+            }
+        }
     }
 
-    private void copy(final InputStream in, final File resource) throws IOException {
-        final File dir = resource.getParentFile();
+    /**
+     * Remove the bodies of an entry that have been superseded. The body that was replaced just now is kept, as readers
+     * that looked up the entry a moment ago may still be about to open it; it is removed once the entry is replaced
+     * again or by the {@link CacheSweeper} at the next start.
+     */
+    private static void removeBodies(final File queryDir, final long current, final long previous) {
+        final File[] children = queryDir.listFiles();
 
-        if (!dir.exists()) {
-            dir.mkdirs();
+        if (children == null) {
+            return;
+        }
+
+        final String _current = CacheMetadata.getBodyFile(queryDir, current).getName();
+        final String _previous = previous < 0 ? null : CacheMetadata.getBodyFile(queryDir, previous).getName();
+
+        for (final File child : children) {
+            final String name = child.getName();
+
+            if (CacheMetadata.isBodyFile(name) && !name.equals(_current) && !name.equals(_previous)) {
+                child.delete();
+            }
         }
+    }
+
+    private static void move(final File source, final File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
 
-        final OutputStream out = new BufferedOutputStream(new FileOutputStream(resource));
+    /**
+     * Write to the client, giving up on the client (but not on the cache entry) if it went away.
+     * 
+     * @return the stream to use for the next write or {@literal null} if the client went away
+     */
+    private static OutputStream writeQuietly(final OutputStream out, final byte[] buffer, final int off, final int len) {
+        if (out == null) {
+            return null;
+        }
 
         try {
-            final byte[] buffer = new byte[65535];
+            out.write(buffer, off, len);
+            out.flush(); // pass on what the backend sent so far instead of holding it in the response buffer
 
-            for (;;) {
-                final int read = in.read(buffer);
+            return out;
+        } catch (final IOException e) {
+            closeQuietly(out);
 
-                if (read == -1) {
-                    break;
-                }
+            return null;
+        }
+    }
+
+    private final WebServerEmulator server;
+    private final boolean ssl;
+    private final File cache;
+
+    private final BackendPool backends;
+
+    private final BackendClient client;
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    private long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+
+    private MemoryCache memory = null;
+
+    private boolean async = false;
+
+    private SegmentLogStore log = null;
+
+    private boolean hashedKeys = false;
+
+    private CacheIndex index = null;
+
+    private long defaultTtl = 0;
+
+    private long clientErrorTtl = 0;
+
+    private long serverErrorTtl = 0;
+
+    private CacheRefresher refresher = null;
+
+    private CacheEvictor evictor = null;
+
+    private boolean compressed = false;
+
+    private final Map<String, List<Pattern>> cacheableMethods = new HashMap<String, List<Pattern>>();
+
+    private KeyNormalizer normalizer = null;
+
+    private final ProxyMetrics metrics;
+
+    private String statsPath = null;
+
+    private ObjectName objectName = null;
+
+    private final ConcurrentMap<File, Memo> memos = new ConcurrentHashMap<File, Memo>();
+
+    private final Queue<File> memoClock = new ConcurrentLinkedQueue<File>();
 
-                out.write(buffer, 0, read);
+    /**
+     * Create a new proxy.
+     * 
+     * @param ssl
+     *            {@literal true} to indicate that the server uses SSL.
+     * @param server
+     *            the backend as {@literal host:port}, a comma-separated list of backends (see
+     *            {@link BackendPool#parse(String)}) or {@literal null} to serve from the cache only
+     * @param cache
+     *            the cache
+     */
+    public CachingRESTProxy(final boolean ssl, final String server, final File cache) {
+        backends = server == null ? null : BackendPool.parse(server);
+        this.ssl = ssl;
+        client = new BackendClient(ssl);
+        metrics = new ProxyMetrics(client);
+        this.cache = cache;
+        this.server = ssl ? new SecureWebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                CachingRESTProxy.this.handle(target, request, response);
+            }
+        } : new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                CachingRESTProxy.this.handle(target, request, response);
             }
+        };
+    }
+
+    /**
+     * Cache the responses to requests that carry a body, such as JSON-RPC calls or searches sent as {@literal POST}.
+     * The body is hashed while it is read and the hash becomes part of the cache key, so requests with the same target,
+     * parameters and body share an entry. Large bodies are spooled to a temporary file instead of being buffered; on a
+     * miss the body is forwarded to the backend using the method of the request. Such entries are never refreshed in
+     * the background, since the body is only known while the request is handled. Requests with other methods or
+     * targets are handled as before. Patterns have to be added before the proxy is started.
+     * 
+     * @param method
+     *            the method, such as {@literal POST} or {@literal PUT}
+     * @param pattern
+     *            a regular expression the whole target of the request has to match
+     */
+    public void addCacheableMethod(final String method, final String pattern) {
+        final String _method = method.toUpperCase();
+        List<Pattern> patterns = cacheableMethods.get(_method);
+
+        if (patterns == null) {
+            patterns = new ArrayList<Pattern>();
+            cacheableMethods.put(_method, patterns);
+        }
+
+        patterns.add(Pattern.compile(pattern));
+    }
+
+    private void addValidators(final Map<String, String> headers, final CacheMetadata.Freshness freshness) {
+        if (freshness.etag != null) {
+            headers.put(IF_NONE_MATCH, freshness.etag);
+        }
+
+        if (freshness.lastModified != null) {
+            headers.put(IF_MODIFIED_SINCE, freshness.lastModified);
+        }
+    }
+
+    private void cacheMetadata(final File queryDir, final CacheMetadata metadata) throws IOException {
+        final File metadataFile = getMetadataFile(queryDir);
+        final File tmpFile = createTempFile(metadataFile);
+
+        try {
+            metadata.write(tmpFile);
+            move(tmpFile, metadataFile);
         } finally {
-            out.close();
+            tmpFile.delete();
+        }
+
+        getPropertiesFile(queryDir).delete(); // written by an earlier version
+        forget(queryDir);
+    }
+
+    private void checkStatus(final String query, final BackendClient.Response backendResponse) throws IOException {
+        final int status = backendResponse.getStatus();
+
+        if (!isCacheable(status)) {
+            throw new IOException("backend returned " + status + " for " + query);
         }
     }
 
+    /**
+     * Complete a suspended request that has been answered.
+     */
+    private void complete(final Continuation continuation) {
+        finish(continuation);
+        continuation.complete();
+    }
+
+    /**
+     * Create a warmer that requests targets from this proxy, so they are fetched into the cache through the normal
+     * caching path. The proxy has to be started before the warmer is used.
+     * 
+     * @param threads
+     *            the number of targets requested concurrently
+     * @param rate
+     *            the maximum number of targets requested per second or {@literal 0} for no limit
+     * @return the warmer
+     * @see CacheWarmer
+     */
+    public CacheWarmer createWarmer(final int threads, final double rate) {
+        return new CacheWarmer(ssl, getName(), threads, rate);
+    }
+
     private boolean equalsContentType(final String type1, final String type2) {
         if (type1 == null) {
             return type2 == null;
@@ -334,6 +1031,101 @@ public class CachingRESTProxy {
         return _type1.equals(_type2);
     }
 
+    /**
+     * Fetch a missing entry and stream it to the client. If the backend cannot be reached, an expired entry is served,
+     * if there is one, and an error otherwise; the error is recorded on the flight, so its followers answer with it
+     * rather than each trying the backend again. A response that is not cached lands the flight right away, so its
+     * followers fetch the response for themselves instead of waiting for it.
+     * 
+     * @param flight
+     *            the flight led by the request or {@literal null}, if it does not lead one
+     */
+    private void fetch(final String query, final String uri, final File queryDir, final HttpServletRequest request,
+            final HttpServletResponse response, final RequestCoalescer.Flight flight) throws IOException {
+        final BackendClient.Response backendResponse;
+
+        try {
+            backendResponse = client.fetch(backends, query, uri, getBackendHeaders(request), getRequestBody(request));
+        } catch (final BackendClient.SaturatedException e) {
+            throw e;
+        } catch (final IOException e) {
+            final int status = e instanceof SocketTimeoutException ? SC_GATEWAY_TIMEOUT : SC_BAD_GATEWAY;
+
+            if (flight != null) {
+                flight.fail(status);
+            }
+
+            if (!handleCachedResponse(query, queryDir, request, response, true)) {
+                sendError(response, status);
+            }
+
+            return;
+        }
+
+        if (flight != null && !isCacheable(backendResponse.getStatus())) {
+            flight.passThrough();
+            coalescer.land(query, flight);
+        }
+
+        streamResponse(query, queryDir, backendResponse, response);
+    }
+
+    /**
+     * Stop timing a request that has been answered and delete its spooled body. Does nothing if this has been done
+     * already.
+     */
+    private void finish(final Continuation continuation) {
+        final ProxyMetrics.Timer timer = (ProxyMetrics.Timer) continuation.getAttribute(REQUEST_TIMER);
+        final RequestBody body = (RequestBody) continuation.getAttribute(REQUEST_BODY);
+
+        if (timer != null) {
+            timer.stop();
+        }
+
+        if (body != null) {
+            body.discard();
+        }
+    }
+
+    private void forget(final File queryDir) {
+        if (memos.remove(queryDir) != null) {
+            memoClock.remove(queryDir);
+        }
+    }
+
+    private Map<String, String> getBackendHeaders(final HttpServletRequest request) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        final Cookie[] cookies = request.getCookies();
+
+        if (cookies != null) {
+            final StringBuilder cookieVal = new StringBuilder();
+
+            for (final Cookie cookie : cookies) {
+                final String value = cookie.getValue();
+                final String name = cookie.getName();
+
+                cookieVal.append(name);
+                cookieVal.append('=');
+                cookieVal.append(value);
+                cookieVal.append(';');
+            }
+
+            headers.put("Cookie", cookieVal.toString());
+        }
+
+        final String contentType = request.getContentType();
+
+        if (contentType != null && getRequestBody(request) != null) {
+            headers.put(CONTENT_TYPE, contentType);
+        }
+
+        if (compressed && accepts(request.getHeader(ACCEPT_ENCODING), GZIP)) {
+            headers.put(ACCEPT_ENCODING, GZIP); // the body can be passed on and stored as it is
+        }
+
+        return headers;
+    }
+
     private String getBaseContentType(final String type) {
         final int idx = type.indexOf(';');
 
@@ -344,7 +1136,78 @@ public class CachingRESTProxy {
         return type.substring(0, idx);
     }
 
+    CachedResponse getCached(final String query, final File queryDir) throws IOException {
+        if (log == null) {
+            final CachedResponse cached = getCached(queryDir);
+
+            if (hashedKeys && cached != null && !query.equals(cached.getQuery())) {
+                return null; // a hash collision; the entry will be replaced by the one for this query
+            }
+
+            return cached;
+        }
+
+        final SegmentLogStore.Entry entry = log.get(query);
+
+        if (entry == null) {
+            return null;
+        }
+
+        return new CachedResponse() {
+            @Override
+            ByteBuffer getContent() {
+                return entry.getBody();
+            }
+
+            @Override
+            String getContentType() {
+                return entry.getContentType();
+            }
+
+            @Override
+            Cookie[] getCookies() {
+                return entry.getCookies();
+            }
+
+            @Override
+            CacheMetadata.Freshness getFreshness() {
+                return entry.getMetadata().freshness;
+            }
+
+            @Override
+            CacheMetadata getMetadata() {
+                return entry.getMetadata();
+            }
+
+            @Override
+            File getResource() {
+                return null;
+            }
+
+            @Override
+            int getStatus() {
+                return entry.getStatus();
+            }
+        };
+    }
+
+    /**
+     * Look up an entry in the directory tree. Decoded metadata records are memoized and only read again once the record
+     * was replaced. Entries that still have a properties file written by an earlier version are migrated to a metadata
+     * record the first time they are read.
+     */
     private CachedResponse getCached(final File query) throws IOException {
+        if (index != null && !index.mightContain(query)) {
+            return null;
+        }
+
+        final File metadataFile = getMetadataFile(query);
+        final long lastModified = metadataFile.lastModified();
+
+        if (lastModified != 0) {
+            return getRecorded(query, metadataFile, lastModified);
+        }
+
         if (!query.exists()) {
             return null;
         }
@@ -361,7 +1224,13 @@ public class CachingRESTProxy {
         }
 
         final File resourceFile = getResourceFile(query);
-        final InputStream in = new FileInputStream(propertiesFile);
+        final InputStream in;
+
+        try {
+            in = new FileInputStream(propertiesFile);
+        } catch (final FileNotFoundException e) {
+            return metadataFile.exists() ? getCached(query) : null; // migrated underneath us
+        }
 
         try {
             prps.load(in);
@@ -369,15 +1238,48 @@ public class CachingRESTProxy {
             in.close();
         }
 
+        final String status = prps.getProperty(STATUS_PROPERTY);
+        final String contentType = prps.getProperty(CONTENT_TYPE);
+        final Cookie[] cookies = getCookies(prps);
+        final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(resourceFile.lastModified(), null, null,
+                null);
+        final CacheMetadata metadata = new CacheMetadata(null, Integer.parseInt(status), contentType, null, cookies,
+                resourceFile.length(), CacheMetadata.checksum(resourceFile), freshness);
+
+        try {
+            cacheMetadata(query, metadata);
+        } catch (final IOException e) {
+            // the cache may be read-only; keep serving the entry from the properties file
+        }
+
+        return getCachedResponse(metadata, resourceFile);
+    }
+
+    private CachedResponse getCachedResponse(final CacheMetadata metadata, final File resourceFile) {
         return new CachedResponse() {
             @Override
             String getContentType() {
-                return prps.getProperty(CONTENT_TYPE);
+                return metadata.contentType;
             }
 
             @Override
             Cookie[] getCookies() {
-                return CachingRESTProxy.this.getCookies(prps);
+                return metadata.cookies;
+            }
+
+            @Override
+            CacheMetadata.Freshness getFreshness() {
+                return metadata.freshness;
+            }
+
+            @Override
+            CacheMetadata getMetadata() {
+                return metadata;
+            }
+
+            @Override
+            String getQuery() {
+                return metadata.query;
             }
 
             @Override
@@ -387,9 +1289,7 @@ public class CachingRESTProxy {
 
             @Override
             int getStatus() {
-                final String status = prps.getProperty(STATUS_PROPERTY);
-
-                return Integer.parseInt(status);
+                return metadata.status;
             }
         };
     }
@@ -419,7 +1319,15 @@ public class CachingRESTProxy {
         return cookies.toArray(new Cookie[size]);
     }
 
-    private File getDirectory(final String query) {
+    File getDirectory(final String query) {
+        if (hashedKeys) {
+            final String hash = QueryHash.hash(query);
+            final File level1 = new File(cache, hash.substring(0, 2));
+            final File level2 = new File(level1, hash.substring(2, 4));
+
+            return new File(level2, hash);
+        }
+
         File file = cache;
         final StringTokenizer izer = new StringTokenizer(query, "/");
 
@@ -433,34 +1341,198 @@ public class CachingRESTProxy {
     }
 
     /**
-     * @return the host name
-     * @see WebServerEmulator#getHostName()
+     * @return the client used to fetch missing entries from the backend; settings have to be made before the proxy is
+     *         started
      */
-    public String getHostName() {
-        return server.getHostName();
+    public BackendClient getBackendClient() {
+        return client;
     }
 
     /**
-     * @return the server name
-     * @see WebServerEmulator#getName()
+     * @return the backends missing entries are fetched from or {@literal null}, if the proxy serves from the cache
+     *         only
      */
-    public String getName() {
-        return server.getName();
+    public BackendPool getBackendPool() {
+        return backends;
     }
 
     /**
-     * @return the listen port
-     * @see WebServerEmulator#getPort()
+     * @return the evictor keeping the cache directory within its quota or {@literal null}, if there is no quota
      */
-    public int getPort() {
-        return server.getPort();
+    public CacheEvictor getEvictor() {
+        return evictor;
     }
 
-    private CachedResponse getSimpleResponse(final File query) {
-        return new CachedResponse() {
-            @Override
-            String getContentType() {
-                return getDefaultContentType(query);
+    /**
+     * @return the time to live of a cached error response with the given status or {@literal 0}, if such responses
+     *         are not cached
+     */
+    private long getErrorTtl(final int status) {
+        if (status >= 500) {
+            return serverErrorTtl;
+        }
+
+        return status >= 400 ? clientErrorTtl : 0;
+    }
+
+    /**
+     * @return the time an entry expires; error responses expire after the time to live of their status class, or
+     *         earlier if the backend said so
+     */
+    private long getExpires(final CachedResponse cached) {
+        final CacheMetadata.Freshness freshness = cached.getFreshness();
+        final int status = cached.getStatus();
+
+        if (status < 400) {
+            return freshness.getExpires(defaultTtl);
+        }
+
+        return Math.min(freshness.getExpires(0), freshness.fetched + getErrorTtl(status));
+    }
+
+    /**
+     * @return the host name
+     * @see WebServerEmulator#getHostName()
+     */
+    public String getHostName() {
+        return server.getHostName();
+    }
+
+    /**
+     * @return the server name
+     * @see WebServerEmulator#getName()
+     */
+    public String getName() {
+        return server.getName();
+    }
+
+    /**
+     * @return the index of the cache directory or {@literal null}, if the proxy does not keep one
+     */
+    public CacheIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the in-memory tier or {@literal null}, if hot entries are only served from disk
+     */
+    public MemoryCache getMemoryCache() {
+        return memory;
+    }
+
+    /**
+     * @return the metrics of the proxy
+     */
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Build the cache key of a request from its target and its sorted parameters, after applying the normalization
+     * rules of the proxy, if there are any.
+     */
+    String getQuery(final String target, final HttpServletRequest request)
+            throws UnsupportedEncodingException {
+        final KeyNormalizer.Route route = normalizer == null ? null : normalizer.getRoute(target);
+        final StringBuilder buf = new StringBuilder();
+
+        // a decoded '#' is sent on encoded, so it cannot separate a query from the request body in the cache key
+        buf.append(escapeHash(route == null ? target : route.normalizePath(target)));
+
+        final Map<String, String[]> sorted = getSortedParameters(request);
+        final Map<String, String[]> params = route == null ? sorted : route.normalizeParameters(sorted);
+        final Set<Entry<String, String[]>> entries = params.entrySet();
+        boolean first = true;
+
+        for (final Entry<String, String[]> entry : entries) {
+            final String name = entry.getKey();
+            final String[] vals = entry.getValue();
+
+            for (final String val : vals) {
+                final String encoded = URLEncoder.encode(val, ENCODING);
+
+                if (first) {
+                    first = false;
+                    buf.append('?');
+                } else {
+                    buf.append('&');
+                }
+
+                buf.append(escapeHash(name));
+                buf.append('=');
+                buf.append(encoded);
+            }
+        }
+
+        return buf.toString();
+    }
+
+    private CachedResponse getRecorded(final File query, final File metadataFile, final long lastModified)
+            throws IOException {
+        final Memo memo = memos.get(query);
+
+        if (memo != null && memo.lastModified == lastModified) {
+            if (!memo.response.getResource().isFile()) {
+                forget(query);
+                return null; // the record names a body that has been removed underneath us
+            }
+
+            if (!memo.referenced) {
+                memo.referenced = true;
+            }
+
+            return memo.response;
+        }
+
+        final CacheMetadata metadata;
+
+        try {
+            metadata = CacheMetadata.read(metadataFile);
+        } catch (final FileNotFoundException e) {
+            return null; // removed underneath us
+        }
+
+        final File bodyFile = metadata.getBodyFile(query);
+
+        if (!bodyFile.isFile()) {
+            return null; // removed underneath us; not memoized, as the writer may not have finished yet
+        }
+
+        final CachedResponse response = getCachedResponse(metadata, bodyFile);
+
+        memoize(query, new Memo(lastModified, response));
+
+        return response;
+    }
+
+    /**
+     * @return the refresher expired entries are refreshed by in the background or {@literal null}, if expired entries
+     *         are refreshed by the request that finds them
+     */
+    public CacheRefresher getRefresher() {
+        return refresher;
+    }
+
+    /**
+     * @return the segment log entries are stored in or {@literal null}, if they are stored in a directory tree
+     */
+    public SegmentLogStore getSegmentLog() {
+        return log;
+    }
+
+    /**
+     * @return the listen port
+     * @see WebServerEmulator#getPort()
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    private CachedResponse getSimpleResponse(final File query) {
+        return new CachedResponse() {
+            @Override
+            String getContentType() {
+                return getDefaultContentType(query);
             }
 
             @Override
@@ -468,6 +1540,11 @@ public class CachingRESTProxy {
                 return null;
             }
 
+            @Override
+            CacheMetadata.Freshness getFreshness() {
+                return new CacheMetadata.Freshness(query.lastModified(), null, null, null);
+            }
+
             @Override
             File getResource() {
                 return query;
@@ -488,24 +1565,271 @@ public class CachingRESTProxy {
      */
     protected void handle(final String target, final HttpServletRequest request, final HttpServletResponse response)
             throws IOException {
-        final String query = getQuery(target, request);
+        if (target.equals(statsPath)) {
+            respondStats(response);
+            return;
+        }
+
+        final Continuation continuation = ContinuationSupport.getContinuation(request);
+
+        if (continuation.getAttribute(REQUEST_TIMER) == null) {
+            continuation.setAttribute(REQUEST_TIMER, metrics.start()); // not again when a suspended request resumes
+        }
+
+        try {
+            final RequestBody body = readRequestBody(target, request); // before the parameters may consume it
+            final String uri = getQuery(target, request);
+
+            handleQuery(body == null ? uri : uri + '#' + body.getMethod() + '-' + body.getHash(), uri, request,
+                    response);
+        } catch (final IOException e) {
+            metrics.recordError();
+            throw e;
+        } finally {
+            if (!continuation.isSuspended()) {
+                finish(continuation); // suspended requests need the body until they are resumed or completed
+            }
+        }
+    }
+
+    /**
+     * @param query
+     *            the cache key
+     * @param uri
+     *            the query sent to the backend, which is the cache key without the hash of a request body
+     */
+    private void handleQuery(final String query, final String uri, final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
         final File queryDir = getDirectory(query);
 
-        while (!handleCachedResponse(queryDir, response)) {
-            if (!cacheResponse(query, queryDir, request)) {
+        if (async && backends != null) {
+            handleAsync(query, uri, queryDir, request, response);
+            return;
+        }
+
+        boolean allowStale = backends == null;
+        RequestCoalescer.Flight followed = null;
+
+        while (!handleCachedResponse(query, queryDir, request, response, allowStale)) {
+            if (backends == null) {
+                metrics.recordMiss();
                 response.setStatus(SC_NOT_FOUND);
                 return;
             }
+
+            if (followed != null && followed.isPassedThrough()) {
+                try {
+                    fetch(query, uri, queryDir, request, response, null); // nothing is cached, so nobody has to wait
+                } catch (final BackendClient.SaturatedException e) {
+                    sendError(response, SC_SERVICE_UNAVAILABLE);
+                }
+
+                return;
+            }
+
+            if (followed != null && followed.getFailure() != 0) {
+                sendError(response, followed.getFailure()); // the backend just failed the leader
+                return;
+            }
+
+            // only one request per query talks to the backend at any one time; all concurrent requests for the same
+            // query wait for that fetch to complete and are then served from the cache entry it produced
+            final RequestCoalescer.Flight flight = coalescer.lead(query);
+
+            if (flight == null) {
+                metrics.recordCoalesced();
+                followed = coalescer.get(query);
+
+                if (followed != null && !followed.await(coalesceTimeout)) {
+                    sendError(response, SC_GATEWAY_TIMEOUT);
+                    return;
+                }
+
+                allowStale = true; // the leader either refreshed the entry or could not reach the backend
+                continue;
+            }
+
+            try {
+                final CachedResponse cached = getCached(query, queryDir);
+
+                if (cached == null) {
+                    fetch(query, uri, queryDir, request, response, flight);
+                    return;
+                }
+
+                if (!isExpired(cached) || !revalidate(query, uri, queryDir, cached, request, response)) {
+                    allowStale = true; // another leader landed in the meantime or the entry is still valid
+                    continue;
+                }
+
+                return;
+            } catch (final BackendClient.SaturatedException e) {
+                flight.fail(SC_SERVICE_UNAVAILABLE);
+                sendError(response, SC_SERVICE_UNAVAILABLE);
+                return;
+            } finally {
+                coalescer.land(query, flight);
+            }
+        }
+    }
+
+    /**
+     * Handle a request without ever blocking on the backend. Misses suspend the request; it is resumed (and
+     * re-dispatched to this method) once the entry has been fetched, so server threads only ever serve from the cache.
+     */
+    private void handleAsync(final String query, final String uri, final File queryDir,
+            final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final Continuation continuation = ContinuationSupport.getContinuation(request);
+        final boolean allowStale = continuation.getAttribute(ALLOW_STALE) != null;
+
+        if (handleCachedResponse(query, queryDir, request, response, allowStale)) {
+            return;
+        }
+
+        final Integer failure = (Integer) continuation.getAttribute(FETCH_FAILURE);
+
+        if (failure != null) {
+            sendError(response, failure.intValue());
+            return;
+        }
+
+        final RequestCoalescer.Flight followed = (RequestCoalescer.Flight) continuation.getAttribute(FOLLOWED);
+
+        if (followed != null && followed.getFailure() != 0) {
+            sendError(response, followed.getFailure()); // the backend just failed the leader
+            return;
+        }
+
+        if (continuation.isExpired()) {
+            sendError(response, SC_GATEWAY_TIMEOUT);
+            return;
+        }
+
+        final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                resume(continuation);
+            }
+        };
+        // a response that is not cached is fetched by every request, under a flight of its own nobody follows
+        final RequestCoalescer.Flight flight = followed != null && followed.isPassedThrough()
+                ? new RequestCoalescer.Flight() : coalescer.lead(query);
+
+        if (flight == null) {
+            final RequestCoalescer.Flight leading = coalescer.get(query);
+
+            metrics.recordCoalesced();
+            continuation.setAttribute(ALLOW_STALE, Boolean.TRUE);
+            continuation.setAttribute(FOLLOWED, leading);
+            continuation.setTimeout(coalesceTimeout);
+            continuation.suspend();
+
+            if (leading == null) {
+                resume.run(); // the flight landed before we could follow it
+            } else {
+                leading.addListener(resume);
+            }
+
+            return;
+        }
+
+        continuation.setTimeout(client.getTimeout() + coalesceTimeout);
+        continuation.suspend();
+
+        final CachedResponse cached = getCached(query, queryDir);
+
+        if (cached != null && !isExpired(cached)) {
+            coalescer.land(query, flight); // another leader landed between our cache lookup and our take-off
+            resume.run();
+            return;
+        }
+
+        final Map<String, String> headers = getBackendHeaders(request);
+
+        if (cached != null) {
+            addValidators(headers, cached.getFreshness());
+        }
+
+        try {
+            client.fetch(backends, query, uri, headers, getRequestBody(request), new AsyncFetch(query,
+                    queryDir, cached, flight, continuation, response));
+        } catch (final IOException e) {
+            if (cached != null) {
+                continuation.setAttribute(ALLOW_STALE, Boolean.TRUE); // serve the expired entry
+            }
+
+            final int status = e instanceof BackendClient.SaturatedException ? SC_SERVICE_UNAVAILABLE
+                    : SC_BAD_GATEWAY;
+
+            continuation.setAttribute(FETCH_FAILURE, Integer.valueOf(status));
+            flight.fail(status);
+            coalescer.land(query, flight);
+            resume.run();
         }
     }
 
-    private boolean handleCachedResponse(final File query, final HttpServletResponse response) throws IOException {
-        final CachedResponse cached = getCached(query);
+    /**
+     * Serve an entry from the cache.
+     * 
+     * @return {@literal false} if there is no entry or the entry expired and stale entries are not allowed
+     */
+    private boolean handleCachedResponse(final String query, final File queryDir, final HttpServletRequest request,
+            final HttpServletResponse response, final boolean allowStale) throws IOException {
+        final MemoryCache.Entry hot = memory == null ? null : memory.get(query);
+        final long now = System.currentTimeMillis();
+        final boolean background = refresher != null && getRequestBody(request) == null;
+        final boolean serveStale = allowStale || background;
+
+        if (hot != null) {
+            try {
+                if (serveStale || hot.expires > now) {
+                    if (background) {
+                        refreshInBackground(query, queryDir, hot.expires, now);
+                    }
+
+                    recordAccess(queryDir);
+                    metrics.recordHit(hot.getSize(), true);
+                    respond(hot, request, response);
+                    return true;
+                }
+            } finally {
+                memory.release(hot);
+            }
+        }
+
+        final CachedResponse cached = getCached(query, queryDir);
+        final long expires = cached == null ? 0 : getExpires(cached);
 
-        if (cached == null) {
+        if (cached == null || !serveStale && expires <= now) {
             return false;
         }
 
+        if (background) {
+            refreshInBackground(query, queryDir, expires, now);
+        }
+
+        recordAccess(queryDir);
+
+        final MemoryCache.Entry loaded;
+
+        try {
+            loaded = memory == null ? null : load(query, cached);
+        } catch (final FileNotFoundException e) {
+            forget(queryDir);
+            return false; // the body was removed after the record had been read
+        }
+
+        if (loaded != null) {
+            try {
+                metrics.recordHit(loaded.getSize(), false);
+                respond(loaded, request, response);
+            } finally {
+                memory.release(loaded);
+            }
+
+            return true;
+        }
+
         final int status = cached.getStatus();
         final String mimeType = cached.getContentType();
         final File resource = cached.getResource();
@@ -517,11 +1841,87 @@ public class CachingRESTProxy {
             }
         }
         response.setStatus(status);
-        respond(mimeType, response, resource);
 
+        final boolean encoded = negotiate(cached.getContentEncoding(), request, response);
+
+        if (resource == null) {
+            final ByteBuffer content = cached.getContent();
+
+            metrics.recordHit(content.remaining(), false);
+
+            if (encoded) {
+                server.respond(mimeType, response, content);
+            } else {
+                respondDecoded(mimeType, response, new BufferInputStream(content));
+            }
+
+            return true;
+        }
+
+        final long length = resource.length();
+
+        try {
+            if (encoded) {
+                respond(mimeType, request, response, resource);
+            } else {
+                respondDecoded(mimeType, response, new FileInputStream(resource));
+            }
+        } catch (final FileNotFoundException e) {
+            if (response.isCommitted()) {
+                throw e;
+            }
+
+            response.reset(); // drop the status and cookies of the entry that is gone
+            forget(queryDir);
+            return false;
+        }
+
+        metrics.recordHit(length, false);
         return true;
     }
 
+    private boolean isCacheable(final int status) {
+        return status < 400 || getErrorTtl(status) > 0;
+    }
+
+    private boolean isExpired(final CachedResponse cached) {
+        return getExpires(cached) <= System.currentTimeMillis();
+    }
+
+    private boolean isSimple(final File queryDir, final BackendClient.Response backendResponse) {
+        if (hashedKeys) {
+            return false; // the name of the entry says nothing about its content type
+        }
+
+        if (backendResponse.getHeader(ETAG) != null || backendResponse.getHeader(LAST_MODIFIED) != null
+                || backendResponse.getHeader(CACHE_CONTROL) != null) {
+            return false; // the headers are needed to decide when and how to revalidate the entry
+        }
+
+        final String contentType = backendResponse.getHeader(CONTENT_TYPE);
+        final int code = backendResponse.getStatus();
+        final String defaultContentType = getDefaultContentType(queryDir);
+        final List<String> cookies = backendResponse.getHeaders(SET_COOKIE);
+
+        return code == SC_OK && equalsContentType(defaultContentType, contentType) && isEmpty(cookies);
+    }
+
+    /**
+     * @return {@literal true} if the body of a response is text that is worth compressing
+     */
+    private boolean isCompressible(final BackendClient.Response backendResponse) {
+        final String contentType = backendResponse.getHeader(CONTENT_TYPE);
+
+        if (contentType == null) {
+            return false;
+        }
+
+        final String type = getBaseContentType(contentType).trim().toLowerCase();
+
+        return type.startsWith("text/") || type.endsWith("/json") || type.endsWith("+json") || type.endsWith("/xml")
+                || type.endsWith("+xml") || type.endsWith("/javascript");
+    }
+
     private boolean isEmpty(final Collection<String> cookies) {
         if (cookies == null) {
             return true;
@@ -532,9 +1932,180 @@ public class CachingRESTProxy {
         return size == 0;
     }
 
-    private Cookie parseCookie(final String value) {
-        final StringTokenizer izer = new StringTokenizer(value, ";");
-        final String _value = izer.nextToken();
+    /**
+     * Promote an entry found on disk to the in-memory tier, if the tier is willing to admit it.
+     * 
+     * @return the entry, which has to be released, or {@literal null}
+     */
+    private MemoryCache.Entry load(final String query, final CachedResponse cached) throws IOException {
+        final File resource = cached.getResource();
+        final ByteBuffer content = resource == null ? cached.getContent() : null;
+        final long length = resource == null ? content.remaining() : resource.length();
+
+        if (!memory.admits(query, length)) {
+            return null;
+        }
+
+        final MemoryCache.Entry entry = memory.reserve(query, cached.getStatus(), cached.getContentType(),
+                cached.getContentEncoding(), cached.getCookies(), (int) length, getExpires(cached),
+                resource == null ? 0 : resource.lastModified()); // the validators a hit on disk would carry
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (content != null) {
+            entry.body.put(content);
+
+            return memory.publish(entry);
+        }
+
+        boolean filled = false;
+
+        try {
+            final FileInputStream in = new FileInputStream(resource);
+
+            try {
+                final FileChannel channel = in.getChannel();
+
+                while (entry.body.hasRemaining()) {
+                    if (channel.read(entry.body) == -1) {
+                        return null; // the file was truncated underneath us
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            filled = true;
+        } finally {
+            if (!filled) {
+                memory.cancel(entry);
+            }
+        }
+
+        return memory.publish(entry);
+    }
+
+    /**
+     * Memoize a decoded metadata record. Lookups do not lock; once there are too many records, they are evicted in the
+     * order they were memoized, except that records read since the clock last passed them get another round (the
+     * CLOCK algorithm, as in {@link MemoryCache}). Only eviction is serialized.
+     */
+    private void memoize(final File query, final Memo memo) {
+        if (memos.put(query, memo) == null) {
+            memoClock.offer(query);
+        }
+
+        if (memos.size() <= MAX_MEMOIZED) {
+            return;
+        }
+
+        synchronized (memoClock) {
+            // every record gets at most one more round, so records read all the time cannot keep the clock going
+            for (int idx = 2 * MAX_MEMOIZED; idx > 0 && memos.size() > MAX_MEMOIZED; idx--) {
+                final File victim = memoClock.poll();
+
+                if (victim == null) {
+                    return;
+                }
+
+                final Memo candidate = memos.get(victim);
+
+                if (candidate == null) {
+                    continue; // forgotten
+                }
+
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    memoClock.offer(victim);
+                    continue;
+                }
+
+                memos.remove(victim, candidate);
+            }
+        }
+    }
+
+    /**
+     * Mark a response as encoded, if the entry is stored encoded and the client accepts the encoding. Bodies in
+     * encodings the proxy cannot decode are always passed on as they are.
+     * 
+     * @return {@literal false} if the body has to be decoded for the client
+     */
+    private boolean negotiate(final String encoding, final HttpServletRequest request,
+            final HttpServletResponse response) {
+        if (encoding == null) {
+            return true;
+        }
+
+        response.addHeader(VARY, ACCEPT_ENCODING);
+
+        if (GZIP.equalsIgnoreCase(encoding) && !accepts(request.getHeader(ACCEPT_ENCODING), GZIP)) {
+            return false;
+        }
+
+        response.setHeader(CONTENT_ENCODING, encoding);
+
+        return true;
+    }
+
+    /**
+     * Pass the status and headers of an error response the proxy does not cache on to the client; the body follows.
+     */
+    private void passThrough(final HttpServletResponse response, final BackendClient.Response backendResponse) {
+        final String contentType = backendResponse.getHeader(CONTENT_TYPE);
+        final String contentEncoding = backendResponse.getHeader(CONTENT_ENCODING);
+
+        response.setStatus(backendResponse.getStatus());
+
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+
+        if (contentEncoding != null) {
+            response.setHeader(CONTENT_ENCODING, contentEncoding);
+        }
+    }
+
+    /**
+     * Set status and headers of a response that is streamed from the backend, exactly the way they will be replayed
+     * once the response is served from the cache.
+     * 
+     * @return the stream to write the body to
+     */
+    private OutputStream prepare(final HttpServletResponse response, final EntryWriter writer) throws IOException {
+        final BackendClient.Response backendResponse = writer.backendResponse;
+
+        for (final String cookie : writer.getCookies()) {
+            response.addCookie(parseCookie(cookie));
+        }
+
+        final String contentType = writer.getContentType();
+        final String contentLength = backendResponse.getHeader(CONTENT_LENGTH);
+        final String contentEncoding = backendResponse.getHeader(CONTENT_ENCODING);
+
+        response.setStatus(backendResponse.getStatus());
+        response.setContentType(contentType);
+
+        if (contentLength != null) {
+            response.setHeader(CONTENT_LENGTH, contentLength);
+        }
+
+        if (contentEncoding != null) {
+            response.setHeader(CONTENT_ENCODING, contentEncoding); // the body is passed on as it is
+        }
+
+        if (compressed) {
+            response.addHeader(VARY, ACCEPT_ENCODING);
+        }
+
+        return response.getOutputStream();
+    }
+
+    static Cookie parseCookie(final String value) {
+        final StringTokenizer izer = new StringTokenizer(value, ";");
+        final String _value = izer.nextToken();
         final int pos = _value.indexOf('=');
         final String name = _value.substring(0, pos);
         final String val = _value.substring(pos + 1);
@@ -559,25 +2130,543 @@ public class CachingRESTProxy {
         return cookie;
     }
 
+    /**
+     * Read the body of a request whose response is cached by its body. Requests that are resumed after they were
+     * suspended reuse the body read when they were handled first.
+     * 
+     * @return the body or {@literal null}, if the response is cached without it
+     */
+    private RequestBody readRequestBody(final String target, final HttpServletRequest request) throws IOException {
+        final RequestBody read = getRequestBody(request);
+
+        if (read != null) {
+            return read;
+        }
+
+        final String method = request.getMethod();
+        final List<Pattern> patterns = method == null ? null : cacheableMethods.get(method.toUpperCase());
+
+        if (patterns == null) {
+            return null;
+        }
+
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(target).matches()) {
+                final RequestBody body = RequestBody.read(method.toUpperCase(), request.getInputStream());
+
+                request.setAttribute(REQUEST_BODY, body);
+
+                return body;
+            }
+        }
+
+        return null;
+    }
+
+    private void recordAccess(final File queryDir) {
+        if (evictor != null) {
+            evictor.recordAccess(queryDir);
+        }
+    }
+
+    /**
+     * Record that the backend confirmed an expired entry is still valid. Validators and caching directives sent with
+     * the {@literal 304 Not Modified} replace the stored ones.
+     */
+    private void refresh(final String query, final File queryDir, final CachedResponse cached,
+            final BackendClient.Response backendResponse) throws IOException {
+        final CacheMetadata.Freshness stored = cached.getFreshness();
+        final String etag = backendResponse.getHeader(ETAG);
+        final String lastModified = backendResponse.getHeader(LAST_MODIFIED);
+        final String cacheControl = backendResponse.getHeader(CACHE_CONTROL);
+        final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(System.currentTimeMillis(),
+                etag != null ? etag : stored.etag, lastModified != null ? lastModified : stored.lastModified,
+                cacheControl != null ? cacheControl : stored.cacheControl);
+        final CacheMetadata metadata = cached.getMetadata();
+
+        if (log != null) {
+            log.replaceMetadata(query, metadata.refresh(freshness));
+        } else if (metadata != null) {
+            cacheMetadata(queryDir, metadata.refresh(freshness));
+        } else {
+            queryDir.setLastModified(freshness.fetched);
+        }
+
+        if (memory != null) {
+            memory.remove(query);
+        }
+    }
+
+    /**
+     * Fetch an entry without a client waiting for it. The entry is revalidated if it has validators and replaced if
+     * the backend sends a new body. Nothing is done if a request is fetching the entry already.
+     */
+    private void refresh(final String query, final File queryDir) throws IOException {
+        final RequestCoalescer.Flight flight = coalescer.lead(query);
+
+        if (flight == null) {
+            return;
+        }
+
+        try {
+            final CachedResponse cached = getCached(query, queryDir);
+            final Map<String, String> headers = new HashMap<String, String>();
+
+            if (compressed) {
+                headers.put(ACCEPT_ENCODING, GZIP);
+            }
+
+            if (cached != null) {
+                addValidators(headers, cached.getFreshness());
+            }
+
+            final BackendClient.Response backendResponse = client.fetch(backends, query, query, headers, null);
+
+            final int status = backendResponse.getStatus();
+
+            if (cached != null && (status == SC_NOT_MODIFIED || !replaces(cached, status))) {
+                backendResponse.getBody().close();
+
+                if (status != SC_NOT_MODIFIED) {
+                    throw new IOException("backend returned " + status + " for " + query);
+                }
+
+                refresh(query, queryDir, cached, backendResponse);
+                return;
+            }
+
+            streamResponse(query, queryDir, backendResponse, null);
+        } finally {
+            coalescer.land(query, flight);
+        }
+    }
+
+    /**
+     * Schedule a background refresh of an entry that expired or that is requested frequently and about to expire.
+     */
+    private void refreshInBackground(final String query, final File queryDir, final long expires, final long now) {
+        if (refresher == null || backends == null) {
+            return;
+        }
+
+        if (expires > now && !refresher.isDue(query, expires, now)) {
+            return;
+        }
+
+        refresher.schedule(query, expires, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                refresh(query, queryDir);
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return {@literal true} if a response of the backend replaces an expired entry; errors only replace errors, a
+     *         successful entry is served stale instead (stale-if-error)
+     */
+    private boolean replaces(final CachedResponse stale, final int status) {
+        return status < 400 || stale.getStatus() >= 400 && isCacheable(status);
+    }
+
     /**
      * @param mimeType
+     * @param request
      * @param response
      * @param resource
      * @throws IOException
-     * @see WebServerEmulator#respond(java.lang.String, javax.servlet.http.HttpServletResponse, java.io.File)
+     * @see WebServerEmulator#respond(java.lang.String, javax.servlet.http.HttpServletRequest,
+     *      javax.servlet.http.HttpServletResponse, java.io.File)
+     */
+    protected void respond(final String mimeType, final HttpServletRequest request,
+            final HttpServletResponse response, final File resource) throws IOException {
+        server.respond(mimeType, request, response, resource);
+    }
+
+    private void resume(final Continuation continuation) {
+        try {
+            continuation.resume();
+        } catch (final IllegalStateException e) {
+            // the request expired in the meantime
+        }
+    }
+
+    private void respond(final MemoryCache.Entry hot, final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        if (hot.cookies != null) {
+            for (final Cookie cookie : hot.cookies) {
+                response.addCookie(cookie);
+            }
+        }
+
+        response.setStatus(hot.status);
+
+        if (!negotiate(hot.contentEncoding, request, response)) {
+            respondDecoded(hot.contentType, response, new BufferInputStream(hot.getBody()));
+            return;
+        }
+
+        if (hot.isRecycled()) {
+            // the body goes back to the slab once the entry is released, so it is copied rather than handed over
+            response.setContentType(hot.contentType);
+
+            if (hot.lastModified > 0 && WebServerEmulator.notModified(request, response, hot.getSize(),
+                    hot.lastModified)) {
+                return;
+            }
+
+            response.setContentLength(hot.getSize());
+            server.respond(response, new BufferInputStream(hot.getBody()));
+            return;
+        }
+
+        server.respond(hot.contentType, request, response, hot.getBody(), hot.lastModified);
+    }
+
+    /**
+     * Respond with a gzip-compressed body, decompressing it while it is sent.
+     */
+    private void respondDecoded(final String mimeType, final HttpServletResponse response, final InputStream in)
+            throws IOException {
+        response.setContentType(mimeType);
+
+        try {
+            server.respond(response, new GZIPInputStream(in, 8192));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void respondStats(final HttpServletResponse response) throws IOException {
+        final byte[] json = metrics.toJson().getBytes("UTF-8");
+
+        response.setHeader("Cache-Control", "no-cache");
+        server.respond(JSON, response, ByteBuffer.wrap(json));
+    }
+
+    /**
+     * Revalidate an expired entry with a conditional request. If the backend answers {@literal 304 Not Modified}, the
+     * entry is refreshed without transferring the body again; a new body replaces the entry and is streamed to the
+     * client. If the backend fails, the expired entry is served rather than an error.
+     * 
+     * @return {@literal true} if the response was streamed from the backend, {@literal false} if the client is to be
+     *         served from the cache
      */
-    protected void respond(final String mimeType, final HttpServletResponse response, final File resource)
+    private boolean revalidate(final String query, final String uri, final File queryDir,
+            final CachedResponse cached, final HttpServletRequest request, final HttpServletResponse response)
             throws IOException {
-        server.respond(mimeType, response, resource);
+        final Map<String, String> headers = getBackendHeaders(request);
+
+        addValidators(headers, cached.getFreshness());
+
+        final BackendClient.Response backendResponse;
+
+        try {
+            backendResponse = client.fetch(backends, query, uri, headers, getRequestBody(request));
+        } catch (final IOException e) {
+            return false;
+        }
+
+        final int status = backendResponse.getStatus();
+
+        if (status == SC_NOT_MODIFIED || !replaces(cached, status)) {
+            backendResponse.getBody().close();
+
+            if (status == SC_NOT_MODIFIED) {
+                refresh(query, queryDir, cached, backendResponse);
+            }
+
+            return false;
+        }
+
+        streamResponse(query, queryDir, backendResponse, response);
+
+        return true;
+    }
+
+    private void sendError(final HttpServletResponse response, final int status) throws IOException {
+        metrics.recordError();
+        response.sendError(status);
+    }
+
+    /**
+     * Switch between blocking and asynchronous miss handling. In asynchronous mode, a request for an entry that is not
+     * in the cache is suspended while the entry is fetched from the backend and resumed once the entry is ready, so
+     * the server threads are never blocked by a slow backend. Fetches are shed immediately if the backend client is
+     * saturated.
+     * 
+     * @param async
+     *            {@literal true} to handle misses asynchronously
+     */
+    public void setAsync(final boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Store entries compressed. Bodies the backend sends gzip-compressed are stored as they are (the backend is asked
+     * for gzip whenever the client accepts it); compressible bodies (text, JSON, XML and JavaScript) sent uncompressed
+     * are compressed once, while they are written to the cache. Clients that accept gzip are sent the stored bytes as
+     * they are; other clients receive a body that is decompressed while it is sent. Entries that the backend sent
+     * gzip-compressed are stored and served this way regardless of this setting.
+     * 
+     * @param compressed
+     *            {@literal true} to store entries compressed
+     */
+    public void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Set the maximum time a request waits for a concurrent request for the same query to fetch the entry from the
+     * backend. Requests that time out are answered with {@literal 504 Gateway Timeout}.
+     * 
+     * @param timeout
+     *            the timeout in milliseconds
+     */
+    public void setCoalesceTimeout(final long timeout) {
+        coalesceTimeout = timeout;
+    }
+
+    /**
+     * Set the time to live of entries the backend did not give an explicit {@literal max-age} or {@literal s-maxage}.
+     * Expired entries are revalidated with a conditional request (using the {@literal ETag} and
+     * {@literal Last-Modified} headers of the entry) the next time they are requested; entries without validators are
+     * fetched again. If the backend cannot be reached, expired entries keep being served.
+     * 
+     * @param ttl
+     *            the time to live in milliseconds or {@literal 0} to keep such entries forever
+     */
+    public void setDefaultTtl(final long ttl) {
+        defaultTtl = ttl;
+    }
+
+    /**
+     * Cache error responses of the backend (negative caching), so a storm of requests for a missing resource costs
+     * the backend one request per key and time to live. Error responses are stored with their status and body and
+     * expire after the time to live of their status class, or earlier if the backend asks for it. An error never
+     * replaces a successful entry; the expired entry is served instead. Errors that are not cached are passed on to
+     * the client.
+     * 
+     * @param clientErrorTtl
+     *            the time to live of {@literal 4xx} responses in milliseconds or {@literal 0} to not cache them
+     * @param serverErrorTtl
+     *            the time to live of {@literal 5xx} responses in milliseconds or {@literal 0} to not cache them
+     */
+    public void setErrorTtl(final long clientErrorTtl, final long serverErrorTtl) {
+        this.clientErrorTtl = clientErrorTtl;
+        this.serverErrorTtl = serverErrorTtl;
+    }
+
+    /**
+     * Keep the cache directory within a quota. Entries are tracked in memory as they are written and read; a
+     * background thread removes the coldest entries once the quota is exceeded. The quota only applies to the directory
+     * tree; the size of a segment log is governed by its compaction.
+     * 
+     * @param maxBytes
+     *            the maximum number of bytes stored in the cache directory or {@literal 0} for no limit
+     * @param maxEntries
+     *            the maximum number of entries stored in the cache directory or {@literal 0} for no limit
+     * @param policy
+     *            the order in which entries are evicted
+     * @see CacheEvictor
+     */
+    public void setDiskQuota(final long maxBytes, final int maxEntries, final CacheEvictor.Policy policy) {
+        evictor = maxBytes > 0 || maxEntries > 0 ? new CacheEvictor(cache, maxBytes, maxEntries, policy) : null;
+    }
+
+    /**
+     * Store entries in the directory tree under a 128-bit hash of the query instead of turning every path token of the
+     * query into a directory. Entries are spread over two levels of 256 directories each (named after the first two
+     * bytes of the hash), so neither long queries nor hot prefixes run into file system limits. The query is kept in
+     * the metadata of the entry, for debugging and to detect hash collisions. Entries stored in one mode are not found
+     * in the other.
+     * 
+     * @param hashedKeys
+     *            {@literal true} to store entries under a hash of the query
+     */
+    public void setHashedKeys(final boolean hashedKeys) {
+        this.hashedKeys = hashedKeys;
+    }
+
+    /**
+     * Normalize the target and the parameters of requests before they become cache keys, so that requests that only
+     * differ in cache-busting parameters, casing and the like share an entry. Misses are fetched from the backend
+     * using the normalized query.
+     * 
+     * @param normalizer
+     *            the rules or {@literal null} to use targets and parameters as they are
+     * @see KeyNormalizer
+     */
+    public void setKeyNormalizer(final KeyNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Keep an in-memory index of the entries in the cache directory. The index is built when the proxy is started, by
+     * scanning the directory tree in parallel, and is updated whenever the proxy writes an entry. Lookups for entries
+     * that are not in the index are answered as misses without touching the file system. Entries copied into the
+     * cache directory by hand are only picked up after a restart.
+     * 
+     * @param indexed
+     *            {@literal true} to keep an index
+     * @see CacheIndex
+     */
+    public void setIndexed(final boolean indexed) {
+        index = indexed ? new CacheIndex(cache) : null;
+    }
+
+    /**
+     * Set the in-memory tier used to serve hot entries without touching the file system. Entries found on disk are
+     * promoted to this tier if the tier admits them.
+     * 
+     * @param memory
+     *            the tier to use or {@literal null} to serve everything from disk
+     */
+    public void setMemoryCache(final MemoryCache memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Serve expired entries right away and refresh them in the background (stale-while-revalidate), instead of
+     * letting the request that finds an expired entry wait for the backend. Entries that are requested frequently
+     * shortly before they expire are refreshed ahead of time. The refresher is started and stopped with the proxy.
+     * 
+     * @param refresher
+     *            the refresher or {@literal null} to refresh expired entries while the client waits
+     */
+    public void setRefresher(final CacheRefresher refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Store entries in append-only segment files instead of a directory tree with one or two files per entry. The log
+     * is opened when the proxy is started and closed when it is stopped. Existing directory trees can be converted
+     * using {@link SegmentLogStore#main(String[])}.
+     * 
+     * @param log
+     *            the log or {@literal null} to store entries in the cache directory tree
+     */
+    public void setSegmentLog(final SegmentLogStore log) {
+        this.log = log;
+    }
+
+    /**
+     * Serve the metrics of the proxy as JSON, such as
+     * {@literal {"requests":12,"hits":10,"misses":2,...,"requestLatency":{"count":12,...}}}. Requests for the path
+     * never reach the cache or the backend.
+     * 
+     * @param path
+     *            the target the metrics are served at, such as {@literal /_stats}, or {@literal null} to not serve them
+     */
+    public void setStatsPath(final String path) {
+        statsPath = path;
     }
 
     /**
+     * Stream an entry fetched from the backend to the client while it is being downloaded. The body is written to the
+     * cache at the same time and the entry is published once it is complete. If the client goes away, the download
+     * continues so the entry still makes it into the cache.
+     */
+    private void streamResponse(final String query, final File queryDir,
+            final BackendClient.Response backendResponse, final HttpServletResponse response) throws IOException {
+        final InputStream in = backendResponse.getBody();
+
+        try {
+            if (response != null && !isCacheable(backendResponse.getStatus())) {
+                metrics.recordMiss();
+                passThrough(response, backendResponse);
+                server.respond(response, in);
+                return;
+            }
+
+            checkStatus(query, backendResponse);
+
+            final EntryWriter writer = new EntryWriter(query, queryDir, backendResponse);
+            OutputStream out = null;
+
+            if (response != null) {
+                metrics.recordMiss();
+            }
+
+            final byte[] buffer = BufferPool.SHARED.acquire();
+
+            try {
+                out = response == null ? null : prepare(response, writer);
+
+                for (;;) {
+                    final int read = in.read(buffer);
+
+                    if (read == -1) {
+                        break;
+                    }
+
+                    writer.write(buffer, 0, read);
+                    out = writeQuietly(out, buffer, 0, read);
+                }
+
+                writer.publish();
+            } catch (final IOException e) {
+                writer.discard();
+                throw e;
+            } finally {
+                BufferPool.SHARED.release(buffer);
+                closeQuietly(out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Start the proxy and register its metrics as the MBean
+     * {@literal com.jolira.testing:type=CachingRESTProxy,name="host:port"}.
+     * 
      * @return the port number
      * @throws Exception
      * @see WebServerEmulator#start()
      */
     public int start() throws Exception {
-        return server.start();
+        startSweeper();
+
+        if (log != null) {
+            log.open();
+        }
+
+        if (index != null) {
+            index.build(INDEX_PARALLELISM);
+        }
+
+        if (backends != null) {
+            client.start();
+        }
+
+        if (refresher != null) {
+            refresher.start();
+        }
+
+        if (evictor != null && log == null) {
+            evictor.start();
+        }
+
+        final int port = server.start();
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+
+        objectName = new ObjectName("com.jolira.testing:type=CachingRESTProxy,name=" + ObjectName.quote(getName()));
+        mbeans.registerMBean(metrics, objectName);
+
+        return port;
+    }
+
+    /**
+     * Remove the files left behind by writes that were interrupted, such as by a crash, on a background thread.
+     */
+    private void startSweeper() {
+        final Thread thread = new Thread(new CacheSweeper(cache, CacheSweeper.DEFAULT_GRACE), "cache-sweeper");
+
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -586,5 +2675,24 @@ public class CachingRESTProxy {
      */
     public void stop() throws Exception {
         server.stop();
+
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+
+        if (refresher != null) {
+            refresher.stop();
+        }
+
+        if (evictor != null) {
+            evictor.stop();
+        }
+
+        client.stop();
+
+        if (log != null) {
+            log.close();
+        }
     }
 }
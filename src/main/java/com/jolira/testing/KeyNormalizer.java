@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rules that normalize the target and the parameters of a request before {@link CachingRESTProxy} turns them into a
+ * cache key, so that requests differing only in cache-busting parameters, parameter casing and the like share an
+ * entry. Rules are read from a file once and compiled; applying them only costs a few map operations per request.
+ * <p>
+ * The file consists of routes. Every route starts with a regular expression in brackets, which has to match the whole
+ * target of a request. The first matching route is applied; requests that match no route are not normalized. A route
+ * may contain the following rules, which are applied in this order:
+ * 
+ * <pre>
+ * # cache-busting parameters and casing of the search API
+ * [/search(/.*)?]
+ * path = lowercase, collapse-slashes, strip-trailing-slash
+ * names = lowercase
+ * rename = query:q, p:page
+ * drop = _|ts|requestId|utm_.*
+ * lowercase = q
+ * bucket = lat:0.01, lng:0.01, offset:10
+ * </pre>
+ * 
+ * {@literal path} normalizes the target, {@literal names = lowercase} lowercases all parameter names,
+ * {@literal rename} renames parameters, {@literal drop} removes the parameters whose names match a regular expression,
+ * {@literal lowercase} lowercases the values of the parameters whose names match a regular expression and
+ * {@literal bucket} rounds numeric values down to a multiple of a bucket width; only plain decimal values with at most
+ * 18 digits before and after the point are bucketed, others are left as they are. Parameters that end up with the
+ * same name are merged. Empty lines and lines starting with {@literal #} are ignored.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class KeyNormalizer {
+    /**
+     * The compiled rules of a route.
+     */
+    static class Route {
+        private final Pattern target;
+        private boolean lowercasePath = false;
+        private boolean collapseSlashes = false;
+        private boolean stripTrailingSlash = false;
+        private boolean lowercaseNames = false;
+        private final Map<String, String> renames = new HashMap<String, String>();
+        private Pattern drop = null;
+        private Pattern lowercase = null;
+        private final Map<String, BigDecimal> buckets = new HashMap<String, BigDecimal>();
+
+        Route(final Pattern target) {
+            this.target = target;
+        }
+
+        private void add(final Map<String, String[]> params, final String name, final String[] vals) {
+            final String[] existing = params.get(name);
+
+            if (existing == null) {
+                params.put(name, vals);
+                return;
+            }
+
+            final String[] merged = new String[existing.length + vals.length];
+
+            System.arraycopy(existing, 0, merged, 0, existing.length);
+            System.arraycopy(vals, 0, merged, existing.length, vals.length);
+            params.put(name, merged);
+        }
+
+        private String bucket(final String value, final BigDecimal width) {
+            if (!DECIMAL.matcher(value).matches()) {
+                return value; // the values come from clients; exponents could make a number of any size
+            }
+
+            final BigDecimal number = new BigDecimal(value);
+
+            return number.divide(width, 0, RoundingMode.FLOOR).multiply(width).toPlainString();
+        }
+
+        /**
+         * @param params
+         *            the parameters, sorted by name; the map is not modified
+         * @return the normalized parameters, sorted by name
+         */
+        Map<String, String[]> normalizeParameters(final Map<String, String[]> params) {
+            final Map<String, String[]> normalized = new TreeMap<String, String[]>();
+
+            for (final Entry<String, String[]> entry : params.entrySet()) {
+                final String name = lowercaseNames ? entry.getKey().toLowerCase() : entry.getKey();
+                final String renamed = renames.get(name);
+                final String _name = renamed == null ? name : renamed;
+
+                if (drop != null && drop.matcher(_name).matches()) {
+                    continue;
+                }
+
+                final boolean lowercased = lowercase != null && lowercase.matcher(_name).matches();
+                final BigDecimal width = buckets.get(_name);
+                final String[] vals = entry.getValue();
+
+                if (!lowercased && width == null) {
+                    add(normalized, _name, vals);
+                    continue;
+                }
+
+                final String[] _vals = new String[vals.length];
+
+                for (int idx = 0; idx < vals.length; idx++) {
+                    final String val = lowercased ? vals[idx].toLowerCase() : vals[idx];
+
+                    _vals[idx] = width == null ? val : bucket(val, width);
+                }
+
+                add(normalized, _name, _vals);
+            }
+
+            return normalized;
+        }
+
+        String normalizePath(final String path) {
+            String _path = lowercasePath ? path.toLowerCase() : path;
+
+            if (collapseSlashes) {
+                _path = MULTIPLE_SLASHES.matcher(_path).replaceAll("/");
+            }
+
+            if (stripTrailingSlash && _path.length() > 1 && _path.endsWith("/")) {
+                _path = _path.substring(0, _path.length() - 1);
+            }
+
+            return _path;
+        }
+    }
+
+    private static final Pattern DECIMAL = Pattern.compile("[-+]?(\\d{1,18}(\\.\\d{0,18})?|\\.\\d{1,18})");
+    private static final Pattern MULTIPLE_SLASHES = Pattern.compile("//+");
+    private static final Pattern SECTION = Pattern.compile("\\[(.*)\\]");
+    private static final String LOWERCASE = "lowercase";
+
+    /**
+     * Read the rules from a file.
+     * 
+     * @param file
+     *            the file
+     * @return the compiled rules
+     * @throws IOException
+     *             the file could not be read or holds an invalid rule
+     */
+    public static KeyNormalizer load(final File file) throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+        try {
+            return parse(reader, file.getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the rules from a reader.
+     * 
+     * @param reader
+     *            the reader, which is not closed
+     * @param name
+     *            the name of the source of the rules, used in error messages
+     * @return the compiled rules
+     * @throws IOException
+     *             the rules could not be read or are invalid
+     */
+    static KeyNormalizer parse(final Reader reader, final String name) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        final List<Route> routes = new ArrayList<Route>();
+        Route route = null;
+
+        for (int number = 1;; number++) {
+            final String line = in.readLine();
+
+            if (line == null) {
+                break;
+            }
+
+            final String _line = line.trim();
+
+            if (_line.isEmpty() || _line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                final Matcher section = SECTION.matcher(_line);
+
+                if (section.matches()) {
+                    route = new Route(Pattern.compile(section.group(1)));
+                    routes.add(route);
+                    continue;
+                }
+
+                if (route == null) {
+                    throw new IOException("rule outside of a route");
+                }
+
+                parseRule(route, _line);
+            } catch (final PatternSyntaxException e) {
+                throw new IOException(name + ':' + number + ": " + e.getDescription());
+            } catch (final IOException e) {
+                throw new IOException(name + ':' + number + ": " + e.getMessage());
+            }
+        }
+
+        return new KeyNormalizer(routes);
+    }
+
+    private static void parseRule(final Route route, final String line) throws IOException {
+        final int eq = line.indexOf('=');
+
+        if (eq == -1) {
+            throw new IOException("expected <rule> = <value>");
+        }
+
+        final String rule = line.substring(0, eq).trim();
+        final String value = line.substring(eq + 1).trim();
+
+        if ("path".equals(rule)) {
+            for (final String option : value.split("\\s*,\\s*")) {
+                if (LOWERCASE.equals(option)) {
+                    route.lowercasePath = true;
+                } else if ("collapse-slashes".equals(option)) {
+                    route.collapseSlashes = true;
+                } else if ("strip-trailing-slash".equals(option)) {
+                    route.stripTrailingSlash = true;
+                } else {
+                    throw new IOException("unknown path option " + option);
+                }
+            }
+        } else if ("names".equals(rule)) {
+            if (!LOWERCASE.equals(value)) {
+                throw new IOException("unknown names option " + value);
+            }
+
+            route.lowercaseNames = true;
+        } else if ("rename".equals(rule)) {
+            for (final String[] pair : parsePairs(value)) {
+                route.renames.put(pair[0], pair[1]);
+            }
+        } else if ("drop".equals(rule)) {
+            route.drop = Pattern.compile(value);
+        } else if (LOWERCASE.equals(rule)) {
+            route.lowercase = Pattern.compile(value);
+        } else if ("bucket".equals(rule)) {
+            for (final String[] pair : parsePairs(value)) {
+                final BigDecimal width;
+
+                try {
+                    width = new BigDecimal(pair[1]);
+                } catch (final NumberFormatException e) {
+                    throw new IOException("invalid bucket width " + pair[1]);
+                }
+
+                if (width.signum() <= 0) {
+                    throw new IOException("invalid bucket width " + pair[1]);
+                }
+
+                route.buckets.put(pair[0], width);
+            }
+        } else {
+            throw new IOException("unknown rule " + rule);
+        }
+    }
+
+    private static List<String[]> parsePairs(final String value) throws IOException {
+        final List<String[]> pairs = new ArrayList<String[]>();
+
+        for (final String pair : value.split("\\s*,\\s*")) {
+            final int colon = pair.indexOf(':');
+
+            if (colon < 1 || colon == pair.length() - 1) {
+                throw new IOException("expected <name>:<value> instead of " + pair);
+            }
+
+            pairs.add(new String[] { pair.substring(0, colon), pair.substring(colon + 1) });
+        }
+
+        return pairs;
+    }
+
+    private final Route[] routes;
+
+    private KeyNormalizer(final List<Route> routes) {
+        this.routes = routes.toArray(new Route[routes.size()]);
+    }
+
+    /**
+     * @param target
+     *            the target of a request
+     * @return the route to apply to the request or {@literal null}, if the request is not to be normalized
+     */
+    Route getRoute(final String target) {
+        for (final Route route : routes) {
+            if (route.target.matcher(target).matches()) {
+                return route;
+            }
+        }
+
+        return null;
+    }
+}
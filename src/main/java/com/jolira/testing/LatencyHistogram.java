@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with fixed, roughly exponential buckets ranging from 100 microseconds to 30
+ * seconds. Recording a latency costs a few atomic increments; percentiles are estimated as the upper bound of the
+ * bucket they fall into.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class LatencyHistogram {
+    /**
+     * The upper bounds of the buckets in microseconds; latencies above the last bound go into an overflow bucket.
+     */
+    static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000, 30000000 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int getBucket(final long micros) {
+        for (int idx = 0; idx < BOUNDS.length; idx++) {
+            if (micros <= BOUNDS[idx]) {
+                return idx;
+            }
+        }
+
+        return BOUNDS.length;
+    }
+
+    /**
+     * Append the histogram as a JSON object.
+     */
+    void appendJson(final StringBuilder json) {
+        json.append("{\"count\":");
+        json.append(getCount());
+        json.append(",\"meanMicros\":");
+        json.append(getMean());
+        json.append(",\"p50Micros\":");
+        json.append(getPercentile(0.5));
+        json.append(",\"p90Micros\":");
+        json.append(getPercentile(0.9));
+        json.append(",\"p99Micros\":");
+        json.append(getPercentile(0.99));
+        json.append(",\"maxMicros\":");
+        json.append(getMax());
+        json.append(",\"buckets\":{");
+
+        for (int idx = 0; idx <= BOUNDS.length; idx++) {
+            if (idx > 0) {
+                json.append(',');
+            }
+
+            json.append('"');
+            json.append(idx < BOUNDS.length ? Long.toString(BOUNDS[idx]) : "+Inf");
+            json.append("\":");
+            json.append(counts.get(idx));
+        }
+
+        json.append("}}");
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the number of latencies recorded in every bucket
+     */
+    long[] getCounts() {
+        final long[] _counts = new long[counts.length()];
+
+        for (int idx = 0; idx < _counts.length; idx++) {
+            _counts[idx] = counts.get(idx);
+        }
+
+        return _counts;
+    }
+
+    /**
+     * @return the longest recorded latency in microseconds
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the average latency in microseconds
+     */
+    long getMean() {
+        final long _count = count.get();
+
+        return _count == 0 ? 0 : total.get() / _count;
+    }
+
+    /**
+     * @param fraction
+     *            the percentile as a fraction, such as {@literal 0.99}
+     * @return the upper bound of the bucket holding the percentile (or the maximum, if the percentile falls into the
+     *         overflow bucket) in microseconds
+     */
+    long getPercentile(final double fraction) {
+        final long[] _counts = getCounts();
+        long _count = 0;
+
+        for (final long bucket : _counts) {
+            _count += bucket;
+        }
+
+        if (_count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(fraction * _count);
+        long seen = 0;
+
+        for (int idx = 0; idx < BOUNDS.length; idx++) {
+            seen += _counts[idx];
+
+            if (seen >= rank) {
+                return Math.min(BOUNDS[idx], getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    void record(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+
+        counts.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+
+        for (;;) {
+            final long _max = max.get();
+
+            if (micros <= _max || max.compareAndSet(_max, micros)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.io.Buffer;
+
+/**
+ * Drives a server, such as a {@link CachingRESTProxy}, with an open-loop load: requests are started at a fixed rate
+ * whether or not earlier requests have been answered, like requests of independent users would. The latency of a
+ * request is measured from the time it was scheduled to be sent, so a server that falls behind is not flattered by the
+ * generator slowing down with it (coordinated omission).
+ * <p>
+ * Requests are sent over a bounded pool of persistent connections using a {@link BackendClient}. Keys are drawn from a
+ * {@link ZipfDistribution}, so some keys are requested far more often than others; a share of the requests can be
+ * sent for keys that are never requested again, which makes them guaranteed cache misses. Requests that cannot be sent
+ * because too many are outstanding are shed and counted separately.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class LoadGenerator {
+    private static final int MAX_OUTSTANDING_PER_CONNECTION = 16;
+
+    /**
+     * Records the outcome of a single request.
+     */
+    private class Request implements BackendClient.Listener {
+        private final long scheduled;
+
+        Request(final long scheduled) {
+            this.scheduled = scheduled;
+        }
+
+        @Override
+        public void onComplete() {
+            latency.record(System.nanoTime() - scheduled);
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void onContent(final Buffer content) {
+            bytes.addAndGet(content.length());
+        }
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            failures.incrementAndGet();
+        }
+
+        @Override
+        public void onHeaders(final BackendClient.Response response) throws IOException {
+            final int status = response.getStatus();
+
+            if (status >= 400) {
+                throw new IOException("status " + status);
+            }
+        }
+    }
+
+    private final String server;
+    private final BackendClient client;
+    private final long interval;
+    private final Random random = new Random();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<String, String> headers = Collections.emptyMap();
+    private String path = "/";
+    private ZipfDistribution keys = new ZipfDistribution(1000, 1);
+    private double missRatio = 0;
+    private volatile long started = 0;
+    private volatile long finished = 0;
+
+    /**
+     * @param ssl
+     *            {@literal true} if the server uses SSL
+     * @param server
+     *            the server as {@literal host:port}
+     * @param rate
+     *            the number of requests started per second
+     * @param connections
+     *            the maximum number of connections to the server
+     */
+    public LoadGenerator(final boolean ssl, final String server, final double rate, final int connections) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive: " + connections);
+        }
+
+        this.server = server;
+        interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        client = new BackendClient(ssl);
+        client.setMaxConnections(connections);
+        client.setMaxInFlight(connections * MAX_OUTSTANDING_PER_CONNECTION);
+    }
+
+    /**
+     * @return the number of body bytes received
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of requests answered successfully
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the time the load has been running for (or ran for, if it finished) in milliseconds
+     */
+    public long getElapsed() {
+        final long _started = started;
+
+        if (_started == 0) {
+            return 0;
+        }
+
+        final long _finished = finished;
+
+        return (_finished == 0 ? System.currentTimeMillis() : _finished) - _started;
+    }
+
+    /**
+     * @return the number of requests that failed, timed out or were answered with an error
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @param fraction
+     *            the percentile as a fraction, such as {@literal 0.99}
+     * @return the estimated latency at the percentile in microseconds
+     */
+    public long getLatencyPercentile(final double fraction) {
+        return latency.getPercentile(fraction);
+    }
+
+    /**
+     * @return the number of requests sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of requests that were not sent because too many requests were outstanding
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * @return the number of requests answered successfully per second
+     */
+    public double getThroughput() {
+        final long elapsed = getElapsed();
+
+        return elapsed == 0 ? 0 : completed.get() * 1000.0 / elapsed;
+    }
+
+    private String nextTarget(final long idx) {
+        if (missRatio > 0 && random.nextDouble() < missRatio) {
+            return path + "?miss=" + idx + '-' + started;
+        }
+
+        return path + "?key=" + keys.next(random);
+    }
+
+    /**
+     * Send requests at the configured rate for a while and wait for the outstanding requests to be answered.
+     * 
+     * @param duration
+     *            the time to send requests for in milliseconds
+     * @param report
+     *            the stream progress is reported to or {@literal null}
+     * @param reportInterval
+     *            the time between two progress reports in milliseconds
+     * @throws InterruptedIOException
+     *             the calling thread was interrupted; the load is cancelled
+     * @throws Exception
+     *             the client could not be started or stopped
+     */
+    public void run(final long duration, final PrintStream report, final long reportInterval) throws Exception {
+        client.start();
+
+        try {
+            started = System.currentTimeMillis();
+            finished = 0;
+
+            final long start = System.nanoTime();
+            final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+            final long _reportInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, reportInterval));
+            long nextReport = start + _reportInterval;
+
+            for (long idx = 0;; idx++) {
+                final long scheduled = start + idx * interval;
+
+                if (scheduled >= end) {
+                    break;
+                }
+
+                sleepUntil(scheduled);
+
+                if (report != null && scheduled >= nextReport) {
+                    report.println(this);
+                    nextReport += _reportInterval;
+                }
+
+                sent.incrementAndGet();
+
+                try {
+                    client.fetch(server, nextTarget(idx), headers, new Request(scheduled));
+                } catch (final BackendClient.SaturatedException e) {
+                    shed.incrementAndGet();
+                } catch (final IOException e) {
+                    failures.incrementAndGet();
+                }
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(client.getTimeout());
+
+            while (completed.get() + failures.get() + shed.get() < sent.get() && System.nanoTime() < deadline) {
+                sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        } finally {
+            finished = System.currentTimeMillis();
+            client.stop();
+        }
+
+        if (report != null) {
+            report.println(this);
+        }
+    }
+
+    /**
+     * @param count
+     *            the number of distinct keys (default: 1000)
+     * @param exponent
+     *            the skew of the distribution of the keys (default: 1)
+     */
+    public void setKeys(final int count, final double exponent) {
+        keys = new ZipfDistribution(count, exponent);
+    }
+
+    /**
+     * @param missRatio
+     *            the share of requests sent for keys that are never requested again, from {@literal 0} to
+     *            {@literal 1}
+     */
+    public void setMissRatio(final double missRatio) {
+        this.missRatio = missRatio;
+    }
+
+    /**
+     * @param path
+     *            the path requested; the key is passed as a parameter
+     */
+    public void setPath(final String path) {
+        this.path = path;
+    }
+
+    private void sleepUntil(final long time) throws InterruptedIOException {
+        final long wait = time - System.nanoTime();
+
+        if (wait <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("load cancelled");
+        }
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("LoadGenerator [sent=");
+        builder.append(getSent());
+        builder.append(", completed=");
+        builder.append(getCompleted());
+        builder.append(", failures=");
+        builder.append(getFailures());
+        builder.append(", shed=");
+        builder.append(getShed());
+        builder.append(", bytes=");
+        builder.append(getBytes());
+        builder.append(", throughput=");
+        builder.append(Math.round(getThroughput() * 10) / 10.0);
+        builder.append("/s, p50=");
+        builder.append(latency.getPercentile(0.5));
+        builder.append("us, p90=");
+        builder.append(latency.getPercentile(0.9));
+        builder.append("us, p99=");
+        builder.append(latency.getPercentile(0.99));
+        builder.append("us, max=");
+        builder.append(latency.getMax());
+        builder.append("us]");
+
+        return builder.toString();
+    }
+}
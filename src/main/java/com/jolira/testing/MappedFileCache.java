@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps memory-mapped buffers for small, frequently served files, so they can be handed to the connector without
+ * re-opening and re-mapping the file for every request. A mapping is only reused as long as the length and the
+ * modification time of the file did not change.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class MappedFileCache {
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        final long lastModified;
+        final long length;
+
+        Mapping(final MappedByteBuffer buffer, final long lastModified, final long length) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private final Map<File, Mapping> mappings = new LinkedHashMap<File, Mapping>(16, 0.75f, true);
+    private final long maxFileSize;
+    private final long maxBytes;
+    private long size = 0;
+
+    /**
+     * @param maxFileSize
+     *            the largest file that will be kept mapped
+     * @param maxBytes
+     *            the maximum number of bytes kept mapped at any one time
+     */
+    MappedFileCache(final long maxFileSize, final long maxBytes) {
+        this.maxFileSize = maxFileSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return a private view of the mapped content of a file.
+     * 
+     * @param file
+     *            the file
+     * @param channel
+     *            an open channel for the file; the mapping remains valid after the channel is closed
+     * @param length
+     *            the current length of the file
+     * @return the content or {@literal null}, if the file is too large to be kept mapped
+     * @throws IOException
+     *             the file could not be mapped
+     */
+    ByteBuffer get(final File file, final FileChannel channel, final long length) throws IOException {
+        if (length > maxFileSize) {
+            return null;
+        }
+
+        final long lastModified = file.lastModified();
+
+        synchronized (mappings) {
+            final Mapping mapping = mappings.get(file);
+
+            if (mapping != null && mapping.lastModified == lastModified && mapping.length == length) {
+                return mapping.buffer.duplicate();
+            }
+        }
+
+        final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, length);
+
+        synchronized (mappings) {
+            final Mapping previous = mappings.put(file, new Mapping(buffer, lastModified, length));
+
+            if (previous != null) {
+                size -= previous.length;
+            }
+
+            size += length;
+
+            for (final Iterator<Mapping> it = mappings.values().iterator(); size > maxBytes && it.hasNext();) {
+                final Mapping victim = it.next();
+
+                it.remove();
+                size -= victim.length;
+            }
+        }
+
+        return buffer.duplicate();
+    }
+}
@@ -0,0 +1,582 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * A bounded in-memory tier for hot cache entries. Entries hold the body bytes together with the already parsed
+ * metadata, so a hit can be served without touching the file system.
+ * <p>
+ * The cache is bounded by a byte budget. Eviction is frequency-aware: the access frequency of every key (whether it is
+ * currently cached or not) is tracked in a small, periodically aged count-min sketch. When the budget is exhausted, a
+ * new entry is only admitted if it was accessed more frequently than the least recently used entries it would displace.
+ * This keeps one-hit wonders from flushing out the working set.
+ * <p>
+ * Hits do not lock: entries are looked up in a concurrent map, frequencies are counted in sketches striped by key and
+ * recency is approximated by a reference bit per entry, which eviction clears while it sweeps the entries in insertion
+ * order (the CLOCK algorithm). Only admission and eviction are serialized.
+ * <p>
+ * Bodies are either kept on the heap or, if {@code direct} is set, in blocks carved out of direct {@link Slab}s that
+ * are allocated once, when the cache is created. Such bodies live outside of the Java heap and are recycled by the
+ * cache rather than by the garbage collector; an entry that is removed while it is still being sent keeps its block
+ * until the last reader {@link #release(Entry) released} it.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class MemoryCache {
+    /**
+     * A hot cache entry. Entries are reference counted: the cache holds one reference as long as the entry is cached
+     * and every lookup takes another one, which has to be {@link MemoryCache#release(Entry) released} once the body
+     * has been sent.
+     */
+    static class Entry {
+        final String key;
+        final int status;
+        final String contentType;
+        final String contentEncoding;
+        final Cookie[] cookies;
+        final ByteBuffer body;
+        final long expires;
+        final long lastModified;
+        private final Slab.Block block;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile boolean referenced = false;
+
+        Entry(final String key, final int status, final String contentType, final String contentEncoding,
+                final Cookie[] cookies, final ByteBuffer body, final Slab.Block block, final long expires,
+                final long lastModified) {
+            this.key = key;
+            this.status = status;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.cookies = cookies;
+            this.body = body;
+            this.block = block;
+            this.expires = expires;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return a read-only view of the body positioned at the beginning of the content
+         */
+        ByteBuffer getBody() {
+            return body.asReadOnlyBuffer();
+        }
+
+        int getSize() {
+            return body.capacity();
+        }
+
+        /**
+         * @return {@literal true} if the body is recycled once the entry has been released, so it must not be handed
+         *         to anything that may still hold on to it afterwards
+         */
+        boolean isRecycled() {
+            return block != null;
+        }
+
+        private boolean retain() {
+            for (;;) {
+                final int count = references.get();
+
+                if (count == 0) {
+                    return false; // removed and released in the meantime
+                }
+
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * A count-min sketch with 4-bit saturating counters that are halved once the number of recorded accesses reaches
+     * ten times the width of the sketch.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0x8e2a5b2d, 0x5bd1e995, 0xc2b2ae35 };
+
+        private final byte[][] counts;
+        private final int mask;
+        private final int sampleSize;
+        private int samples = 0;
+
+        FrequencySketch(final int width) {
+            final int _width = Integer.highestOneBit(Math.max(width, 64) - 1) << 1;
+
+            counts = new byte[DEPTH][_width];
+            mask = _width - 1;
+            sampleSize = 10 * _width;
+        }
+
+        private int index(final int hash, final int row) {
+            int h = hash * SEEDS[row];
+
+            h ^= h >>> 16;
+
+            return h & mask;
+        }
+
+        int frequency(final Object key) {
+            final int hash = key.hashCode();
+            int min = MAX_COUNT;
+
+            for (int row = 0; row < DEPTH; row++) {
+                final int count = counts[row][index(hash, row)];
+
+                if (count < min) {
+                    min = count;
+                }
+            }
+
+            return min;
+        }
+
+        void increment(final Object key) {
+            final int hash = key.hashCode();
+
+            for (int row = 0; row < DEPTH; row++) {
+                final int idx = index(hash, row);
+
+                if (counts[row][idx] < MAX_COUNT) {
+                    counts[row][idx]++;
+                }
+            }
+
+            if (++samples >= sampleSize) {
+                age();
+            }
+        }
+
+        private void age() {
+            for (final byte[] row : counts) {
+                for (int idx = 0; idx < row.length; idx++) {
+                    row[idx] >>= 1;
+                }
+            }
+
+            samples /= 2;
+        }
+    }
+
+    private static final int STRIPES = 16;
+
+    private static Slab[] createSlabs(final long maxBytes) {
+        final long capacity = Math.min(Long.highestOneBit(Math.max(maxBytes, Slab.MIN_BLOCK_SIZE) - 1) << 1,
+                Slab.MAX_CAPACITY);
+        final Slab[] slabs = new Slab[(int) ((maxBytes + capacity - 1) / capacity)];
+
+        for (int idx = 0; idx < slabs.length; idx++) {
+            slabs[idx] = new Slab((int) capacity);
+        }
+
+        return slabs;
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> clock = new LinkedHashMap<String, Entry>();
+    private final FrequencySketch[] sketches = new FrequencySketch[STRIPES];
+    private final Slab[] slabs;
+    private final long maxBytes;
+    private final long maxEntrySize;
+    private final boolean direct;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long size = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    /**
+     * Create a new memory cache.
+     * 
+     * @param maxBytes
+     *            the maximum number of body bytes held by the cache
+     * @param direct
+     *            {@literal true} to keep bodies in direct (off-heap) slabs, which are allocated right away
+     */
+    public MemoryCache(final long maxBytes, final boolean direct) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+        slabs = direct ? createSlabs(maxBytes) : null;
+        maxEntrySize = Math.min(maxBytes / 4, direct ? slabs[0].getCapacity() : Integer.MAX_VALUE);
+
+        final long width = Math.min(Math.max(maxBytes >> 10, 256), 1 << 20);
+
+        for (int idx = 0; idx < STRIPES; idx++) {
+            sketches[idx] = new FrequencySketch((int) width / STRIPES);
+        }
+    }
+
+    /**
+     * Check whether an entry of a given size would currently be admitted to the cache. Callers use this to avoid
+     * loading a body that would be rejected anyway.
+     * 
+     * @param key
+     *            the key
+     * @param length
+     *            the size of the body
+     * @return {@literal true} if the entry would be admitted
+     */
+    public synchronized boolean admits(final String key, final long length) {
+        if (length > maxEntrySize) {
+            return false;
+        }
+
+        long needed = size + length - maxBytes;
+
+        if (needed <= 0) {
+            return true;
+        }
+
+        final int frequency = frequency(key);
+
+        // the entries in the order the clock would evict them: those not referenced since the last sweep first
+        for (int pass = 0; pass < 2; pass++) {
+            for (final Entry victim : clock.values()) {
+                if (victim.referenced != (pass == 1)) {
+                    continue;
+                }
+
+                if (frequency(victim.key) >= frequency) {
+                    return false;
+                }
+
+                needed -= victim.getSize();
+
+                if (needed <= 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Slab.Block allocate(final int length) {
+        for (final Slab slab : slabs) {
+            final Slab.Block block = slab.allocate(length);
+
+            if (block != null) {
+                return block;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Forget a reservation whose body could not be filled.
+     * 
+     * @param entry
+     *            the entry returned by {@link #reserve(String, int, String, String, Cookie[], int, long, long)}
+     */
+    synchronized void cancel(final Entry entry) {
+        size -= entry.getSize();
+        release(entry);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        for (final Iterator<Entry> it = clock.values().iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+
+            it.remove();
+            entries.remove(entry.key, entry);
+            size -= entry.getSize();
+            release(entry);
+        }
+    }
+
+    private Entry evict(final int frequency) {
+        final Entry victim = nextVictim();
+
+        if (victim == null || frequency(victim.key) >= frequency) {
+            return null;
+        }
+
+        unlink(victim);
+        evictions++;
+
+        return victim;
+    }
+
+    private int frequency(final String key) {
+        final FrequencySketch sketch = getSketch(key);
+
+        synchronized (sketch) {
+            return sketch.frequency(key);
+        }
+    }
+
+    /**
+     * Look up a hot entry. Lookups do not lock the cache.
+     * 
+     * @param key
+     *            the key
+     * @return the entry or {@literal null}; the caller has to {@link #release(Entry) release} the entry
+     */
+    Entry get(final String key) {
+        final FrequencySketch sketch = getSketch(key);
+
+        synchronized (sketch) {
+            sketch.increment(key);
+        }
+
+        final Entry entry = entries.get(key);
+
+        if (entry == null || !entry.retain()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+
+        hits.incrementAndGet();
+
+        return entry;
+    }
+
+    /**
+     * @return the number of entries evicted to make room for more frequently used ones
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of lookups that were served from memory
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the maximum number of bytes held by the cache
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of lookups that could not be served from memory
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of candidates that were not admitted because they were used less frequently than the entries
+     *         they would have displaced
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return the number of body bytes currently held by the cache
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private FrequencySketch getSketch(final String key) {
+        return sketches[key.hashCode() * 0x9e3779b9 >>> 28];
+    }
+
+    /**
+     * @return {@literal true} if bodies are stored off-heap
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return the entry the clock hand points to once every entry referenced since the last sweep got its second
+     *         chance
+     */
+    private Entry nextVictim() {
+        for (int idx = clock.size(); idx > 0; idx--) {
+            final Iterator<Entry> it = clock.values().iterator();
+            final Entry entry = it.next();
+
+            if (!entry.referenced) {
+                return entry;
+            }
+
+            entry.referenced = false;
+            it.remove();
+            clock.put(entry.key, entry);
+        }
+
+        return clock.isEmpty() ? null : clock.values().iterator().next();
+    }
+
+    /**
+     * Make a reserved entry visible once its body has been filled, replacing any entry for the same key.
+     * 
+     * @param entry
+     *            the entry returned by {@link #reserve(String, int, String, String, Cookie[], int, long, long)}
+     * @return the entry; the caller has to {@link #release(Entry) release} it
+     */
+    synchronized Entry publish(final Entry entry) {
+        entry.body.clear();
+        entry.references.incrementAndGet(); // one for the cache and one for the caller
+
+        final Entry previous = entries.get(entry.key);
+
+        if (previous != null) {
+            unlink(previous);
+        }
+
+        entries.put(entry.key, entry);
+        clock.put(entry.key, entry);
+
+        return entry;
+    }
+
+    /**
+     * Give up a reference to an entry returned by {@link #get(String)} or {@link #publish(Entry)}. The body must not
+     * be used afterwards.
+     * 
+     * @param entry
+     *            the entry
+     */
+    void release(final Entry entry) {
+        if (entry.references.decrementAndGet() == 0 && entry.block != null) {
+            synchronized (this) {
+                entry.block.slab.free(entry.block);
+            }
+        }
+    }
+
+    /**
+     * Remove an entry.
+     * 
+     * @param key
+     *            the key
+     */
+    public synchronized void remove(final String key) {
+        final Entry entry = entries.get(key);
+
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Reserve the room for an entry, evicting less frequently used entries as needed. The body of the entry has to be
+     * filled by the caller, who then either {@link #publish(Entry) publishes} or {@link #cancel(Entry) cancels} it.
+     * 
+     * @param key
+     *            the key
+     * @param status
+     *            the http status
+     * @param contentType
+     *            the content type
+     * @param contentEncoding
+     *            the encoding of the body or {@literal null}, if it is not encoded
+     * @param cookies
+     *            the cookies to be set or {@literal null}
+     * @param length
+     *            the length of the body
+     * @param expires
+     *            the time the entry expires in milliseconds since the epoch
+     * @param lastModified
+     *            the modification time of the body the validators of the entry are derived from or {@literal 0}, if
+     *            responses served from the entry carry no validators
+     * @return the new entry with an empty body of the given length or {@literal null}, if it was not admitted
+     */
+    synchronized Entry reserve(final String key, final int status, final String contentType,
+            final String contentEncoding, final Cookie[] cookies, final int length, final long expires,
+            final long lastModified) {
+        remove(key);
+
+        if (!admits(key, length)) {
+            rejections++;
+            return null;
+        }
+
+        final int frequency = frequency(key);
+
+        while (size + length > maxBytes) {
+            if (evict(frequency) == null) {
+                rejections++;
+                return null;
+            }
+        }
+
+        Slab.Block block = null;
+
+        if (slabs != null) {
+            // the budget is met, but the slab may be fragmented or hold blocks of removed entries still being sent
+            while ((block = allocate(length)) == null) {
+                if (evict(frequency) == null) {
+                    rejections++;
+                    return null;
+                }
+            }
+        }
+
+        final ByteBuffer body = block == null ? ByteBuffer.allocate(length) : block.buffer;
+
+        size += length;
+
+        return new Entry(key, status, contentType, contentEncoding, cookies, body, block, expires, lastModified);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("MemoryCache [size=");
+        builder.append(size);
+        builder.append(", maxBytes=");
+        builder.append(maxBytes);
+        builder.append(", entries=");
+        builder.append(entries.size());
+        builder.append(", hits=");
+        builder.append(hits);
+        builder.append(", misses=");
+        builder.append(misses);
+        builder.append(", evictions=");
+        builder.append(evictions);
+        builder.append("]");
+
+        return builder.toString();
+    }
+
+    private void unlink(final Entry entry) {
+        entries.remove(entry.key, entry);
+        clock.remove(entry.key);
+        size -= entry.getSize();
+        release(entry);
+    }
+}
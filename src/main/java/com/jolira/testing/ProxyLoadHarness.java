@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+
+/**
+ * Measures a {@link CachingRESTProxy} end to end on the local machine. A {@link WebServerEmulator} acting as the
+ * backend answers every request with a fixed-size body after an optional delay, a proxy with a fresh cache directory
+ * is put in front of it and a {@link LoadGenerator} drives the proxy. The throughput and latency percentiles seen by
+ * the generator are reported together with the metrics of the proxy and the number of requests that reached the
+ * backend.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class ProxyLoadHarness {
+    private static final String RATE = "rate";
+    private static final String CONNECTIONS = "connections";
+    private static final String DURATION = "duration";
+    private static final String KEYS = "keys";
+    private static final String ZIPF = "zipf";
+    private static final String MISS_RATIO = "miss-ratio";
+    private static final String PAYLOAD = "payload";
+    private static final String BACKEND_DELAY = "backend-delay";
+    private static final String ASYNC = "async";
+    private static final String MEMORY = "memory";
+    private static final String HELP = "help";
+    private static final long REPORT_INTERVAL = 5000;
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        final Parser parser = new GnuParser();
+        final HelpFormatter formatter = new HelpFormatter();
+        final Options options = new Options();
+
+        options.addOption("r", RATE, true, "requests started per second (default: 1000)");
+        options.addOption("c", CONNECTIONS, true, "maximum number of connections to the proxy (default: 16)");
+        options.addOption("t", DURATION, true, "time to send requests for in milliseconds (default: 30000)");
+        options.addOption("k", KEYS, true, "number of distinct keys (default: 10000)");
+        options.addOption("z", ZIPF, true, "skew of the key distribution; 0 for uniform (default: 1)");
+        options.addOption(null, MISS_RATIO, true, "share of requests for keys that are never repeated (default: 0)");
+        options.addOption("p", PAYLOAD, true, "size of the bodies sent by the backend in bytes (default: 4096)");
+        options.addOption("d", BACKEND_DELAY, true, "time the backend takes to answer in milliseconds (default: 0)");
+        options.addOption("a", ASYNC, false, "handle misses asynchronously");
+        options.addOption("m", MEMORY, true, "size of the in-memory tier of the proxy in bytes");
+        options.addOption("?", HELP, false, "display help");
+
+        final CommandLine cli = parser.parse(options, args);
+
+        if (cli.hasOption(HELP)) {
+            formatter.printHelp(ProxyLoadHarness.class.getName(), options);
+            return;
+        }
+
+        final int payload = Integer.parseInt(cli.getOptionValue(PAYLOAD, "4096"));
+        final long backendDelay = Long.parseLong(cli.getOptionValue(BACKEND_DELAY, "0"));
+        final ProxyLoadHarness harness = new ProxyLoadHarness(payload, backendDelay);
+        final CachingRESTProxy proxy = harness.getProxy();
+        final String memory = cli.getOptionValue(MEMORY);
+
+        proxy.setAsync(cli.hasOption(ASYNC));
+
+        if (memory != null) {
+            proxy.setMemoryCache(new MemoryCache(Long.parseLong(memory), false));
+        }
+
+        harness.start();
+
+        try {
+            final double rate = Double.parseDouble(cli.getOptionValue(RATE, "1000"));
+            final int connections = Integer.parseInt(cli.getOptionValue(CONNECTIONS, "16"));
+            final LoadGenerator generator = harness.createGenerator(rate, connections);
+            final int keys = Integer.parseInt(cli.getOptionValue(KEYS, "10000"));
+            final double zipf = Double.parseDouble(cli.getOptionValue(ZIPF, "1"));
+
+            generator.setKeys(keys, zipf);
+            generator.setMissRatio(Double.parseDouble(cli.getOptionValue(MISS_RATIO, "0")));
+            generator.run(Long.parseLong(cli.getOptionValue(DURATION, "30000")), System.out, REPORT_INTERVAL);
+
+            System.out.println(proxy.getMetrics());
+            System.out.println("backend requests: " + harness.getBackendRequests());
+        } finally {
+            harness.stop();
+        }
+    }
+
+    private final File cache;
+    private final ByteBuffer body;
+    private final long backendDelay;
+    private final AtomicLong backendRequests = new AtomicLong();
+    private final WebServerEmulator backend = new WebServerEmulator() {
+        @Override
+        protected void handle(final String target, final HttpServletRequest request,
+                final HttpServletResponse response) throws IOException {
+            backendRequests.incrementAndGet();
+
+            if (backendDelay > 0) {
+                try {
+                    Thread.sleep(backendDelay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            }
+
+            respond("application/json", response, body);
+        }
+    };
+    private final CachingRESTProxy proxy;
+
+    /**
+     * Start the backend and create a proxy in front of it with a fresh cache directory. The proxy can be configured
+     * using {@link #getProxy()} before the harness is started.
+     * 
+     * @param payload
+     *            the size of the bodies sent by the backend in bytes
+     * @param backendDelay
+     *            the time the backend takes to answer a request in milliseconds
+     * @throws Exception
+     *             the backend could not be started
+     */
+    public ProxyLoadHarness(final int payload, final long backendDelay) throws Exception {
+        final byte[] content = new byte[payload];
+
+        for (int idx = 0; idx < payload; idx++) {
+            content[idx] = (byte) ('a' + idx % 26);
+        }
+
+        body = ByteBuffer.wrap(content);
+        this.backendDelay = backendDelay;
+        cache = File.createTempFile("jo-", "-load");
+        cache.delete();
+        backend.start();
+        proxy = new CachingRESTProxy(false, backend.getName(), cache);
+    }
+
+    /**
+     * @param rate
+     *            the number of requests started per second
+     * @param connections
+     *            the maximum number of connections to the proxy
+     * @return a generator that drives the proxy
+     */
+    public LoadGenerator createGenerator(final double rate, final int connections) {
+        return new LoadGenerator(false, proxy.getName(), rate, connections);
+    }
+
+    /**
+     * @return the number of requests that reached the backend
+     */
+    public long getBackendRequests() {
+        return backendRequests.get();
+    }
+
+    /**
+     * @return the proxy under test
+     */
+    public CachingRESTProxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Start the proxy.
+     * 
+     * @throws Exception
+     *             the proxy could not be started
+     */
+    public void start() throws Exception {
+        proxy.start();
+    }
+
+    /**
+     * Stop the proxy and the backend and delete the cache directory.
+     * 
+     * @throws Exception
+     *             the servers could not be stopped
+     */
+    public void stop() throws Exception {
+        try {
+            proxy.stop();
+        } finally {
+            backend.stop();
+            delete(cache);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a {@link CachingRESTProxy} is doing: hits and misses, requests that waited for another request's fetch,
+ * errors, the bytes served from the cache and received from the backend, the latencies of requests and backend fetches
+ * and the number of requests and fetches in flight. All counters are atomic, so recording never takes a lock.
+ * <p>
+ * The metrics are registered as an MBean while the proxy is running and can also be served as JSON by the proxy
+ * itself (see {@link CachingRESTProxy#setStatsPath(String)}).
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class ProxyMetrics implements ProxyMetricsMBean {
+    /**
+     * Measures a single request. A request may be dispatched several times while it is suspended; it is stopped exactly
+     * once, no matter how many threads try.
+     */
+    class Timer {
+        private final long started = System.nanoTime();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        void stop() {
+            if (stopped.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                requestLatency.record(System.nanoTime() - started);
+            }
+        }
+    }
+
+    private final BackendClient client;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesFromCache = new AtomicLong();
+    private final AtomicLong bytesFromBackend = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    /**
+     * @param client
+     *            the client whose fetches are tracked
+     */
+    ProxyMetrics(final BackendClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public int getBackendFetchesInFlight() {
+        return client.getInFlight();
+    }
+
+    @Override
+    public long getBackendLatencyMean() {
+        return client.getFetchTimes().getMean();
+    }
+
+    @Override
+    public long getBackendLatencyP50() {
+        return client.getFetchTimes().getPercentile(0.5);
+    }
+
+    @Override
+    public long getBackendLatencyP99() {
+        return client.getFetchTimes().getPercentile(0.99);
+    }
+
+    @Override
+    public long getBytesFromBackend() {
+        return bytesFromBackend.get();
+    }
+
+    @Override
+    public long getBytesFromCache() {
+        return bytesFromCache.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long _hits = hits.get();
+        final long answered = _hits + misses.get();
+
+        return answered == 0 ? 0 : (double) _hits / answered;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getRequestLatencyMax() {
+        return requestLatency.getMax();
+    }
+
+    @Override
+    public long getRequestLatencyMean() {
+        return requestLatency.getMean();
+    }
+
+    @Override
+    public long getRequestLatencyP50() {
+        return requestLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getRequestLatencyP99() {
+        return requestLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return inFlight.get();
+    }
+
+    void recordBackendBytes(final long bytes) {
+        bytesFromBackend.addAndGet(bytes);
+    }
+
+    void recordCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @param bytes
+     *            the number of bytes served, as stored in the cache
+     * @param memory
+     *            {@literal true} if the entry was served from the in-memory tier
+     */
+    void recordHit(final long bytes, final boolean memory) {
+        hits.incrementAndGet();
+        bytesFromCache.addAndGet(bytes);
+
+        if (memory) {
+            memoryHits.incrementAndGet();
+        }
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * @return the timer to be stopped once the request has been answered
+     */
+    Timer start() {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+
+        return new Timer();
+    }
+
+    /**
+     * @return the metrics as a JSON object, including the full latency histograms
+     */
+    String toJson() {
+        final StringBuilder json = new StringBuilder();
+
+        json.append("{\"requests\":");
+        json.append(getRequests());
+        json.append(",\"hits\":");
+        json.append(getHits());
+        json.append(",\"memoryHits\":");
+        json.append(getMemoryHits());
+        json.append(",\"misses\":");
+        json.append(getMisses());
+        json.append(",\"hitRatio\":");
+        json.append(getHitRatio());
+        json.append(",\"coalesced\":");
+        json.append(getCoalesced());
+        json.append(",\"errors\":");
+        json.append(getErrors());
+        json.append(",\"bytesFromCache\":");
+        json.append(getBytesFromCache());
+        json.append(",\"bytesFromBackend\":");
+        json.append(getBytesFromBackend());
+        json.append(",\"requestsInFlight\":");
+        json.append(getRequestsInFlight());
+        json.append(",\"backendFetchesInFlight\":");
+        json.append(getBackendFetchesInFlight());
+        json.append(",\"requestLatency\":");
+        requestLatency.appendJson(json);
+        json.append(",\"backendLatency\":");
+        client.getFetchTimes().appendJson(json);
+        json.append('}');
+
+        return json.toString();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("ProxyMetrics [requests=");
+        builder.append(getRequests());
+        builder.append(", hits=");
+        builder.append(getHits());
+        builder.append(", misses=");
+        builder.append(getMisses());
+        builder.append(", coalesced=");
+        builder.append(getCoalesced());
+        builder.append(", errors=");
+        builder.append(getErrors());
+        builder.append(", bytesFromCache=");
+        builder.append(getBytesFromCache());
+        builder.append(", bytesFromBackend=");
+        builder.append(getBytesFromBackend());
+        builder.append(", requestLatencyP99=");
+        builder.append(getRequestLatencyP99());
+        builder.append("us, backendLatencyP99=");
+        builder.append(getBackendLatencyP99());
+        builder.append("us]");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+/**
+ * The management interface of {@link ProxyMetrics}, through which a {@link CachingRESTProxy} is monitored over JMX.
+ * Latencies are reported in microseconds.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public interface ProxyMetricsMBean {
+    /**
+     * @return the number of backend fetches currently in flight
+     */
+    int getBackendFetchesInFlight();
+
+    /**
+     * @return the average time of a backend fetch
+     */
+    long getBackendLatencyMean();
+
+    /**
+     * @return the median time of a backend fetch
+     */
+    long getBackendLatencyP50();
+
+    /**
+     * @return the 99th percentile of the time of a backend fetch
+     */
+    long getBackendLatencyP99();
+
+    /**
+     * @return the number of body bytes received from the backend
+     */
+    long getBytesFromBackend();
+
+    /**
+     * @return the number of body bytes served from the cache
+     */
+    long getBytesFromCache();
+
+    /**
+     * @return the number of requests that waited for another request to fetch the same entry
+     */
+    long getCoalesced();
+
+    /**
+     * @return the number of requests that failed
+     */
+    long getErrors();
+
+    /**
+     * @return the share of the answered requests that were served from the cache
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of requests served from the cache
+     */
+    long getHits();
+
+    /**
+     * @return the number of requests served from the in-memory tier
+     */
+    long getMemoryHits();
+
+    /**
+     * @return the number of requests served from the backend
+     */
+    long getMisses();
+
+    /**
+     * @return the number of requests handled
+     */
+    long getRequests();
+
+    /**
+     * @return the number of requests currently being handled, including suspended ones
+     */
+    int getRequestsInFlight();
+
+    /**
+     * @return the average time to answer a request
+     */
+    long getRequestLatencyMean();
+
+    /**
+     * @return the median time to answer a request
+     */
+    long getRequestLatencyP50();
+
+    /**
+     * @return the 99th percentile of the time to answer a request
+     */
+    long getRequestLatencyP99();
+
+    /**
+     * @return the longest time to answer a request
+     */
+    long getRequestLatencyMax();
+}
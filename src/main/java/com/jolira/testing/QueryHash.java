@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+/**
+ * A 128-bit MurmurHash3 (x64 variant) of a query. The hash is computed in a single pass straight over the characters
+ * of the query, eight characters (16 bytes) at a time, without encoding the query to bytes first.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class QueryHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static long fmix(final long key) {
+        long k = key;
+
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    /**
+     * @param query
+     *            the query
+     * @return the hash as 32 lower-case hex digits
+     */
+    static String hash(final CharSequence query) {
+        final long[] hash = hash128(query);
+        final char[] hex = new char[32];
+
+        toHex(hash[0], hex, 0);
+        toHex(hash[1], hex, 16);
+
+        return new String(hex);
+    }
+
+    /**
+     * @param query
+     *            the query
+     * @return the two 64-bit halves of the hash
+     */
+    static long[] hash128(final CharSequence query) {
+        final int length = query.length();
+        final int blocks = length / 8;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int block = 0; block < blocks; block++) {
+            final int off = block * 8;
+            long k1 = pack(query, off, 4);
+            long k2 = pack(query, off + 4, 4);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int off = blocks * 8;
+        final int remaining = length - off;
+
+        if (remaining > 4) {
+            long k2 = pack(query, off + 4, remaining - 4);
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+
+        if (remaining > 0) {
+            long k1 = pack(query, off, Math.min(remaining, 4));
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length * 2;
+        h2 ^= length * 2;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] { h1, h2 };
+    }
+
+    /**
+     * Pack up to four characters into a long, little-endian.
+     */
+    private static long pack(final CharSequence query, final int off, final int count) {
+        long packed = 0;
+
+        for (int idx = 0; idx < count; idx++) {
+            packed |= (long) query.charAt(off + idx) << (16 * idx);
+        }
+
+        return packed;
+    }
+
+    private static void toHex(final long value, final char[] hex, final int off) {
+        for (int idx = 0; idx < 16; idx++) {
+            hex[off + idx] = HEX[(int) (value >>> (60 - 4 * idx)) & 0xf];
+        }
+    }
+}
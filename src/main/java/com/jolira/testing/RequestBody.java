@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The body of a request whose response is cached, such as a JSON-RPC call or a search sent as {@literal POST}. The
+ * body is hashed (SHA-1) while it is read, so it can become part of the cache key. Small bodies are kept in memory;
+ * larger ones are spooled to a temporary file instead of being buffered, so they can still be forwarded to the backend
+ * on a miss.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class RequestBody {
+    static final int MAX_BUFFERED = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has to support SHA-1
+        }
+    }
+
+    /**
+     * Read and hash a body.
+     * 
+     * @param method
+     *            the method of the request, such as {@literal POST}
+     * @param in
+     *            the body; it is read completely but not closed
+     * @return the body
+     * @throws IOException
+     *             reading the body or spooling it failed
+     */
+    static RequestBody read(final String method, final InputStream in) throws IOException {
+        final MessageDigest digest = getDigest();
+        final byte[] buffer = BufferPool.SHARED.acquire();
+        ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        OutputStream out = buffered;
+        File spooled = null;
+        long length = 0;
+
+        try {
+            for (;;) {
+                final int read = in.read(buffer);
+
+                if (read == -1) {
+                    break;
+                }
+
+                digest.update(buffer, 0, read);
+                length += read;
+
+                if (spooled == null && length > MAX_BUFFERED) {
+                    spooled = File.createTempFile("jo-body", ".tmp");
+                    out = new BufferedOutputStream(new FileOutputStream(spooled));
+                    buffered.writeTo(out);
+                    buffered = null;
+                }
+
+                out.write(buffer, 0, read);
+            }
+
+            out.close();
+        } catch (final IOException e) {
+            out.close();
+
+            if (spooled != null) {
+                spooled.delete();
+            }
+
+            throw e;
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+
+        final byte[] content = buffered == null ? null : buffered.toByteArray();
+
+        return new RequestBody(method, toHex(digest.digest()), length, content, spooled);
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] hex = new char[2 * bytes.length];
+
+        for (int idx = 0; idx < bytes.length; idx++) {
+            hex[2 * idx] = HEX[bytes[idx] >>> 4 & 0xf];
+            hex[2 * idx + 1] = HEX[bytes[idx] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private final String method;
+    private final String hash;
+    private final long length;
+    private final byte[] content;
+    private final File spooled;
+    private final Collection<InputStream> opened = new ArrayList<InputStream>();
+
+    private RequestBody(final String method, final String hash, final long length, final byte[] content,
+            final File spooled) {
+        this.method = method;
+        this.hash = hash;
+        this.length = length;
+        this.content = content;
+        this.spooled = spooled;
+    }
+
+    /**
+     * Delete the spooled body and close all the streams returned by {@link #open()}. Discarding a body more than once
+     * does no harm.
+     */
+    synchronized void discard() {
+        for (final InputStream in : opened) {
+            try {
+                in.close();
+            } catch (final IOException e) {
+                // nothing left to do
+            }
+        }
+
+        opened.clear();
+
+        if (spooled != null) {
+            spooled.delete();
+        }
+    }
+
+    /**
+     * @return the body or {@literal null}, if it was spooled to a file
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the hash as 40 lower-case hex digits
+     */
+    String getHash() {
+        return hash;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return a stream reading the body from the beginning; the stream is closed by {@link #discard()}
+     * @throws IOException
+     *             the spooled body could not be opened
+     */
+    synchronized InputStream open() throws IOException {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+
+        final InputStream in = new FileInputStream(spooled);
+
+        opened.add(in);
+
+        return in;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent requests for the same key into a single flight. The first caller for a key becomes the leader
+ * and performs the work; everybody else waits for the leader to land and then re-reads the result it produced.
+ * Followers can either block until the flight lands or register a callback to be run when it does.
+ * <p>
+ * A flight that produced no result records why, so its followers neither wait for another flight nor take turns as
+ * the leader, one after the other: a flight that failed carries the status its followers answer with, and a flight
+ * whose result is not kept lands as soon as that is known, so its followers do the work themselves, in parallel.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class RequestCoalescer {
+    /**
+     * A single in-progress fetch for a key.
+     */
+    static class Flight {
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private Collection<Runnable> listeners = new ArrayList<Runnable>();
+        private volatile int failure = 0;
+        private volatile boolean passedThrough = false;
+
+        /**
+         * Run a callback once the flight has landed. If it already did, the callback is run right away.
+         */
+        void addListener(final Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+
+            listener.run();
+        }
+
+        boolean await(final long timeout) throws InterruptedIOException {
+            try {
+                return landed.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                final InterruptedIOException ex = new InterruptedIOException("interrupted waiting for flight");
+
+                ex.initCause(e);
+
+                throw ex;
+            }
+        }
+
+        /**
+         * Record that the flight failed. This has to happen before the flight lands.
+         * 
+         * @param status
+         *            the http status the followers answer with
+         */
+        void fail(final int status) {
+            failure = status;
+        }
+
+        /**
+         * @return the http status the followers of a failed flight answer with or {@literal 0}, if the flight did not
+         *         fail
+         */
+        int getFailure() {
+            return failure;
+        }
+
+        boolean isLanded() {
+            return landed.getCount() == 0;
+        }
+
+        /**
+         * @return {@literal true} if the result of the flight is not kept, so every follower has to do the work itself
+         */
+        boolean isPassedThrough() {
+            return passedThrough;
+        }
+
+        void land() {
+            final Collection<Runnable> _listeners;
+
+            synchronized (this) {
+                _listeners = listeners;
+                listeners = null;
+            }
+
+            landed.countDown();
+
+            if (_listeners != null) {
+                for (final Runnable listener : _listeners) {
+                    listener.run();
+                }
+            }
+        }
+
+        /**
+         * Record that the result of the flight is not kept. This has to happen before the flight lands.
+         */
+        void passThrough() {
+            passedThrough = true;
+        }
+    }
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * Wait for the current flight for a key to land.
+     * 
+     * @param key
+     *            the key
+     * @param timeout
+     *            the maximum time to wait in milliseconds
+     * @return {@literal true} if there is no flight for the key or if it landed in time
+     * @throws InterruptedIOException
+     *             the waiting thread was interrupted
+     */
+    boolean await(final String key, final long timeout) throws InterruptedIOException {
+        final Flight flight = flights.get(key);
+
+        if (flight == null) {
+            return true;
+        }
+
+        return flight.await(timeout);
+    }
+
+    /**
+     * @param key
+     *            the key
+     * @return the flight in progress for a key or {@literal null}, if there is none
+     */
+    Flight get(final String key) {
+        return flights.get(key);
+    }
+
+    /**
+     * Mark a flight as done and release all followers. Landing a flight again has no effect.
+     * 
+     * @param key
+     *            the key
+     * @param flight
+     *            the flight returned by {@link #lead(String)}
+     */
+    void land(final String key, final Flight flight) {
+        flights.remove(key, flight);
+        flight.land();
+    }
+
+    /**
+     * Try to become the leader for a key.
+     * 
+     * @param key
+     *            the key
+     * @return the new flight, if the caller became the leader, or {@literal null} if another flight is in progress
+     */
+    Flight lead(final String key) {
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+
+        return existing == null ? flight : null;
+    }
+
+    /**
+     * @return the number of flights currently in progress
+     */
+    int size() {
+        return flights.size();
+    }
+}
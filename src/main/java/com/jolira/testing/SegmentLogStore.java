@@ -0,0 +1,1173 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+
+/**
+ * Stores cache entries in append-only segment files instead of a directory tree with one or two files per entry.
+ * Millions of entries therefore only cost a handful of files, and a lookup does not touch the file system: an in-memory
+ * index maps every key to the segment, offset and length of its most recent record, and the record itself is read
+ * from a memory-mapped view of the segment. Only a record that is larger than a whole segment is read from the file.
+ * <p>
+ * Every record carries a sequence number and a CRC32 checksum. Overwriting or removing a key only appends a new record
+ * (or a tombstone), so the older record becomes garbage. A background compactor copies the live records of segments
+ * that are mostly garbage to the active segment and deletes the old files. On {@link #open()} the index is rebuilt by
+ * scanning the record headers of all segments; a torn record at the end of the last segment (from a crash during an
+ * append) is cut off.
+ * <p>
+ * {@link #importTree(File)} (also available from the command line through {@link #main(String[])}) converts a cache
+ * directory written by {@link CachingRESTProxy} into a segment log.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+public class SegmentLogStore {
+    /**
+     * An entry read from the log.
+     */
+    public static class Entry {
+        private final String key;
+        private final CacheMetadata metadata;
+        private final ByteBuffer body;
+
+        Entry(final String key, final CacheMetadata metadata, final ByteBuffer body) {
+            this.key = key;
+            this.metadata = metadata;
+            this.body = body;
+        }
+
+        /**
+         * @return a read-only view of the body
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        /**
+         * @return the encoding the body is stored in or {@literal null}, if it is stored as is
+         */
+        public String getContentEncoding() {
+            return metadata.contentEncoding;
+        }
+
+        /**
+         * @return the content type or {@literal null}
+         */
+        public String getContentType() {
+            return metadata.contentType;
+        }
+
+        /**
+         * @return the cookies in the order they are to be replayed
+         */
+        public Cookie[] getCookies() {
+            return metadata.cookies.clone();
+        }
+
+        /**
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the length of the body
+         */
+        public int getLength() {
+            return body.remaining();
+        }
+
+        CacheMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * @return the http status
+         */
+        public int getStatus() {
+            return metadata.status;
+        }
+    }
+
+    /**
+     * Where the most recent record for a key lives.
+     */
+    private static class Location {
+        final Segment segment;
+        final long position;
+        final int size;
+        final long sequence;
+
+        Location(final Segment segment, final long position, final int size, final long sequence) {
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The parsed header of a record.
+     */
+    private static class Record {
+        final byte type;
+        final long sequence;
+        final String key;
+        final int metaPosition;
+        final int metaLength;
+        final int bodyPosition;
+        final int bodyLength;
+        final int size;
+
+        Record(final byte type, final long sequence, final String key, final int metaPosition, final int metaLength,
+                final int bodyPosition, final int bodyLength) {
+            this.type = type;
+            this.sequence = sequence;
+            this.key = key;
+            this.metaPosition = metaPosition;
+            this.metaLength = metaLength;
+            this.bodyPosition = bodyPosition;
+            this.bodyLength = bodyLength;
+            size = bodyPosition + bodyLength + CHECKSUM_LENGTH;
+        }
+    }
+
+    /**
+     * A segment file. Only the active segment is appended to; all others are sealed and only ever read and eventually
+     * compacted away. Every segment is mapped once, when it is first read (or, for the segments found on
+     * {@link SegmentLogStore#open()}, when it is scanned). The active segment is extended to the maximum segment size
+     * before it becomes active, so its single mapping also covers the records appended after it was made; the file
+     * is cut back to the records it holds when the store is closed or opened. Mapping a file that keeps growing
+     * instead would take a new mapping for nearly every read that follows a write, and mappings are only released by
+     * the garbage collector. A record that reaches beyond the mapping, which only happens to records larger than a
+     * whole segment, is read from the file.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final AtomicLong live = new AtomicLong();
+        private volatile MappedByteBuffer mapped = null;
+        private volatile boolean deleted = false;
+        volatile long size;
+
+        Segment(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        synchronized void delete() throws IOException {
+            deleted = true;
+            mapped = null;
+            raf.close();
+            file.delete();
+        }
+
+        private MappedByteBuffer map() throws IOException {
+            final MappedByteBuffer _mapped = mapped;
+
+            if (_mapped != null) {
+                return _mapped;
+            }
+
+            synchronized (this) {
+                if (deleted) {
+                    return null;
+                }
+
+                if (mapped == null) {
+                    mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+                }
+
+                return mapped;
+            }
+        }
+
+        /**
+         * Extend the file, so the mapping of the segment covers the records that are going to be appended to it. The
+         * extension is not written, so it takes no space on file systems that support sparse files.
+         */
+        void preallocate(final long capacity) throws IOException {
+            if (channel.size() < capacity) {
+                raf.setLength(capacity);
+            }
+        }
+
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException(file + " ends before " + (position + length));
+                }
+            }
+
+            buffer.flip();
+
+            return buffer;
+        }
+
+        /**
+         * @return a view of a region of the segment or {@literal null} if the segment was compacted away
+         */
+        ByteBuffer slice(final long position, final int length) throws IOException {
+            if (deleted) {
+                return null;
+            }
+
+            final MappedByteBuffer _mapped = map();
+
+            if (_mapped == null) {
+                return null;
+            }
+
+            if (position + length > _mapped.capacity()) {
+                return read(position, length);
+            }
+
+            final ByteBuffer view = _mapped.duplicate();
+
+            view.position((int) position);
+            view.limit((int) (position + length));
+
+            return view.slice();
+        }
+
+        void truncate(final long _size) throws IOException {
+            channel.truncate(_size);
+            size = _size;
+        }
+
+        void write(final ByteBuffer buffer, final long position) throws IOException {
+            long _position = position;
+
+            while (buffer.hasRemaining()) {
+                _position += channel.write(buffer, _position);
+            }
+        }
+    }
+
+    /**
+     * The default maximum size of a segment file.
+     */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default ratio of live bytes below which a sealed segment is compacted.
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * The default interval between background compaction runs.
+     */
+    public static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+
+    private static final int MAGIC = 0x4a4c5331; // "JLS1"
+    private static final byte ENTRY = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int BUFFER_SIZE = 65536;
+    private static final String SUFFIX = ".log";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TREE = "tree";
+    private static final String LOG = "log";
+    private static final String HELP = "help";
+
+    private static int checksum(final ByteBuffer record, final Record header) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer view = record.duplicate();
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        view.position(4);
+        view.limit(header.bodyPosition + header.bodyLength);
+
+        try {
+            while (view.hasRemaining()) {
+                final int length = Math.min(buffer.length, view.remaining());
+
+                view.get(buffer, 0, length);
+                crc.update(buffer, 0, length);
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(final ByteBuffer content, final int position, final Record record) {
+        final ByteBuffer raw = content.duplicate();
+
+        raw.position(position);
+        raw.limit(position + record.size);
+
+        return checksum(raw.slice(), record);
+    }
+
+    private static ByteBuffer encodeHeader(final byte type, final long sequence, final byte[] key, final byte[] meta,
+            final long bodyLength) {
+        final ByteBuffer header = ByteBuffer.allocate(29 + key.length + meta.length);
+
+        header.putInt(MAGIC);
+        header.put(type);
+        header.putLong(sequence);
+        header.putInt(key.length);
+        header.put(key);
+        header.putInt(meta.length);
+        header.put(meta);
+        header.putLong(bodyLength);
+        header.flip();
+
+        return header;
+    }
+
+    /**
+     * Convert a cache directory from the command line.
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        final Parser parser = new GnuParser();
+        final HelpFormatter formatter = new HelpFormatter();
+        final Options options = new Options();
+
+        options.addOption("t", TREE, true, "the cache directory to convert (mandatory!)");
+        options.addOption("l", LOG, true, "the directory for the segment files (mandatory!)");
+        options.addOption("?", HELP, false, "display help");
+
+        final CommandLine cli = parser.parse(options, args);
+        final String tree = cli.getOptionValue(TREE);
+        final String log = cli.getOptionValue(LOG);
+
+        if (cli.hasOption(HELP) || tree == null || log == null) {
+            formatter.printHelp(SegmentLogStore.class.getName(), options);
+            return;
+        }
+
+        final SegmentLogStore store = new SegmentLogStore(new File(log));
+
+        store.setCompactionInterval(0);
+        store.open();
+
+        try {
+            final int count = store.importTree(new File(tree));
+
+            System.out.println("converted " + count + " entries to " + store);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * @return the parsed header or {@literal null} if there is no complete, well-formed record at the position
+     */
+    private static Record readHeader(final ByteBuffer segment, final int position) {
+        final int available = segment.limit() - position;
+
+        if (available < 17 || segment.getInt(position) != MAGIC) {
+            return null;
+        }
+
+        final byte type = segment.get(position + 4);
+        final long sequence = segment.getLong(position + 5);
+        final int keyLength = segment.getInt(position + 13);
+
+        if (keyLength < 0 || available < 29 + keyLength) {
+            return null;
+        }
+
+        final int metaLength = segment.getInt(position + 17 + keyLength);
+
+        if (metaLength < 0 || available < 29 + keyLength + metaLength) {
+            return null;
+        }
+
+        final long bodyLength = segment.getLong(position + 21 + keyLength + metaLength);
+        final int headerLength = 29 + keyLength + metaLength;
+
+        if (bodyLength < 0 || available < headerLength + bodyLength + CHECKSUM_LENGTH) {
+            return null;
+        }
+
+        final byte[] key = new byte[keyLength];
+        final ByteBuffer view = segment.duplicate();
+
+        view.position(position + 17);
+        view.get(key);
+
+        return new Record(type, sequence, new String(key, UTF8), 21 + keyLength, metaLength, headerLength,
+                (int) bodyLength);
+    }
+
+    private final File dir;
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+    private ScheduledExecutorService compactor = null;
+    private final Object compaction = new Object();
+    private volatile Segment active = null;
+    private long sequence = 0;
+
+    /**
+     * Create a new store.
+     * 
+     * @param dir
+     *            the directory holding the segment files
+     */
+    public SegmentLogStore(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the segment the record was appended to
+     */
+    private Segment append(final ByteBuffer header, final InputStream body, final long bodyLength, final String key)
+            throws IOException {
+        final int size = (int) (header.remaining() + bodyLength + CHECKSUM_LENGTH);
+        final Segment segment = getActiveSegment(size);
+        final long position = segment.size;
+        final CRC32 crc = new CRC32();
+        final byte[] headerBytes = header.array();
+
+        crc.update(headerBytes, 4, header.remaining() - 4);
+        segment.write(header, position);
+
+        long _position = position + headerBytes.length;
+        long remaining = bodyLength;
+        // the body goes through a pooled direct buffer, so the channel does not copy it into a temporary one
+        final byte[] buffer = body == null ? null : BufferPool.SHARED.acquire();
+        final ByteBuffer direct = BufferPool.SHARED.acquireDirect();
+
+        try {
+            while (remaining > 0) {
+                final int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                if (read == -1) {
+                    throw new IOException("body of " + key + " is shorter than " + bodyLength + " bytes");
+                }
+
+                crc.update(buffer, 0, read);
+                direct.clear();
+                direct.put(buffer, 0, read);
+                direct.flip();
+                segment.write(direct, _position);
+                _position += read;
+                remaining -= read;
+            }
+
+            direct.clear();
+            direct.putInt((int) crc.getValue());
+            direct.flip();
+            segment.write(direct, _position);
+        } catch (final IOException e) {
+            segment.truncate(position);
+            throw e;
+        } finally {
+            BufferPool.SHARED.release(buffer);
+            BufferPool.SHARED.release(direct);
+        }
+
+        segment.size = position + size;
+
+        return segment;
+    }
+
+    /**
+     * Stop the background compaction and close all segment files.
+     * 
+     * @throws IOException
+     *             closing failed
+     */
+    public void close() throws IOException {
+        synchronized (compaction) {
+            synchronized (this) {
+                if (compactor != null) {
+                    compactor.shutdown();
+                    compactor = null;
+                }
+
+                for (final Segment segment : segments.values()) {
+                    if (segment == active) {
+                        segment.truncate(segment.size); // drop the unwritten extension
+                    }
+
+                    segment.raf.close();
+                }
+
+                segments.clear();
+                index.clear();
+                active = null;
+            }
+        }
+    }
+
+    /**
+     * Compact all sealed segments in which the ratio of live bytes fell below the compaction threshold.
+     * 
+     * @return the number of segments that were compacted
+     * @throws IOException
+     *             reading or writing a segment failed
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+
+        synchronized (compaction) {
+            for (final Segment segment : segments.values()) {
+                if (segment == active || segment.size == 0) {
+                    continue;
+                }
+
+                final double ratio = (double) segment.live.get() / segment.size;
+
+                if (ratio < compactionThreshold) {
+                    compact(segment);
+                    compacted++;
+                }
+            }
+        }
+
+        return compacted;
+    }
+
+    private void compact(final Segment segment) throws IOException {
+        final ByteBuffer content = segment.slice(0, (int) segment.size);
+
+        if (content == null) {
+            return;
+        }
+
+        for (int position = 0;;) {
+            final Record record = readHeader(content, position);
+
+            if (record == null) {
+                break;
+            }
+
+            final ByteBuffer raw = content.duplicate();
+
+            raw.position(position);
+            raw.limit(position + record.size);
+            copy(segment, position, record, raw.slice());
+            position += record.size;
+        }
+
+        synchronized (this) {
+            segments.remove(Integer.valueOf(segment.id));
+            segment.delete();
+        }
+    }
+
+    /**
+     * Copy a record to the active segment if it is still needed.
+     */
+    private synchronized void copy(final Segment segment, final long position, final Record record,
+            final ByteBuffer raw) throws IOException {
+        final Location location = index.get(record.key);
+
+        if (record.type == ENTRY) {
+            if (location == null || location.segment != segment || location.position != position) {
+                return; // garbage
+            }
+
+            if (checksum(raw, record) != raw.getInt(record.size - CHECKSUM_LENGTH)) {
+                index.remove(record.key, location); // corrupted; the entry will be fetched again
+                return;
+            }
+        } else if (location != null || segments.firstKey().intValue() == segment.id) {
+            return; // the tombstone no longer shadows anything
+        }
+
+        final Segment target = getActiveSegment(record.size);
+        final long _position = target.size;
+
+        target.write(raw.duplicate(), _position);
+        target.size += record.size;
+
+        if (record.type == ENTRY) {
+            index.put(record.key, new Location(target, _position, record.size, record.sequence));
+            segment.live.addAndGet(-record.size);
+            target.live.addAndGet(record.size);
+        }
+    }
+
+    private Segment createSegment(final int id) throws IOException {
+        final String name = String.format("%08d%s", Integer.valueOf(id), SUFFIX);
+        final Segment segment = new Segment(id, new File(dir, name));
+
+        segments.put(Integer.valueOf(id), segment);
+
+        return segment;
+    }
+
+    /**
+     * Create a temporary file in the directory of this store, suitable for staging a body before it is
+     * {@link #put(String, int, String, String[], File) put}.
+     * 
+     * @return the file
+     * @throws IOException
+     *             the file could not be created
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile(".fetch", ".tmp", dir);
+    }
+
+    /**
+     * Look up an entry.
+     * 
+     * @param key
+     *            the key
+     * @return the entry or {@literal null}
+     * @throws IOException
+     *             reading the entry failed
+     */
+    public Entry get(final String key) throws IOException {
+        for (;;) {
+            final Location location = index.get(key);
+
+            if (location == null) {
+                return null;
+            }
+
+            final ByteBuffer record = location.segment.slice(location.position, location.size);
+
+            if (record != null) {
+                return read(record);
+            }
+
+            // the segment was compacted away underneath us; the index already points to the copy
+        }
+    }
+
+    private Segment getActiveSegment(final int size) throws IOException {
+        if (active.size > 0 && active.size + size > maxSegmentSize) {
+            final Segment next = createSegment(active.id + 1);
+
+            next.preallocate(maxSegmentSize);
+            active = next;
+        }
+
+        return active;
+    }
+
+    /**
+     * @return the number of bytes held by live records
+     */
+    public long getLiveBytes() {
+        long live = 0;
+
+        for (final Segment segment : segments.values()) {
+            live += segment.live.get();
+        }
+
+        return live;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int getSize() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of bytes in all segment files
+     */
+    public long getTotalBytes() {
+        long total = 0;
+
+        for (final Segment segment : segments.values()) {
+            total += segment.size;
+        }
+
+        return total;
+    }
+
+    /**
+     * Import a cache directory written by {@link CachingRESTProxy}. Every file that is not part of a {@literal .dmp}/
+     * {@literal .prp} pair becomes an entry with status 200 and the default content type for its name.
+     * 
+     * @param tree
+     *            the cache directory
+     * @return the number of imported entries
+     * @throws IOException
+     *             reading the directory or writing the log failed
+     */
+    public int importTree(final File tree) throws IOException {
+        return importTree(tree, "");
+    }
+
+    private int importTree(final File file, final String path) throws IOException {
+        final File[] children = file.listFiles();
+
+        if (children == null) {
+            return 0;
+        }
+
+        Arrays.sort(children);
+
+        int count = 0;
+        final CacheMetadata metadata = readMetadata(file);
+
+        if (metadata != null) {
+            final String key = metadata.query != null ? metadata.query : path.isEmpty() ? "/" : path;
+
+            put(key, metadata, metadata.getBodyFile(file));
+            count++;
+        }
+
+        for (final File child : children) {
+            final String name = child.getName();
+
+            if (CacheMetadata.isProxyFile(name)) {
+                continue;
+            }
+
+            final String _path = path + '/' + name;
+
+            if (child.isDirectory()) {
+                count += importTree(child, _path);
+            } else {
+                final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(child.lastModified(), null, null,
+                        null);
+
+                put(_path, new CacheMetadata(_path, 200, CachingRESTProxy.getDefaultContentType(child), null,
+                        new Cookie[0], child.length(), CacheMetadata.checksum(child), freshness), child);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the metadata of the entry stored in a directory or {@literal null}, if the directory holds no entry
+     */
+    private CacheMetadata readMetadata(final File dir) throws IOException {
+        final File record = new File(dir, CacheMetadata.FILE_NAME);
+
+        if (record.isFile()) {
+            final CacheMetadata metadata = CacheMetadata.read(record);
+
+            return metadata.getBodyFile(dir).isFile() ? metadata : null;
+        }
+
+        final File resource = CacheMetadata.getBodyFile(dir, 0);
+
+        if (!resource.isFile()) {
+            return null;
+        }
+
+        final File properties = new File(dir, ".prp");
+
+        if (!properties.isFile()) {
+            return null;
+        }
+
+        final Properties prps = new Properties();
+        final InputStream in = new FileInputStream(properties);
+
+        try {
+            prps.load(in);
+        } finally {
+            in.close();
+        }
+
+        final List<Cookie> cookies = new ArrayList<Cookie>();
+
+        for (int idx = 0;; idx++) {
+            final String cookie = prps.getProperty(CachingRESTProxy.SET_COOKIE + '.' + idx);
+
+            if (cookie == null) {
+                break;
+            }
+
+            cookies.add(CachingRESTProxy.parseCookie(cookie));
+        }
+
+        final int status = Integer.parseInt(prps.getProperty("status"));
+        final String contentType = prps.getProperty("Content-Type");
+        final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(resource.lastModified(), null, null,
+                null);
+
+        return new CacheMetadata(null, status, contentType, null, cookies.toArray(new Cookie[cookies.size()]),
+                resource.length(), CacheMetadata.checksum(resource), freshness);
+    }
+
+    /**
+     * Open the store, rebuilding the index from the segment files, and start the background compaction.
+     * 
+     * @throws IOException
+     *             reading the segment files failed
+     */
+    public synchronized void open() throws IOException {
+        if (active != null) {
+            throw new IllegalStateException("already open");
+        }
+
+        dir.mkdirs();
+
+        final File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IOException("cannot read " + dir);
+        }
+
+        for (final File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(SUFFIX)) {
+                createSegment(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+
+        final Map<String, Location> found = new HashMap<String, Location>();
+        final Map<String, Long> removed = new HashMap<String, Long>();
+
+        for (final Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+            scan(it.next(), !it.hasNext(), found, removed);
+        }
+
+        for (final Map.Entry<String, Location> entry : found.entrySet()) {
+            final String key = entry.getKey();
+            final Location location = entry.getValue();
+            final Long tombstone = removed.get(key);
+
+            if (tombstone == null || tombstone.longValue() < location.sequence) {
+                index.put(key, location);
+                location.segment.live.addAndGet(location.size);
+            }
+        }
+
+        active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+        active.preallocate(maxSegmentSize);
+
+        if (compactionInterval > 0) {
+            startCompactor();
+        }
+    }
+
+    /**
+     * Add an entry, replacing any previous entry for the key.
+     * 
+     * @param key
+     *            the key
+     * @param status
+     *            the http status
+     * @param contentType
+     *            the content type or {@literal null}
+     * @param cookies
+     *            the {@literal Set-Cookie} values in the order they are to be replayed or {@literal null}
+     * @param body
+     *            the file holding the body
+     * @throws IOException
+     *             writing the entry failed
+     */
+    public void put(final String key, final int status, final String contentType, final String[] cookies,
+            final File body) throws IOException {
+        final Cookie[] parsed = new Cookie[cookies == null ? 0 : cookies.length];
+
+        for (int idx = 0; idx < parsed.length; idx++) {
+            parsed[idx] = CachingRESTProxy.parseCookie(cookies[idx]);
+        }
+
+        final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(System.currentTimeMillis(), null, null,
+                null);
+
+        put(key, new CacheMetadata(key, status, contentType, null, parsed, body.length(),
+                CacheMetadata.checksum(body), freshness), body);
+    }
+
+    /**
+     * Add an entry, replacing any previous entry for the key.
+     * 
+     * @param key
+     *            the key
+     * @param metadata
+     *            the metadata of the entry
+     * @param body
+     *            the file holding the body
+     * @throws IOException
+     *             writing the entry failed
+     */
+    void put(final String key, final CacheMetadata metadata, final File body) throws IOException {
+        final InputStream in = new FileInputStream(body);
+
+        try {
+            put(key, metadata, in, body.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void put(final String key, final CacheMetadata metadata, final InputStream body, final long bodyLength)
+            throws IOException {
+        final byte[] meta = metadata.encode();
+        final byte[] _key = key.getBytes(UTF8);
+
+        if (bodyLength > Integer.MAX_VALUE - 2 * BUFFER_SIZE) {
+            throw new IOException(key + " is too large to be stored in a segment: " + bodyLength);
+        }
+
+        synchronized (this) {
+            final ByteBuffer header = encodeHeader(ENTRY, ++sequence, _key, meta, bodyLength);
+            final int size = (int) (header.remaining() + bodyLength + CHECKSUM_LENGTH);
+            final Segment segment = append(header, body, bodyLength, key);
+            final Location location = new Location(segment, segment.size - size, size, sequence);
+
+            segment.live.addAndGet(size);
+            release(index.put(key, location));
+        }
+    }
+
+    private Entry read(final ByteBuffer record) throws IOException {
+        final Record header = readHeader(record, 0);
+        final byte[] meta = new byte[header.metaLength];
+        final ByteBuffer view = record.duplicate();
+
+        view.position(header.metaPosition);
+        view.get(meta);
+
+        final CacheMetadata metadata = CacheMetadata.decode(meta);
+
+        view.position(header.bodyPosition);
+        view.limit(header.bodyPosition + header.bodyLength);
+
+        return new Entry(header.key, metadata, view.slice().asReadOnlyBuffer());
+    }
+
+    private void release(final Location location) {
+        if (location != null) {
+            location.segment.live.addAndGet(-location.size);
+        }
+    }
+
+    /**
+     * Remove an entry.
+     * 
+     * @param key
+     *            the key
+     * @return {@literal true} if there was an entry for the key
+     * @throws IOException
+     *             writing the tombstone failed
+     */
+    public synchronized boolean remove(final String key) throws IOException {
+        final Location location = index.remove(key);
+
+        if (location == null) {
+            return false;
+        }
+
+        release(location);
+        append(encodeHeader(TOMBSTONE, ++sequence, key.getBytes(UTF8), new byte[0], 0), null, 0, key);
+
+        return true;
+    }
+
+    /**
+     * Replace the metadata of an entry, keeping its body.
+     * 
+     * @param key
+     *            the key
+     * @param metadata
+     *            the new metadata
+     * @return {@literal false} if there is no entry for the key
+     * @throws IOException
+     *             writing the entry failed
+     */
+    synchronized boolean replaceMetadata(final String key, final CacheMetadata metadata) throws IOException {
+        final Entry entry = get(key);
+
+        if (entry == null) {
+            return false;
+        }
+
+        final ByteBuffer body = entry.getBody();
+
+        put(key, metadata, new BufferInputStream(body), body.remaining());
+
+        return true;
+    }
+
+    /**
+     * Read the record headers of a segment into the index. Records of the last segment are also verified against
+     * their checksum; the segment is truncated at the first record that is incomplete or corrupted, or at the
+     * unwritten extension of a segment that was active when the store was not closed. All other segments are sealed
+     * and keep the mapping the scan used for their reads.
+     */
+    private void scan(final Segment segment, final boolean verify, final Map<String, Location> found,
+            final Map<String, Long> removed) throws IOException {
+        final MappedByteBuffer content = segment.channel.map(MapMode.READ_ONLY, 0, segment.size);
+        int position = 0;
+
+        for (;;) {
+            final Record record = readHeader(content, position);
+
+            if (record == null) {
+                break;
+            }
+
+            if (verify && checksum(content, position, record) != content.getInt(position + record.size
+                    - CHECKSUM_LENGTH)) {
+                break;
+            }
+
+            sequence = Math.max(sequence, record.sequence);
+
+            if (record.type == TOMBSTONE) {
+                final Long previous = removed.get(record.key);
+
+                if (previous == null || previous.longValue() < record.sequence) {
+                    removed.put(record.key, Long.valueOf(record.sequence));
+                }
+            } else {
+                final Location previous = found.get(record.key);
+
+                if (previous == null || previous.sequence < record.sequence) {
+                    found.put(record.key, new Location(segment, position, record.size, record.sequence));
+                }
+            }
+
+            position += record.size;
+        }
+
+        if (position < segment.size) {
+            segment.truncate(position);
+        }
+
+        if (!verify) {
+            segment.mapped = content;
+        }
+    }
+
+    /**
+     * Set the interval between background compaction runs. Has to be set before the store is opened.
+     * 
+     * @param interval
+     *            the interval in milliseconds or {@literal 0} to only compact when {@link #compact()} is called
+     */
+    public void setCompactionInterval(final long interval) {
+        compactionInterval = interval;
+    }
+
+    /**
+     * Set the ratio of live bytes below which a sealed segment is compacted.
+     * 
+     * @param threshold
+     *            the ratio between {@literal 0} and {@literal 1}
+     */
+    public void setCompactionThreshold(final double threshold) {
+        compactionThreshold = threshold;
+    }
+
+    /**
+     * Set the size at which the active segment is sealed and a new one is started.
+     * 
+     * @param size
+     *            the size in bytes
+     */
+    public void setMaxSegmentSize(final long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segments are limited to 2GB: " + size);
+        }
+
+        maxSegmentSize = size;
+    }
+
+    private void startCompactor() {
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "segment-compactor");
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (final IOException e) {
+                    // try again next time
+                }
+            }
+        }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("SegmentLogStore [dir=");
+        builder.append(dir);
+        builder.append(", entries=");
+        builder.append(index.size());
+        builder.append(", segments=");
+        builder.append(segments.size());
+        builder.append(", liveBytes=");
+        builder.append(getLiveBytes());
+        builder.append(", totalBytes=");
+        builder.append(getTotalBytes());
+        builder.append("]");
+
+        return builder.toString();
+    }
+}
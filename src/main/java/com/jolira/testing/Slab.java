@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A direct buffer allocated once, from which blocks are handed out by a buddy allocator. Blocks are powers of two
+ * between {@link #MIN_BLOCK_SIZE} and the capacity of the slab; a freed block is merged with its buddy whenever that
+ * is free as well, so the slab does not fragment into small blocks for good. Memory handed out from a slab is never
+ * released to the garbage collector, so it adds neither to the heap nor to the work of the collector.
+ * <p>
+ * A slab is not thread-safe.
+ *
+ * @author jfk
+ * @since 1.3
+ */
+class Slab {
+    /**
+     * A block of a slab.
+     */
+    static class Block {
+        final Slab slab;
+        final int offset;
+        final int order;
+        final ByteBuffer buffer;
+
+        Block(final Slab slab, final int offset, final int order, final ByteBuffer buffer) {
+            this.slab = slab;
+            this.offset = offset;
+            this.order = order;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return the number of bytes taken from the slab
+         */
+        int getSize() {
+            return MIN_BLOCK_SIZE << order;
+        }
+    }
+
+    private static final int MIN_BLOCK_SHIFT = 8;
+
+    /**
+     * The size of the smallest block in bytes.
+     */
+    static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_SHIFT;
+
+    /**
+     * The largest capacity of a single slab.
+     */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * @return the order of the smallest block holding a number of bytes
+     */
+    static int order(final int length) {
+        if (length <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_BLOCK_SHIFT;
+    }
+
+    private final ByteBuffer memory;
+    private final BitSet[] free;
+    private final int[] counts;
+    private final int maxOrder;
+    private long available;
+
+    /**
+     * @param capacity
+     *            the size of the slab in bytes; a power of two between {@link #MIN_BLOCK_SIZE} and
+     *            {@link #MAX_CAPACITY}
+     */
+    Slab(final int capacity) {
+        if (capacity < MIN_BLOCK_SIZE || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+
+        maxOrder = Integer.numberOfTrailingZeros(capacity) - MIN_BLOCK_SHIFT;
+        memory = ByteBuffer.allocateDirect(capacity);
+        free = new BitSet[maxOrder + 1];
+        counts = new int[maxOrder + 1];
+
+        for (int order = 0; order <= maxOrder; order++) {
+            free[order] = new BitSet(1 << maxOrder - order);
+        }
+
+        give(maxOrder, 0);
+        available = capacity;
+    }
+
+    /**
+     * Take a block from the slab.
+     *
+     * @param length
+     *            the number of bytes needed
+     * @return a block whose buffer holds exactly {@code length} bytes or {@literal null}, if there is no free block
+     *         that is large enough
+     */
+    Block allocate(final int length) {
+        final int order = order(length);
+        int _order = order;
+
+        while (_order <= maxOrder && counts[_order] == 0) {
+            _order++;
+        }
+
+        if (_order > maxOrder) {
+            return null;
+        }
+
+        int index = free[_order].nextSetBit(0);
+
+        take(_order, index);
+
+        while (_order > order) { // keep the lower half and free the upper one
+            _order--;
+            index <<= 1;
+            give(_order, index + 1);
+        }
+
+        final int offset = index << MIN_BLOCK_SHIFT + order;
+        final ByteBuffer view = memory.duplicate();
+
+        view.limit(offset + length);
+        view.position(offset);
+        available -= MIN_BLOCK_SIZE << order;
+
+        return new Block(this, offset, order, view.slice());
+    }
+
+    /**
+     * Return a block to the slab. The block must not be used afterwards.
+     *
+     * @param block
+     *            the block
+     */
+    void free(final Block block) {
+        int order = block.order;
+        int index = block.offset >>> MIN_BLOCK_SHIFT + order;
+
+        available += block.getSize();
+
+        while (order < maxOrder && free[order].get(index ^ 1)) {
+            take(order, index ^ 1);
+            index >>>= 1;
+            order++;
+        }
+
+        give(order, index);
+    }
+
+    /**
+     * @return the number of bytes not taken by any block
+     */
+    long getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the size of the slab in bytes
+     */
+    int getCapacity() {
+        return memory.capacity();
+    }
+
+    private void give(final int order, final int index) {
+        free[order].set(index);
+        counts[order]++;
+    }
+
+    private void take(final int order, final int index) {
+        free[order].clear(index);
+        counts[order]--;
+    }
+}
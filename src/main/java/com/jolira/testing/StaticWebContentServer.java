@@ -78,7 +78,7 @@ public class StaticWebContentServer extends WebServerEmulator {
         }
     }
 
-    private synchronized File findMapping(final String target) {
+    synchronized File findMapping(final String target) {
         final Mapping mapping = findMappingEnry(target);
 
         if (mapping == null) {
@@ -4,21 +4,36 @@
 package com.jolira.testing;
 
 import static com.jolira.testing.TestUtils.getBaseDir;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.BindException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -62,8 +77,226 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
  * @author jfk
  */
 public abstract class WebServerEmulator {
+    /**
+     * A resource loaded from a jar, together with its entity tag.
+     */
+    private static class Resource {
+        final ByteBuffer content;
+        final String etag;
+
+        Resource(final ByteBuffer content, final String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+    }
+
     private static final String LOCALHOST = "localhost";
     private static final int PORT = 16000;
+    private static final long MAX_MAPPED_FILE_SIZE = 32 * 1024 * 1024;
+    private static final long MAX_MAPPED_BYTES = 256 * 1024 * 1024;
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * @return the request currently handled by this thread, if the response (or the response it wraps) belongs to it,
+     *         or {@literal null}
+     */
+    private static HttpServletRequest getCurrentRequest(final HttpServletResponse response) {
+        final AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+
+        if (connection == null || connection.getResponse() != unwrap(response)) {
+            return null;
+        }
+
+        return connection.getRequest();
+    }
+
+    private static long getDateHeader(final HttpServletRequest request, final String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (final IllegalArgumentException e) {
+            return -1; // not a date; ignore the condition
+        }
+    }
+
+    /**
+     * @return {@literal true} if the tag is listed in an {@literal If-None-Match} header, using the weak comparison
+     */
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        final String _etag = opaque(etag);
+
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String _candidate = candidate.trim();
+
+            if ("*".equals(_candidate) || _etag.equals(opaque(_candidate))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Set the validators of a successful response and answer the request with {@literal 304 Not Modified} if the
+     * client already has the current representation. Nothing is done if the response is not a plain {@literal 200 OK}
+     * (as far as the status can be told through the wrappers of a Jetty response) or already carries an entity tag
+     * set by the caller. Without a request, the validators are set but the response is never turned into a
+     * {@literal 304 Not Modified}.
+     * 
+     * @param request
+     *            the request the response answers or {@literal null}
+     * @param lastModified
+     *            the modification time of the content or {@literal 0}, if it is not known
+     * @return {@literal true} if the request has been answered with {@literal 304 Not Modified}
+     */
+    private static boolean notModified(final HttpServletRequest request, final HttpServletResponse response,
+            final String etag, final long lastModified) {
+        final ServletResponse unwrapped = unwrap(response);
+
+        if (unwrapped instanceof Response && ((Response) unwrapped).getStatus() != SC_OK
+                || response.containsHeader(ETAG)) {
+            return false;
+        }
+
+        response.setHeader(ETAG, etag);
+
+        if (lastModified > 0) {
+            response.setDateHeader(LAST_MODIFIED, lastModified);
+        }
+
+        if (request == null) {
+            return false;
+        }
+
+        final String method = request.getMethod();
+
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+
+        if (ifNoneMatch != null) {
+            if (!matches(ifNoneMatch, etag)) {
+                return false;
+            }
+        } else {
+            final long ifModifiedSince = getDateHeader(request, IF_MODIFIED_SINCE);
+
+            // HTTP dates have a resolution of one second
+            if (lastModified <= 0 || ifModifiedSince < 0 || lastModified / 1000 > ifModifiedSince / 1000) {
+                return false;
+            }
+        }
+
+        response.setStatus(SC_NOT_MODIFIED);
+
+        return true;
+    }
+
+    /**
+     * Set the validators of a response with content of a length that was last modified at a point in time, which are
+     * the same as those of a file of that length and modification time, and answer the request with
+     * {@literal 304 Not Modified} if the client already has the content. The entity tag is weak: two versions of a
+     * file that have the same length and were written within the resolution of the file system clock share it.
+     * 
+     * @return {@literal true} if the request has been answered with {@literal 304 Not Modified}
+     * @see #respond(String, HttpServletRequest, HttpServletResponse, File)
+     */
+    static boolean notModified(final HttpServletRequest request, final HttpServletResponse response,
+            final long length, final long lastModified) {
+        final String etag = "W/\"" + Long.toHexString(length) + '-' + Long.toHexString(lastModified) + '"';
+
+        return notModified(request, response, etag, lastModified);
+    }
+
+    /**
+     * @return the opaque part of an entity tag, so weak and strong tags can be compared
+     */
+    private static String opaque(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static void send(final ServletOutputStream out, final ByteBuffer content) throws IOException {
+        if (out instanceof AbstractHttpConnection.Output) {
+            final AbstractHttpConnection.Output _out = (AbstractHttpConnection.Output) out;
+
+            if (content.isDirect()) {
+                _out.sendContent(new DirectNIOBuffer(content, true));
+                return;
+            }
+
+            if (content.hasArray()) {
+                final int offset = content.arrayOffset() + content.position();
+
+                _out.sendContent(new ByteArrayBuffer(content.array(), offset, content.remaining()));
+                return;
+            }
+        }
+
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            return;
+        }
+
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        try {
+            while (content.hasRemaining()) {
+                final int length = Math.min(buffer.length, content.remaining());
+
+                content.get(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    /**
+     * Copy a file that is too large to be kept mapped to a response. Mapping such a file for every request would leave
+     * a mapping behind that is only released by the garbage collector, so the file is read instead, straight into a
+     * pooled array that is handed to the stream. This is the one copy through the Java heap a stream that is not
+     * backed by a channel requires; {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * would add a temporary direct buffer and a heap buffer of its own on top of it.
+     */
+    private static void transfer(final FileChannel in, final long length, final ServletOutputStream out)
+            throws IOException {
+        final byte[] buffer = BufferPool.SHARED.acquire();
+
+        try {
+            for (long position = 0; position < length;) {
+                final int limit = (int) Math.min(buffer.length, length - position);
+                final int read = in.read(ByteBuffer.wrap(buffer, 0, limit), position);
+
+                if (read <= 0) {
+                    break; // the file was truncated underneath us
+                }
+
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    private static ServletResponse unwrap(final ServletResponse response) {
+        ServletResponse _response = response;
+
+        while (_response instanceof ServletResponseWrapper) {
+            _response = ((ServletResponseWrapper) _response).getResponse();
+        }
+
+        return _response;
+    }
+
+    private final MappedFileCache mapped = new MappedFileCache(MAX_MAPPED_FILE_SIZE, MAX_MAPPED_BYTES);
+
+    private final ConcurrentMap<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
 
     private Server server = null;
 
@@ -132,19 +365,70 @@ public abstract class WebServerEmulator {
         return connectors[0].getPort();
     }
 
-    private InputStream getResourceAsStream(final String resource) throws FileNotFoundException {
-        final InputStream in = WebServerEmulator.class.getResourceAsStream(resource);
+    /**
+     * @return the content of a resource packaged in a jar, which is loaded once and kept for subsequent requests
+     */
+    private Resource getResource(final String name, final URL url) throws IOException {
+        final Resource cached = resources.get(name);
 
-        if (in != null) {
-            return in;
+        if (cached != null) {
+            return cached;
+        }
+
+        final InputStream in = url.openStream();
+        byte[] content = new byte[8192];
+        int length = 0;
+
+        try {
+            for (;;) {
+                if (length == content.length) {
+                    content = Arrays.copyOf(content, length * 2);
+                }
+
+                final int read = in.read(content, length, content.length - length);
+
+                if (read == -1) {
+                    break;
+                }
+
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        final CRC32 checksum = new CRC32();
+
+        checksum.update(content, 0, length);
+
+        final String etag = '"' + Integer.toHexString(length) + '-' + Long.toHexString(checksum.getValue()) + '"';
+        final Resource resource = new Resource(ByteBuffer.wrap(content, 0, length).asReadOnlyBuffer(), etag);
+        final Resource raced = resources.putIfAbsent(name, resource);
+
+        return raced != null ? raced : resource;
+    }
+
+    /**
+     * @return the file holding a resource or {@literal null}, if it is packaged in a jar
+     */
+    private File getResourceFile(final String resource, final URL url) {
+        if (url != null) {
+            if (!"file".equals(url.getProtocol())) {
+                return null;
+            }
+
+            try {
+                return new File(url.toURI());
+            } catch (final URISyntaxException e) {
+                return new File(url.getPath());
+            }
         }
 
         final Class<? extends WebServerEmulator> clazz = this.getClass();
         final File basedir = getBaseDir(clazz);
         final File resources = new File(basedir, "src/test/resources");
-        final File _resource = new File(resources, resource);
 
-        return new FileInputStream(_resource);
+        return new File(resources, resource);
     }
 
     /**
@@ -187,9 +471,9 @@ public abstract class WebServerEmulator {
     protected void respond(final HttpServletResponse response, final InputStream in) throws IOException {
         final ServletOutputStream out = response.getOutputStream();
 
-        try {
-            final byte[] buffer = new byte[65535];
+        final byte[] buffer = BufferPool.SHARED.acquire();
 
+        try {
             for (;;) {
                 final int read = in.read(buffer);
 
@@ -200,6 +484,7 @@ public abstract class WebServerEmulator {
                 out.write(buffer, 0, read);
             }
         } finally {
+            BufferPool.SHARED.release(buffer);
             out.close();
         }
     }
@@ -219,7 +504,66 @@ public abstract class WebServerEmulator {
     }
 
     /**
-     * Respond with a static file.
+     * Respond with the content of a buffer, such as a body held in memory. The buffer itself is not modified.
+     * 
+     * @param mimeType
+     *            the content type
+     * @param response
+     *            the http response
+     * @param content
+     *            the content to return
+     * @throws IOException
+     *             something went wrong
+     */
+    public void respond(final String mimeType, final HttpServletResponse response, final ByteBuffer content)
+            throws IOException {
+        respond(mimeType, null, response, content, 0);
+    }
+
+    /**
+     * Respond with the content of a buffer that holds the content of a file, or a copy of it. The response carries the
+     * same validators as {@link #respond(String, HttpServletRequest, HttpServletResponse, File)} would send for the
+     * file, and requests the client already has the content for are answered with {@literal 304 Not Modified} the
+     * same way.
+     * 
+     * @param mimeType
+     *            the content type
+     * @param request
+     *            the http request
+     * @param response
+     *            the http response
+     * @param content
+     *            the content to return
+     * @param lastModified
+     *            the modification time of the file or {@literal 0}, if the response should carry no validators
+     * @throws IOException
+     *             something went wrong
+     */
+    public void respond(final String mimeType, final HttpServletRequest request, final HttpServletResponse response,
+            final ByteBuffer content, final long lastModified) throws IOException {
+        final ByteBuffer _content = content.duplicate();
+
+        response.setContentType(mimeType);
+
+        if (lastModified > 0 && notModified(request, response, _content.remaining(), lastModified)) {
+            return;
+        }
+
+        response.setContentLength(_content.remaining());
+
+        final ServletOutputStream out = response.getOutputStream();
+
+        try {
+            send(out, _content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Respond with a static file, like {@link #respond(String, HttpServletRequest, HttpServletResponse, File)}. Only
+     * requests Jetty is handling on this thread are answered with {@literal 304 Not Modified}; use the overload that
+     * takes the request otherwise.
      * 
      * @param mimeType
      *            the file type
@@ -232,19 +576,71 @@ public abstract class WebServerEmulator {
      */
     public void respond(final String mimeType, final HttpServletResponse response, final File resource)
             throws IOException {
-        response.setContentType(mimeType);
+        respond(mimeType, getCurrentRequest(response), response, resource);
+    }
 
-        final InputStream in = new FileInputStream(resource);
+    /**
+     * Respond with a static file. Files of up to 32 MB are served from memory-mapped buffers that are validated
+     * against the length and modification time of the file, kept around for subsequent requests, and handed to the
+     * connector without copying them through the Java heap; no more than 256 MB are kept mapped at any one time.
+     * Larger files, and files sent through connectors that cannot send buffers natively, are copied once through a
+     * pooled array. The {@literal Content-Length} header is always set, so the connection can be kept alive.
+     * <p>
+     * The response carries a weak entity tag derived from the length and the modification time of the file, and
+     * {@literal Last-Modified}. Requests with a matching {@literal If-None-Match} or {@literal If-Modified-Since}
+     * header are answered with {@literal 304 Not Modified} and no body.
+     * 
+     * @param mimeType
+     *            the file type
+     * @param request
+     *            the http request
+     * @param response
+     *            the http response
+     * @param resource
+     *            the file to return
+     * @throws IOException
+     *             something went wrong
+     */
+    public void respond(final String mimeType, final HttpServletRequest request, final HttpServletResponse response,
+            final File resource) throws IOException {
+        final FileInputStream in = new FileInputStream(resource);
 
         try {
-            respond(response, in);
+            final FileChannel channel = in.getChannel();
+            final long length = channel.size();
+            final long lastModified = resource.lastModified();
+
+            response.setContentType(mimeType);
+
+            if (notModified(request, response, length, lastModified)) {
+                return;
+            }
+
+            response.setHeader(CONTENT_LENGTH, Long.toString(length));
+
+            final ServletOutputStream out = response.getOutputStream();
+
+            try {
+                final ByteBuffer content = mapped.get(resource, channel, length);
+
+                if (content != null) {
+                    send(out, content);
+                    return;
+                }
+
+                transfer(channel, length, out);
+            } finally {
+                out.close();
+            }
         } finally {
             in.close();
         }
     }
 
     /**
-     * Respond with a static file.
+     * Respond with a static file, like {@link #respond(String, HttpServletRequest, HttpServletResponse, String)}. Only
+     * requests Jetty is handling on this thread are answered with {@literal 304 Not Modified}; use the overload that
+     * takes the request otherwise.
      * 
      * @param mimeType
      *            the file type
@@ -257,15 +653,46 @@ public abstract class WebServerEmulator {
      */
     public void respond(final String mimeType, final HttpServletResponse response, final String resource)
             throws IOException {
-        response.setContentType(mimeType);
+        respond(mimeType, getCurrentRequest(response), response, resource);
+    }
 
-        final InputStream in = getResourceAsStream(resource);
+    /**
+     * Respond with a static file, which is looked up on the class path first and in {@literal src/test/resources}
+     * otherwise. Files are served like {@link #respond(String, HttpServletRequest, HttpServletResponse, File)};
+     * resources packaged in a jar are loaded once and then served from memory, with a strong entity tag computed from
+     * their content. Either way, the {@literal Content-Length} header is set and conditional requests are answered
+     * with {@literal 304 Not Modified}.
+     * 
+     * @param mimeType
+     *            the file type
+     * @param request
+     *            the http request
+     * @param response
+     *            the http response
+     * @param resource
+     *            the file to return
+     * @throws IOException
+     *             something went wrong
+     */
+    public void respond(final String mimeType, final HttpServletRequest request, final HttpServletResponse response,
+            final String resource) throws IOException {
+        final URL url = WebServerEmulator.class.getResource(resource);
+        final File file = getResourceFile(resource, url);
+
+        if (file != null) {
+            respond(mimeType, request, response, file);
+            return;
+        }
 
-        try {
-            respond(response, in);
-        } finally {
-            in.close();
+        final Resource loaded = getResource(resource, url);
+
+        response.setContentType(mimeType);
+
+        if (notModified(request, response, loaded.etag, 0)) {
+            return;
         }
+
+        respond(mimeType, response, loaded.content);
     }
 
     /**
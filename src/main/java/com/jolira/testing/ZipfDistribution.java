@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws keys from {@literal 0} to {@literal n - 1} with a Zipf distribution, so key {@literal k} is drawn with a
+ * probability proportional to {@literal 1 / (k + 1)^exponent}. An exponent of {@literal 0} draws all keys with the same
+ * probability; popular web content is usually modelled with an exponent close to {@literal 1}.
+ * 
+ * @author jfk
+ * @since 1.3
+ */
+class ZipfDistribution {
+    private final double[] cumulative;
+
+    /**
+     * @param keys
+     *            the number of keys
+     * @param exponent
+     *            the skew of the distribution
+     */
+    ZipfDistribution(final int keys, final double exponent) {
+        if (keys <= 0) {
+            throw new IllegalArgumentException("keys must be positive: " + keys);
+        }
+
+        if (exponent < 0) {
+            throw new IllegalArgumentException("exponent must not be negative: " + exponent);
+        }
+
+        cumulative = new double[keys];
+
+        double sum = 0;
+
+        for (int idx = 0; idx < keys; idx++) {
+            sum += 1 / Math.pow(idx + 1, exponent);
+            cumulative[idx] = sum;
+        }
+
+        for (int idx = 0; idx < keys; idx++) {
+            cumulative[idx] /= sum;
+        }
+    }
+
+    /**
+     * @return the number of keys
+     */
+    int getKeys() {
+        return cumulative.length;
+    }
+
+    /**
+     * @param random
+     *            the source of randomness
+     * @return the next key
+     */
+    int next(final Random random) {
+        final int idx = Arrays.binarySearch(cumulative, random.nextDouble());
+        final int key = idx >= 0 ? idx : -idx - 1;
+
+        return Math.min(key, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author jfk
+ */
+public class BackendClientTest {
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+    private static WebServerEmulator backend;
+
+    /**
+     * Start a fake backend server
+     * 
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void startBackend() throws Exception {
+        backend = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                response.setHeader("X-Test", request.getHeader("X-Test"));
+
+                if ("/trickle".equals(target)) {
+                    response.flushBuffer();
+                }
+
+                if (!"/test".equals(target)) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (final InterruptedException e) {
+                        throw new ServletException(e);
+                    }
+                }
+
+                respond(response, "/response.xml");
+            }
+        };
+
+        backend.start();
+    }
+
+    /**
+     * Stop the fake backend server
+     * 
+     * @throws Exception
+     */
+    @AfterClass
+    public static void stopBackend() throws Exception {
+        backend.stop();
+        backend = null;
+    }
+
+    /**
+     * Test method for {@link BackendClient#fetch(String, String, Map)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testFetch() throws Exception {
+        final BackendClient client = new BackendClient(false);
+
+        client.start();
+
+        try {
+            final long reused = BufferPool.SHARED.getReused();
+
+            for (int idx = 0; idx < 3; idx++) {
+                final BackendClient.Response response = client.fetch(backend.getName(), "/test?a=b",
+                        Collections.singletonMap("X-Test", "value"));
+
+                assertEquals(200, response.getStatus());
+                assertEquals("value", response.getHeader("x-test"));
+
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody()));
+
+                try {
+                    assertEquals("<response>Hello World</response>", reader.readLine());
+                } finally {
+                    reader.close();
+                }
+            }
+
+            assertEquals(0, client.getInFlight());
+            assertTrue(BufferPool.SHARED.getReused() > reused); // the body was copied through pooled buffers
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * Test method for {@link BackendClient#fetch(BackendPool, String, String, Map, RequestBody)} hedging a slow
+     * backend.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testHedge() throws Exception {
+        final WebServerEmulator slow = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                try {
+                    Thread.sleep(2000);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+
+                respond(response, "/response.xml");
+            }
+        };
+        final BackendClient client = new BackendClient(false);
+
+        slow.start();
+        client.start();
+
+        try {
+            final BackendPool pool = BackendPool.parse(slow.getName() + "," + backend.getName());
+
+            for (int idx = 0; idx < 100; idx++) {
+                client.getFetchTimes().record(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+
+            pool.setPolicy(BackendPool.Policy.ROUND_ROBIN);
+            pool.setHedgePercentile(0.5);
+
+            final long started = System.currentTimeMillis();
+            final BackendClient.Response response = client.fetch(pool, "/test", "/test", NO_HEADERS, null);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(response.getBody()));
+
+            try {
+                assertEquals("<response>Hello World</response>", reader.readLine());
+            } finally {
+                reader.close();
+            }
+
+            assertTrue(System.currentTimeMillis() - started < 1000);
+            assertEquals(1, pool.getHedges());
+            assertEquals(0, client.getInFlight());
+        } finally {
+            client.stop();
+            slow.stop();
+        }
+    }
+
+    /**
+     * Fetches that cannot even be sent give their permit back.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidRequest() throws Exception {
+        final BackendClient client = new BackendClient(false);
+
+        client.setMaxInFlight(1);
+        client.setQueueTimeout(0);
+        client.start();
+
+        try {
+            for (int idx = 0; idx < 3; idx++) {
+                try {
+                    client.fetch(backend.getName(), "/test?q=not a uri", NO_HEADERS);
+                    fail();
+                } catch (final IllegalArgumentException e) {
+                    // expected
+                }
+            }
+
+            assertEquals(0, client.getInFlight());
+
+            final BackendClient.Response response = client.fetch(backend.getName(), "/test", NO_HEADERS);
+
+            response.getBody().close();
+
+            assertEquals(200, response.getStatus());
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * Fetches are shed if too many are in flight.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSaturated() throws Exception {
+        final BackendClient client = new BackendClient(false);
+
+        client.setMaxInFlight(1);
+        client.setQueueTimeout(0);
+        client.start();
+
+        try {
+            final BackendClient.Response response = client.fetch(backend.getName(), "/trickle", NO_HEADERS);
+
+            try {
+                client.fetch(backend.getName(), "/test", NO_HEADERS);
+                fail();
+            } catch (final BackendClient.SaturatedException e) {
+                // expected
+            }
+
+            response.getBody().close();
+
+            assertEquals(0, client.getInFlight());
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * Fetches that take too long are abandoned.
+     * 
+     * @throws Exception
+     */
+    @Test(expected = SocketTimeoutException.class)
+    public void testTimeout() throws Exception {
+        final BackendClient client = new BackendClient(false);
+
+        client.setTimeout(200);
+        client.start();
+
+        try {
+            client.fetch(backend.getName(), "/slow", NO_HEADERS);
+        } finally {
+            client.stop();
+        }
+    }
+}
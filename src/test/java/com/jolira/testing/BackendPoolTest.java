@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class BackendPoolTest {
+    /**
+     * Test method for {@link BackendPool#select(String, BackendPool.Node)} using consistent hashing.
+     */
+    @Test
+    public void testConsistentHash() {
+        final BackendPool pool = BackendPool.parse("a:1,b:2,c:3");
+
+        pool.setPolicy(BackendPool.Policy.CONSISTENT_HASH);
+
+        final BackendPool.Node[] selected = new BackendPool.Node[1000];
+        final int[] counts = new int[3];
+
+        for (int idx = 0; idx < selected.length; idx++) {
+            selected[idx] = pool.select("/key?id=" + idx, null);
+
+            assertSame(selected[idx], pool.select("/key?id=" + idx, null));
+
+            counts[selected[idx].server.charAt(0) - 'a']++;
+        }
+
+        for (final int count : counts) {
+            assertTrue(count > 200);
+        }
+
+        final BackendPool.Node b = pool.getNodes()[1];
+
+        b.failed();
+        b.failed();
+        b.failed();
+        b.failed();
+        b.failed();
+
+        for (int idx = 0; idx < selected.length; idx++) {
+            final BackendPool.Node node = pool.select("/key?id=" + idx, null);
+
+            if (selected[idx] == b) {
+                assertNotSame(b, node);
+            } else {
+                assertSame(selected[idx], node); // keys of the healthy backends stay where they are
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link BackendPool#select(String, BackendPool.Node)} ejecting failing backends.
+     */
+    @Test
+    public void testEjection() {
+        final BackendPool pool = BackendPool.parse("a:1, b:2");
+        final BackendPool.Node[] nodes = pool.getNodes();
+
+        pool.setPolicy(BackendPool.Policy.ROUND_ROBIN);
+        pool.setEjection(2, 60000);
+        nodes[0].failed();
+        nodes[0].succeeded();
+        nodes[0].failed();
+
+        assertEquals(0, pool.getEjections());
+
+        nodes[0].failed();
+
+        assertEquals(1, pool.getEjections());
+
+        for (int idx = 0; idx < 10; idx++) {
+            assertSame(nodes[1], pool.select("/", null));
+        }
+
+        assertSame(nodes[0], pool.select("/", nodes[1])); // no healthy alternative; fail open
+
+        nodes[1].failed();
+        nodes[1].failed();
+
+        assertEquals(2, pool.getEjections());
+        assertNotNull(pool.select("/", null));
+    }
+
+    /**
+     * Test method for {@link BackendPool#getHedgeDelay(LatencyHistogram)}.
+     */
+    @Test
+    public void testHedgeDelay() {
+        final BackendPool pool = BackendPool.parse("a:1,b:2");
+        final LatencyHistogram fetchTimes = new LatencyHistogram();
+
+        for (int idx = 0; idx < 99; idx++) {
+            fetchTimes.record(TimeUnit.MICROSECONDS.toNanos(800));
+        }
+
+        assertEquals(-1, pool.getHedgeDelay(fetchTimes));
+
+        pool.setHedgePercentile(0.9);
+
+        assertEquals(-1, pool.getHedgeDelay(fetchTimes)); // too few samples
+
+        fetchTimes.record(TimeUnit.MICROSECONDS.toNanos(800));
+
+        assertEquals(800, pool.getHedgeDelay(fetchTimes));
+        assertEquals(-1, BackendPool.parse("a:1").getHedgeDelay(fetchTimes));
+    }
+
+    /**
+     * Test method for {@link BackendPool#select(String, BackendPool.Node)} picking the least busy backend.
+     */
+    @Test
+    public void testLeastOutstanding() {
+        final BackendPool pool = BackendPool.parse("a:1,b:2=2");
+        final BackendPool.Node[] nodes = pool.getNodes();
+
+        nodes[0].started();
+        nodes[1].started();
+
+        assertSame(nodes[1], pool.select("/", null));
+
+        nodes[1].started();
+
+        assertSame(nodes[1], pool.select("/", nodes[0]));
+
+        nodes[1].started();
+
+        assertSame(nodes[0], pool.select("/", null));
+
+        nodes[1].finished();
+        nodes[1].finished();
+        nodes[1].finished();
+
+        assertSame(nodes[1], pool.select("/", null));
+    }
+
+    /**
+     * Test method for {@link BackendPool#select(String, BackendPool.Node)} using weighted round-robin.
+     */
+    @Test
+    public void testRoundRobin() {
+        final BackendPool pool = BackendPool.parse("a:1=3,b:2");
+
+        pool.setPolicy(BackendPool.Policy.ROUND_ROBIN);
+
+        final StringBuilder order = new StringBuilder();
+
+        for (int idx = 0; idx < 8; idx++) {
+            order.append(pool.select("/", null).server.charAt(0));
+        }
+
+        assertEquals("aabaaaba", order.toString());
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class BloomFilterTest {
+    /**
+     * Test method for {@link BloomFilter#mightContain(CharSequence)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMightContain() throws Exception {
+        final int count = 10000;
+        final BloomFilter filter = new BloomFilter(count, 0.01);
+
+        for (int idx = 0; idx < count; idx++) {
+            filter.add("/entry/" + idx);
+        }
+
+        for (int idx = 0; idx < count; idx++) {
+            assertTrue(filter.mightContain("/entry/" + idx));
+        }
+
+        int falsePositives = 0;
+
+        for (int idx = 0; idx < count; idx++) {
+            if (filter.mightContain("/missing/" + idx)) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue("false positives: " + falsePositives, falsePositives < count / 50);
+        assertTrue(filter.getMemory() < 16 * 1024);
+    }
+}
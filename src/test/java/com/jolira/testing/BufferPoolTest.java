@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class BufferPoolTest {
+    /**
+     * Test method for {@link BufferPool#acquire()} and {@link BufferPool#release(byte[])}.
+     */
+    @Test
+    public void testArrays() {
+        final BufferPool pool = new BufferPool(1024, 2);
+        final byte[] first = pool.acquire();
+        final byte[] second = pool.acquire();
+        final byte[] third = pool.acquire();
+
+        assertEquals(1024, first.length);
+        assertEquals(3, pool.getAllocated());
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third); // the pool is full
+        pool.release(new byte[512]); // not one of ours
+        pool.release((byte[]) null);
+
+        assertEquals(1, pool.getDropped());
+
+        final byte[] reused = pool.acquire();
+
+        assertTrue(reused == first || reused == second);
+        assertNotSame(reused, pool.acquire());
+        assertEquals(2, pool.getReused());
+        assertEquals(3, pool.getAllocated());
+
+        pool.acquire();
+
+        assertEquals(4, pool.getAllocated());
+    }
+
+    /**
+     * Test method for {@link BufferPool#acquireDirect()} and {@link BufferPool#release(ByteBuffer)}.
+     */
+    @Test
+    public void testDirect() {
+        final BufferPool pool = new BufferPool(1024, 1);
+        final ByteBuffer buffer = pool.acquireDirect();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+
+        buffer.putInt(42).flip();
+        pool.release(buffer);
+        pool.release(ByteBuffer.allocate(1024)); // heap buffers are not pooled
+
+        final ByteBuffer reused = pool.acquireDirect();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1024, reused.limit());
+        assertEquals(0, pool.getDropped());
+        assertEquals(1, pool.getReused());
+    }
+}
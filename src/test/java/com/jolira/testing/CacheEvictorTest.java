@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheEvictorTest {
+    private static File createTree() throws IOException {
+        final File dir = File.createTempFile("jo-", "-evict");
+
+        dir.delete();
+
+        long modified = 1000000000000L;
+
+        for (final String name : new String[] { "a.html", "b.html", "c.html", "d/e.html" }) {
+            final File file = new File(dir, name);
+
+            write(file, 100);
+            file.setLastModified(modified += 1000);
+        }
+
+        final File entry = new File(dir, "f?q=1");
+
+        write(new File(entry, ".dmp"), 150);
+        write(new File(entry, CacheMetadata.FILE_NAME), 50);
+        entry.setLastModified(modified += 1000);
+
+        return dir;
+    }
+
+    private static void write(final File file, final int size) throws IOException {
+        file.getParentFile().mkdirs();
+
+        final OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Test method for {@link CacheEvictor#evict()} while a new body of an entry is about to be published.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testEvictPublishing() throws Exception {
+        final File dir = File.createTempFile("jo-", "-evict");
+
+        dir.delete();
+
+        final File entry = new File(dir, "list?q=1");
+        final CacheMetadata metadata = new CacheMetadata("/list?q=1", 200, "application/json", null, new Cookie[0],
+                100, 0, new CacheMetadata.Freshness(0, null, null, null), 0x2a);
+
+        entry.mkdirs();
+        metadata.write(new File(entry, CacheMetadata.FILE_NAME));
+        write(CacheMetadata.getBodyFile(entry, 0x29), 100);
+        write(metadata.getBodyFile(entry), 100);
+
+        final CacheEvictor evictor = new CacheEvictor(dir, 100, 0, CacheEvictor.Policy.LRU);
+
+        evictor.recordWrite(entry, false);
+        write(CacheMetadata.getBodyFile(entry, 0x2b), 100); // moved into place, but not yet published
+
+        assertEquals(1, evictor.evict());
+        assertFalse(new File(entry, CacheMetadata.FILE_NAME).exists());
+        assertFalse(CacheMetadata.getBodyFile(entry, 0x29).exists());
+        assertFalse(metadata.getBodyFile(entry).exists());
+        assertTrue(CacheMetadata.getBodyFile(entry, 0x2b).exists());
+    }
+
+    /**
+     * Test method for {@link CacheEvictor#evict()} with {@link CacheEvictor.Policy#LFU}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLFU() throws Exception {
+        final File dir = createTree();
+        final CacheEvictor evictor = new CacheEvictor(dir, 0, 3, CacheEvictor.Policy.LFU);
+
+        evictor.scan();
+
+        for (int idx = 0; idx < 3; idx++) {
+            evictor.recordAccess(new File(dir, "a.html"));
+            evictor.recordAccess(new File(dir, "b.html"));
+        }
+
+        evictor.recordAccess(new File(dir, "c.html"));
+
+        assertEquals(5, evictor.getEntryCount());
+        assertEquals(3, evictor.evict()); // down to 90% of 3 entries
+        assertTrue(new File(dir, "a.html").exists());
+        assertTrue(new File(dir, "b.html").exists());
+        assertFalse(new File(dir, "c.html").exists());
+        assertFalse(new File(dir, "d").exists());
+        assertFalse(new File(dir, "f?q=1").exists());
+    }
+
+    /**
+     * Test method for {@link CacheEvictor#evict()} with {@link CacheEvictor.Policy#LRU}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLRU() throws Exception {
+        final File dir = createTree();
+        final CacheEvictor evictor = new CacheEvictor(dir, 400, 0, CacheEvictor.Policy.LRU);
+
+        evictor.scan();
+
+        assertEquals(600, evictor.getSize());
+        assertEquals(0, new CacheEvictor(dir, 600, 0, CacheEvictor.Policy.LRU).evict());
+
+        evictor.recordAccess(new File(dir, "a.html"));
+
+        assertEquals(3, evictor.evict());
+        assertEquals(300, evictor.getSize());
+        assertEquals(300, evictor.getEvictedBytes());
+        assertTrue(new File(dir, "a.html").exists());
+        assertFalse(new File(dir, "b.html").exists());
+        assertFalse(new File(dir, "c.html").exists());
+        assertFalse(new File(dir, "d/e.html").exists());
+        assertTrue(new File(dir, "f?q=1/.dmp").exists());
+
+        write(new File(dir, "g.html"), 200);
+        evictor.recordWrite(new File(dir, "g.html"), true);
+
+        assertEquals(500, evictor.getSize());
+        assertEquals(1, evictor.evict());
+        assertFalse(new File(dir, "f?q=1").exists());
+        assertEquals(0, evictor.evict());
+    }
+}
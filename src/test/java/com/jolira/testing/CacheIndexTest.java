@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheIndexTest {
+    private static File touch(final File file) throws IOException {
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+
+        return file;
+    }
+
+    /**
+     * Test method for {@link CacheIndex#build(int)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBuild() throws Exception {
+        final File dir = File.createTempFile("jo-", "-idx");
+
+        dir.delete();
+
+        final File simple = touch(new File(dir, "a/b/index.html"));
+        final File entry = new File(dir, "a/list?q=1");
+        final File legacy = new File(dir, "c");
+        final File wellKnown = touch(new File(dir, ".well-known/security.txt"));
+        final File hidden = new File(dir, "a/.hidden");
+
+        touch(new File(entry, ".dmp"));
+        touch(new File(entry, CacheMetadata.FILE_NAME));
+        touch(new File(legacy, ".dmp"));
+        touch(new File(legacy, ".prp"));
+        touch(new File(hidden, ".dmp.2a"));
+        touch(new File(hidden, CacheMetadata.FILE_NAME));
+        touch(new File(dir, "a/.fetch123.tmp"));
+
+        final CacheIndex index = new CacheIndex(dir);
+
+        index.build(4);
+
+        assertEquals(5, index.getSize());
+        assertTrue(index.mightContain(simple));
+        assertTrue(index.mightContain(entry));
+        assertTrue(index.mightContain(legacy));
+        assertTrue(index.mightContain(wellKnown));
+        assertTrue(index.mightContain(hidden));
+        assertFalse(index.mightContain(new File(dir, "a/b/missing.html")));
+        assertTrue(index.getMemory() > 0);
+
+        for (int idx = 0; idx < 200000; idx++) {
+            index.add(new File(dir, "added/" + idx));
+        }
+
+        assertEquals(200005, index.getSize());
+        assertTrue(index.mightContain(new File(dir, "added/0")));
+        assertTrue(index.mightContain(new File(dir, "added/199999")));
+        assertTrue(index.mightContain(simple));
+
+        int falsePositives = 0;
+
+        for (int idx = 0; idx < 10000; idx++) {
+            if (index.mightContain(new File(dir, "missing/" + idx))) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue("false positives: " + falsePositives, falsePositives < 500);
+    }
+}
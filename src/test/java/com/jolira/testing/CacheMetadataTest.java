@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheMetadataTest {
+    /**
+     * Test method for {@link CacheMetadata.Freshness#getExpires(long)}.
+     */
+    @Test
+    public void testExpires() {
+        assertEquals(Long.MAX_VALUE, new CacheMetadata.Freshness(1000, null, null, null).getExpires(0));
+        assertEquals(6000, new CacheMetadata.Freshness(1000, null, null, null).getExpires(5000));
+        assertEquals(61000, new CacheMetadata.Freshness(1000, null, null, "public, max-age=60").getExpires(5000));
+        assertEquals(11000, new CacheMetadata.Freshness(1000, null, null, "max-age=60, s-maxage=10").getExpires(0));
+        assertEquals(1000, new CacheMetadata.Freshness(1000, null, null, "no-cache").getExpires(5000));
+        assertEquals(Long.MAX_VALUE, new CacheMetadata.Freshness(1000, null, null, "private").getExpires(0));
+    }
+
+    /**
+     * Test method for {@link CacheMetadata#decode(byte[])}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDecode() throws Exception {
+        final Cookie secure = new Cookie("e", "f");
+
+        secure.setDomain("jolira.com");
+        secure.setPath("/jolira/test");
+        secure.setSecure(true);
+
+        final Cookie[] cookies = new Cookie[] { new Cookie("a", "b"), secure };
+        final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(1000, "\"v1\"", null, "max-age=60");
+        final CacheMetadata metadata = new CacheMetadata("/list?q=1", 201, "application/json", "gzip", cookies,
+                1234, 0xcafebabe, freshness, 0x1234567890L);
+        final File file = File.createTempFile("jo-", CacheMetadata.FILE_NAME);
+
+        file.deleteOnExit();
+        metadata.write(file);
+
+        final CacheMetadata decoded = CacheMetadata.read(file);
+
+        assertEquals("/list?q=1", decoded.query);
+        assertEquals(201, decoded.status);
+        assertEquals("application/json", decoded.contentType);
+        assertEquals("gzip", decoded.contentEncoding);
+        assertEquals(1234, decoded.length);
+        assertEquals(0xcafebabe, decoded.checksum);
+        assertEquals(2, decoded.cookies.length);
+        assertEquals("a", decoded.cookies[0].getName());
+        assertEquals("b", decoded.cookies[0].getValue());
+        assertNull(decoded.cookies[0].getDomain());
+        assertFalse(decoded.cookies[0].getSecure());
+        assertEquals("jolira.com", decoded.cookies[1].getDomain());
+        assertEquals("/jolira/test", decoded.cookies[1].getPath());
+        assertTrue(decoded.cookies[1].getSecure());
+        assertEquals(1000, decoded.freshness.fetched);
+        assertEquals("\"v1\"", decoded.freshness.etag);
+        assertNull(decoded.freshness.lastModified);
+        assertEquals("max-age=60", decoded.freshness.cacheControl);
+        assertEquals(0x1234567890L, decoded.version);
+        assertEquals(new File(file.getParentFile(), ".dmp.1234567890"), decoded.getBodyFile(file.getParentFile()));
+
+        final byte[] encoded = metadata.encode();
+
+        try {
+            CacheMetadata.decode(Arrays.copyOf(encoded, encoded.length - 3));
+            fail("truncated record decoded");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheRefresherTest {
+    private static Callable<Void> await(final CountDownLatch latch) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                latch.await(5, TimeUnit.SECONDS);
+
+                return null;
+            }
+        };
+    }
+
+    private static void awaitIdle(final CacheRefresher refresher) throws InterruptedException {
+        for (int idx = 0; idx < 500 && refresher.getPending() > 0; idx++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, refresher.getPending());
+    }
+
+    /**
+     * Test method for {@link CacheRefresher#isDue(String, long, long)}.
+     */
+    @Test
+    public void testIsDue() {
+        final CacheRefresher refresher = new CacheRefresher(1, 1);
+
+        refresher.setRefreshAhead(1000);
+        refresher.setHotThreshold(2);
+
+        assertFalse(refresher.isDue("/a", 10000, 5000)); // not about to expire
+        assertFalse(refresher.isDue("/a", 10000, 9500));
+        assertTrue(refresher.isDue("/a", 10000, 9600));
+        assertFalse(refresher.isDue("/b", 10000, 9700));
+
+        refresher.setRefreshAhead(0);
+
+        assertFalse(refresher.isDue("/a", 10000, 9800));
+    }
+
+    /**
+     * Test method for {@link CacheRefresher#schedule(String, long, Callable)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        final CacheRefresher refresher = new CacheRefresher(1, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        assertFalse(refresher.schedule("/a", 0, await(latch))); // not started
+
+        refresher.start();
+
+        try {
+            final long expired = System.currentTimeMillis() - 100;
+
+            assertTrue(refresher.schedule("/a", expired, await(latch)));
+            assertFalse(refresher.schedule("/a", expired, await(latch)));
+            assertTrue(refresher.schedule("/b", expired, await(latch)));
+            assertFalse(refresher.schedule("/c", expired, await(latch))); // the queue is full
+
+            assertEquals(1, refresher.getDuplicates());
+            assertEquals(1, refresher.getDropped());
+            assertEquals(2, refresher.getPending());
+
+            latch.countDown();
+            awaitIdle(refresher);
+
+            assertTrue(refresher.schedule("/a", expired, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    throw new IOException("backend down");
+                }
+            }));
+            awaitIdle(refresher);
+
+            assertEquals(3, refresher.getScheduled());
+            assertEquals(2, refresher.getRefreshes());
+            assertEquals(1, refresher.getFailures());
+            assertTrue(refresher.getMaxLag() >= 100);
+            assertTrue(refresher.getAverageLag() >= 100);
+        } finally {
+            refresher.stop();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheSweeperTest {
+    private static final long OLD = 1000000000000L;
+
+    private static File write(final File file, final long lastModified) throws IOException {
+        file.getParentFile().mkdirs();
+
+        final OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(new byte[10]);
+        } finally {
+            out.close();
+        }
+
+        file.setLastModified(lastModified);
+
+        return file;
+    }
+
+    /**
+     * Test method for {@link CacheSweeper#sweep()}.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSweep() throws Exception {
+        final File dir = File.createTempFile("jo-", "-sweep");
+
+        dir.delete();
+
+        final long now = System.currentTimeMillis();
+        final File entry = new File(dir, "list?q=1");
+        final CacheMetadata metadata = new CacheMetadata("/list?q=1", 200, "application/json", null, new Cookie[0],
+                10, 0, new CacheMetadata.Freshness(OLD, null, null, null), 0x2a);
+
+        entry.mkdirs();
+        metadata.write(new File(entry, CacheMetadata.FILE_NAME));
+
+        final File current = write(metadata.getBodyFile(entry), OLD);
+        final File superseded = write(CacheMetadata.getBodyFile(entry, 0x29), OLD);
+        final File recent = write(CacheMetadata.getBodyFile(entry, 0x2b), now); // about to be published
+        final File orphan = write(new File(dir, "crashed/" + CacheMetadata.BODY_FILE_NAME + ".1"), OLD);
+        final File legacy = write(new File(dir, "legacy/" + CacheMetadata.BODY_FILE_NAME), OLD);
+        final File properties = write(new File(dir, "legacy/.prp"), OLD);
+        final File tmp = write(new File(entry, ".fetch123.tmp"), OLD);
+        final File writing = write(new File(dir, ".fetch456.tmp"), now);
+        final File simple = write(new File(dir, "index.html"), OLD);
+        final CacheSweeper sweeper = new CacheSweeper(dir, 60000);
+
+        assertEquals(3, sweeper.sweep());
+        assertTrue(current.exists());
+        assertFalse(superseded.exists());
+        assertTrue(recent.exists());
+        assertFalse(orphan.exists());
+        assertTrue(legacy.exists());
+        assertTrue(properties.exists());
+        assertFalse(tmp.exists());
+        assertTrue(writing.exists());
+        assertTrue(simple.exists());
+        assertEquals(0, sweeper.sweep());
+    }
+}
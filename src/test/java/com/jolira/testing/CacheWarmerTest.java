@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class CacheWarmerTest {
+    /**
+     * Test method for {@link CacheWarmer#readTargets(java.io.File)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReadTargets() throws Exception {
+        final String list = "# targets\n" + "/search?q=1\n" + "\n" + "http://www.jolira.com/search?q=2\n"
+                + "http://www.jolira.com\n"
+                + "127.0.0.1 - - [10/Oct/2010:13:55:36 +0000] \"GET /search?q=3 HTTP/1.1\" 200 2326 \"-\" \"-\"\n"
+                + "127.0.0.1 - - [10/Oct/2010:13:55:37 +0000] \"GET /search?q=4 HTTP/1.1\" 500 12 \"-\" \"-\"\n"
+                + "127.0.0.1 - - [10/Oct/2010:13:55:38 +0000] \"POST /search HTTP/1.1\" 200 12 \"-\" \"-\"\n"
+                + "/search?q=1\n" + "garbage\n";
+        final List<String> targets = CacheWarmer.readTargets(new StringReader(list));
+
+        assertEquals(4, targets.size());
+        assertEquals("/search?q=1", targets.get(0));
+        assertEquals("/search?q=2", targets.get(1));
+        assertEquals("/", targets.get(2));
+        assertEquals("/search?q=3", targets.get(3));
+    }
+
+    /**
+     * Targets are requested with bounded parallelism and at a limited rate.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWarm() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator server = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                calls.incrementAndGet();
+
+                if ("/missing".equals(target)) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+
+                response.setContentType("text/plain");
+
+                final PrintWriter writer = response.getWriter();
+
+                writer.print("warm");
+                writer.close();
+            }
+        };
+
+        server.start();
+
+        try {
+            final List<String> targets = new ArrayList<String>();
+
+            for (int idx = 0; idx < 9; idx++) {
+                targets.add("/warm?q=" + idx);
+            }
+
+            targets.add("/missing");
+
+            final CacheWarmer warmer = new CacheWarmer(false, server.getName(), 2, 50);
+
+            warmer.warm(targets, null, 0);
+
+            assertEquals(10, calls.get());
+            assertEquals(10, warmer.getTotal());
+            assertEquals(10, warmer.getCompleted());
+            assertEquals(1, warmer.getFailures());
+            assertEquals(36, warmer.getBytes());
+            assertEquals("/missing: status 404", warmer.getFailed().get(0));
+            assertTrue(warmer.getElapsed() >= 170);
+            assertTrue(warmer.getThroughput() <= 60);
+        } finally {
+            server.stop();
+        }
+    }
+}
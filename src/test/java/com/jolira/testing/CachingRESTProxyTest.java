@@ -6,18 +6,40 @@
 package com.jolira.testing;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -47,6 +69,22 @@ public class CachingRESTProxyTest {
         return tmp;
     }
 
+    static String readLine(final String hostName, final int port, final String file) throws IOException {
+        final URL url = new URL("http", hostName, port, file);
+        final URLConnection connection = url.openConnection();
+
+        connection.setReadTimeout(5000);
+
+        final InputStream in = connection.getInputStream();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
     static void read(final String hostName, final int port, final String file) throws MalformedURLException,
             IOException {
         final URL url = new URL("http", hostName, port, file);
@@ -76,6 +114,33 @@ public class CachingRESTProxyTest {
         assertEquals("g=h", cookies.get(3));
     }
 
+    private static String post(final String hostName, final int port, final String file, final String body)
+            throws IOException {
+        final URL url = new URL("http", hostName, port, file);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setReadTimeout(5000);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+
+        final OutputStream out = connection.getOutputStream();
+
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * Start a fake backend server
      * 
@@ -125,65 +190,1163 @@ public class CachingRESTProxyTest {
         backend = null;
     }
 
+    private static void assertCoalesced(final boolean async) throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator slow = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                calls.incrementAndGet();
+
+                try {
+                    Thread.sleep(500);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+
+                respond(response, "/response.xml");
+            }
+        };
+
+        slow.start();
+
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, slow.getName(), getCacheDir());
+        final int count = 8;
+
+        proxy.setAsync(async);
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+            final Collection<Future<String>> results = new ArrayList<Future<String>>();
+
+            for (int idx = 0; idx < count; idx++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return readLine(hostName, port, "/slow?q=1");
+                    }
+                }));
+            }
+
+            for (final Future<String> result : results) {
+                assertEquals("<response>Hello World</response>", result.get());
+            }
+
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdown();
+            proxy.stop();
+            slow.stop();
+        }
+    }
+
     /**
-     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * Send concurrent requests for the same query and check the status each of them is answered with.
+     * 
+     * @return the time it took to answer all of them in milliseconds
+     */
+    private static long assertConcurrent(final CachingRESTProxy proxy, final String file, final int status)
+            throws Exception {
+        final int count = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        final Collection<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        final long started = System.currentTimeMillis();
+
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final URL url = new URL("http", proxy.getHostName(), proxy.getPort(), file);
+                        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+                        connection.setReadTimeout(10000);
+
+                        return Integer.valueOf(connection.getResponseCode());
+                    }
+                }));
+            }
+
+            for (final Future<Integer> result : results) {
+                assertEquals(status, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        return System.currentTimeMillis() - started;
+    }
+
+    private static void assertPassedThrough(final boolean async) throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator slow = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                calls.incrementAndGet();
+
+                try {
+                    Thread.sleep(500);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+        };
+
+        slow.start();
+
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, slow.getName(), getCacheDir());
+
+        proxy.setAsync(async);
+
+        try {
+            proxy.start();
+
+            // one after the other, the eight requests would take four seconds
+            final long elapsed = assertConcurrent(proxy, "/slow?q=1", HttpServletResponse.SC_NOT_FOUND);
+
+            assertTrue("took " + elapsed + "ms", elapsed < 2500);
+            assertEquals(8, calls.get());
+        } finally {
+            proxy.stop();
+            slow.stop();
+        }
+    }
+
+    private static void assertError(final String hostName, final int port, final String file, final int status)
+            throws IOException {
+        final URL url = new URL("http", hostName, port, file);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        connection.setReadTimeout(5000);
+
+        assertEquals(status, connection.getResponseCode());
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
+
+        try {
+            assertEquals(file + " failed", reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertNoTempFiles(final File dir) {
+        final File[] files = dir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+            assertNoTempFiles(file);
+        }
+    }
+
+    private static void assertRevalidated(final boolean async) throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger bodies = new AtomicInteger();
+        final AtomicInteger failing = new AtomicInteger();
+        final WebServerEmulator validating = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                calls.incrementAndGet();
+
+                if (failing.get() != 0) {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    return;
+                }
+
+                response.setHeader("ETag", "\"v1\"");
+                response.setHeader("Cache-Control", "max-age=0");
+
+                if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    response.flushBuffer();
+                    return;
+                }
+
+                bodies.incrementAndGet();
+                respond(response, "/response.xml");
+            }
+        };
+
+        validating.start();
+
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, validating.getName(), cacheDir);
+
+        proxy.setAsync(async);
+        proxy.setMemoryCache(new MemoryCache(1024 * 1024, false));
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+
+            for (int idx = 0; idx < 3; idx++) {
+                assertEquals("<response>Hello World</response>", readLine(hostName, port, "/validating?q=1"));
+            }
+
+            assertEquals(3, calls.get());
+            assertEquals(1, bodies.get());
+
+            failing.set(1);
+
+            assertEquals("<response>Hello World</response>", readLine(hostName, port, "/validating?q=1"));
+            assertEquals(4, calls.get());
+        } finally {
+            proxy.stop();
+            validating.stop();
+        }
+
+        assertNoTempFiles(cacheDir);
+    }
+
+    /**
+     * Misses are fetched without blocking server threads when the proxy runs asynchronously.
      * 
      * @throws Exception
      */
     @Test
-    public void testHelp() throws Exception {
-        final String[] args = new String[] { "-?" };
+    public void testAsync() throws Exception {
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), getCacheDir());
 
-        CachingRESTProxy.main(args);
+        proxy.setAsync(true);
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+
+            final URL url = new URL("http", hostName, port, "/missing.html");
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, connection.getResponseCode());
+        } finally {
+            proxy.stop();
+        }
+
+        assertCoalesced(true);
     }
 
     /**
-     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * Misses are answered with {@literal 502 Bad Gateway} when the backend cannot be reached, concurrent ones included.
      * 
      * @throws Exception
      */
     @Test
-    public void testMain() throws Exception {
+    public void testBackendDown() throws Exception {
+        final StaticWebContentServer stopped = new StaticWebContentServer();
+
+        stopped.start();
+
+        final String backendName = stopped.getName();
+
+        stopped.stop();
+
+        for (final boolean async : new boolean[] { false, true }) {
+            final CachingRESTProxy proxy = new CachingRESTProxy(false, backendName, getCacheDir());
+
+            proxy.setAsync(async);
+
+            try {
+                proxy.start();
+
+                final URL url = new URL("http", proxy.getHostName(), proxy.getPort(), "/index.html");
+                final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+                assertEquals(HttpServletResponse.SC_BAD_GATEWAY, connection.getResponseCode());
+                assertConcurrent(proxy, "/index.html", HttpServletResponse.SC_BAD_GATEWAY);
+            } finally {
+                proxy.stop();
+            }
+        }
+    }
+
+    /**
+     * Concurrent misses share the timeout of a backend that does not answer rather than waiting for it one after the
+     * other.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBackendTimeout() throws Exception {
+        final WebServerEmulator hanging = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                try {
+                    Thread.sleep(3000);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+            }
+        };
+
+        hanging.start();
+
+        try {
+            for (final boolean async : new boolean[] { false, true }) {
+                final CachingRESTProxy proxy = new CachingRESTProxy(false, hanging.getName(), getCacheDir());
+
+                proxy.setAsync(async);
+                proxy.getBackendClient().setTimeout(400);
+
+                try {
+                    proxy.start();
+
+                    // one after the other, the eight requests would take more than three seconds
+                    final long elapsed = assertConcurrent(proxy, "/index.html", HttpServletResponse.SC_GATEWAY_TIMEOUT);
+
+                    assertTrue("took " + elapsed + "ms", elapsed < 2000);
+                } finally {
+                    proxy.stop();
+                }
+            }
+        } finally {
+            hanging.stop();
+        }
+    }
+
+    /**
+     * Responses to POST requests are cached by the hash of their body.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCacheableMethod() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator rpc = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                final BufferedReader reader = request.getReader();
+                final String body = reader.readLine();
+
+                response.setContentType("application/json");
+
+                final PrintWriter writer = response.getWriter();
+
+                writer.println(request.getMethod() + ' ' + request.getContentType() + ' ' + body + ' '
+                        + calls.incrementAndGet());
+                writer.close();
+            }
+        };
+
+        rpc.start();
+
         final File cacheDir = getCacheDir();
-        final String[] args = new String[] { "--server", backend.getName(), "--cache=", cacheDir.getAbsolutePath() };
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, rpc.getName(), cacheDir);
 
-        CachingRESTProxy.main(args);
+        proxy.addCacheableMethod("POST", "/rpc/.*");
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+            final StringBuilder large = new StringBuilder();
+
+            while (large.length() <= RequestBody.MAX_BUFFERED) {
+                large.append("{\"q\":\"jolira\"}");
+            }
+
+            assertEquals("POST application/json {\"q\":1} 1", post(hostName, port, "/rpc/search", "{\"q\":1}"));
+            assertEquals("POST application/json {\"q\":1} 1", post(hostName, port, "/rpc/search", "{\"q\":1}"));
+            assertEquals("POST application/json {\"q\":2} 2", post(hostName, port, "/rpc/search", "{\"q\":2}"));
+            assertEquals("POST application/json " + large + " 3", post(hostName, port, "/rpc/search",
+                    large.toString()));
+            assertEquals("POST application/json " + large + " 3", post(hostName, port, "/rpc/search",
+                    large.toString()));
+            assertEquals(3, calls.get());
+
+            // a GET for a target that spells out the cache key of a POST must not replace its entry
+            final String hash = RequestBody.read("POST", new ByteArrayInputStream("{\"q\":2}".getBytes("UTF-8")))
+                    .getHash();
+
+            assertEquals("GET null null 4", readLine(hostName, port, "/rpc/search%23POST-" + hash));
+            assertEquals("POST application/json {\"q\":2} 2", post(hostName, port, "/rpc/search", "{\"q\":2}"));
+            assertEquals(4, calls.get());
+        } finally {
+            proxy.stop();
+            rpc.stop();
+        }
+
+        assertNoTempFiles(cacheDir);
     }
 
     /**
-     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * Concurrent misses for a response that is not cached are fetched in parallel rather than one after the other.
      * 
      * @throws Exception
      */
     @Test
-    public void testProxy() throws Exception {
+    public void testCoalescedPassThrough() throws Exception {
+        assertPassedThrough(false);
+        assertPassedThrough(true);
+    }
+
+    /**
+     * Concurrent misses for the same query must result in a single backend call.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        assertCoalesced(false);
+    }
+
+    /**
+     * Entries are stored compressed and only decompressed for clients that do not accept gzip.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCompression() throws Exception {
         final File cacheDir = getCacheDir();
-        final String backendName = backend.getName();
-        final CachingRESTProxy proxy1 = new CachingRESTProxy(false, backendName, cacheDir);
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy.setCompressed(true);
 
         try {
-            proxy1.start();
+            proxy.start();
 
-            final String hostName = proxy1.getHostName();
-            final int port = proxy1.getPort();
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
 
             read(hostName, port, "/index.html");
+
+            final CacheMetadata metadata = CacheMetadata.read(new File(cacheDir, "index.html/"
+                    + CacheMetadata.FILE_NAME));
+
+            assertEquals("gzip", metadata.contentEncoding);
+
+            final URL url = new URL("http", hostName, port, "/index.html");
+            final URLConnection connection = url.openConnection();
+
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+
+            final InputStream in = new GZIPInputStream(connection.getInputStream());
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+            try {
+                assertEquals("<html><head><title>Test!</title></head><body><h1>Test!</h1></body></html>",
+                        reader.readLine());
+            } finally {
+                reader.close();
+            }
+
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+            assertEquals(metadata.length, connection.getContentLength());
+
             read(hostName, port, "/index.html");
         } finally {
-            proxy1.stop();
+            proxy.stop();
         }
 
-        final CachingRESTProxy proxy2 = new CachingRESTProxy(false, null, cacheDir);
+        assertNoTempFiles(cacheDir);
+        assertTrue(CachingRESTProxy.accepts("deflate, gzip;q=0.5", "gzip"));
+        assertTrue(CachingRESTProxy.accepts("*", "gzip"));
+        assertFalse(CachingRESTProxy.accepts("gzip;q=0", "gzip"));
+        assertFalse(CachingRESTProxy.accepts("identity", "gzip"));
+    }
+
+    /**
+     * Requests that only differ in cache-busting parameters share an entry.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testKeyNormalizer() throws Exception {
+        final File rules = File.createTempFile("jo-", ".rules");
+        final PrintWriter writer = new PrintWriter(rules);
 
         try {
-            proxy2.start();
+            writer.println("[/.*]");
+            writer.println("drop = ts|_");
+        } finally {
+            writer.close();
+        }
 
-            final String hostName = proxy2.getHostName();
-            final int port = proxy2.getPort();
+        rules.deleteOnExit();
 
-            read(hostName, port, "/index.html");
-        } finally {
-            proxy2.stop();
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy.setKeyNormalizer(KeyNormalizer.load(rules));
+
+        try {
+            proxy.start();
+
+            read(proxy.getHostName(), proxy.getPort(), "/index.html?ts=1");
+            read(proxy.getHostName(), proxy.getPort(), "/index.html?ts=2&_=3");
+        } finally {
+            proxy.stop();
+        }
+
+        final String[] entries = cacheDir.list();
+
+        assertEquals(1, entries.length);
+        assertEquals("index.html", entries[0]);
+    }
+
+    /**
+     * Entries are stored under a hash of the query.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testHashedKeys() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy1 = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy1.setHashedKeys(true);
+
+        try {
+            proxy1.start();
+
+            read(proxy1.getHostName(), proxy1.getPort(), "/index.html");
+        } finally {
+            proxy1.stop();
+        }
+
+        final String hash = QueryHash.hash("/index.html");
+        final File entry = new File(cacheDir, hash.substring(0, 2) + '/' + hash.substring(2, 4) + '/' + hash);
+        final CacheMetadata metadata = CacheMetadata.read(new File(entry, CacheMetadata.FILE_NAME));
+
+        assertEquals("/index.html", metadata.query);
+        assertFalse(new File(cacheDir, "index.html").exists());
+
+        final CachingRESTProxy proxy2 = new CachingRESTProxy(false, null, cacheDir);
+
+        proxy2.setHashedKeys(true);
+
+        try {
+            proxy2.start();
+
+            read(proxy2.getHostName(), proxy2.getPort(), "/index.html");
+        } finally {
+            proxy2.stop();
+        }
+    }
+
+    /**
+     * The cache directory is kept within its quota.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDiskQuota() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy.setDiskQuota(0, 2, CacheEvictor.Policy.LRU);
+
+        try {
+            proxy.start();
+
+            for (final String name : new String[] { "/index.html", "/example", "/index.html?q=1" }) {
+                final URL url = new URL("http", proxy.getHostName(), proxy.getPort(), name);
+                final InputStream in = url.openStream();
+
+                in.close();
+            }
+
+            final CacheEvictor evictor = proxy.getEvictor();
+
+            for (int idx = 0; idx < 200 && evictor.getEvictions() == 0; idx++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(2, evictor.getEvictions());
+            assertEquals(1, evictor.getEntryCount());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testHelp() throws Exception {
+        final String[] args = new String[] { "-?" };
+
+        CachingRESTProxy.main(args);
+    }
+
+    /**
+     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMain() throws Exception {
+        final File cacheDir = getCacheDir();
+        final String[] args = new String[] { "--server", backend.getName(), "--cache=", cacheDir.getAbsolutePath() };
+
+        CachingRESTProxy.main(args);
+    }
+
+    /**
+     * Misses are answered from the index of the cache directory.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIndex() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy1 = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy1.setIndexed(true);
+
+        try {
+            proxy1.start();
+
+            read(proxy1.getHostName(), proxy1.getPort(), "/index.html");
+            read(proxy1.getHostName(), proxy1.getPort(), "/index.html");
+
+            assertEquals(1, proxy1.getIndex().getSize());
+        } finally {
+            proxy1.stop();
+        }
+
+        final CachingRESTProxy proxy2 = new CachingRESTProxy(false, null, cacheDir);
+
+        proxy2.setIndexed(true);
+
+        try {
+            proxy2.start();
+
+            assertEquals(1, proxy2.getIndex().getSize());
+
+            read(proxy2.getHostName(), proxy2.getPort(), "/index.html");
+
+            final URL url = new URL("http", proxy2.getHostName(), proxy2.getPort(), "/missing.html");
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, connection.getResponseCode());
+        } finally {
+            proxy2.stop();
+        }
+    }
+
+    /**
+     * Entries written by earlier versions are served and migrated to metadata records.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLegacyMetadata() throws Exception {
+        final File cacheDir = getCacheDir();
+        final File queryDir = new File(cacheDir, "index.html");
+        final Properties prps = new Properties();
+
+        queryDir.mkdirs();
+        prps.put("status", "200");
+        prps.put("Content-Type", "text/html");
+        prps.put("Set-Cookie.0", "g=h");
+        prps.put("Set-Cookie.1", "e=f;Path=/jolira/test;Domain=jolira.com;Secure");
+        prps.put("Set-Cookie.2", "c=d");
+        prps.put("Set-Cookie.3", "a=b");
+
+        final OutputStream out = new FileOutputStream(new File(queryDir, ".prp"));
+
+        try {
+            prps.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        final OutputStream dmp = new FileOutputStream(new File(queryDir, ".dmp"));
+
+        try {
+            dmp.write("<html><head><title>Test!</title></head><body><h1>Test!</h1></body></html>".getBytes());
+        } finally {
+            dmp.close();
+        }
+
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, null, cacheDir);
+
+        try {
+            proxy.start();
+
+            read(proxy.getHostName(), proxy.getPort(), "/index.html");
+
+            assertFalse(new File(queryDir, ".prp").exists());
+            assertTrue(new File(queryDir, CacheMetadata.FILE_NAME).exists());
+
+            read(proxy.getHostName(), proxy.getPort(), "/index.html");
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Hot entries are served from the in-memory tier.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMemoryCache() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+        final MemoryCache memory = new MemoryCache(1024 * 1024, true);
+
+        proxy.setMemoryCache(memory);
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+
+            // the first response is streamed from the backend, the second one is promoted from disk
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+
+            // hits in memory carry the validators of the body on disk
+            final URL url = new URL("http", hostName, port, "/index.html");
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+
+            final String etag = connection.getHeaderField("ETag");
+
+            assertNotNull(etag);
+            assertNotNull(connection.getHeaderField("Last-Modified"));
+            connection.getInputStream().close();
+
+            final HttpURLConnection conditional = (HttpURLConnection) url.openConnection();
+
+            conditional.setRequestProperty("If-None-Match", etag);
+            assertEquals(HttpServletResponse.SC_NOT_MODIFIED, conditional.getResponseCode());
+        } finally {
+            proxy.stop();
+        }
+
+        assertEquals(4, memory.getHits());
+        assertEquals(2, memory.getMisses());
+    }
+
+    /**
+     * Test method for {@link com.jolira.testing.CachingRESTProxy#main(java.lang.String[])}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testProxy() throws Exception {
+        final File cacheDir = getCacheDir();
+        final String backendName = backend.getName();
+        final CachingRESTProxy proxy1 = new CachingRESTProxy(false, backendName, cacheDir);
+
+        try {
+            proxy1.start();
+
+            final String hostName = proxy1.getHostName();
+            final int port = proxy1.getPort();
+
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+        } finally {
+            proxy1.stop();
+        }
+
+        final CachingRESTProxy proxy2 = new CachingRESTProxy(false, null, cacheDir);
+
+        try {
+            proxy2.start();
+
+            final String hostName = proxy2.getHostName();
+            final int port = proxy2.getPort();
+
+            read(hostName, port, "/index.html");
+        } finally {
+            proxy2.stop();
+        }
+    }
+
+    /**
+     * Client errors are cached for their time to live, server errors are passed on.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testNegativeCaching() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator failing = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                calls.incrementAndGet();
+                response.setStatus("/down".equals(target) ? HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                        : HttpServletResponse.SC_NOT_FOUND);
+                response.setContentType("text/plain");
+
+                final PrintWriter writer = response.getWriter();
+
+                writer.println(target + " failed");
+                writer.close();
+            }
+        };
+
+        failing.start();
+
+        try {
+            for (final boolean async : new boolean[] { false, true }) {
+                final CachingRESTProxy proxy = new CachingRESTProxy(false, failing.getName(), getCacheDir());
+
+                calls.set(0);
+                proxy.setAsync(async);
+                proxy.setErrorTtl(300, 0);
+
+                try {
+                    proxy.start();
+
+                    final String hostName = proxy.getHostName();
+                    final int port = proxy.getPort();
+
+                    for (int idx = 0; idx < 3; idx++) {
+                        assertError(hostName, port, "/missing", HttpServletResponse.SC_NOT_FOUND);
+                        assertError(hostName, port, "/down", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+
+                    assertEquals(4, calls.get());
+
+                    Thread.sleep(400);
+
+                    assertError(hostName, port, "/missing", HttpServletResponse.SC_NOT_FOUND);
+                    assertEquals(5, calls.get());
+                } finally {
+                    proxy.stop();
+                }
+            }
+        } finally {
+            failing.stop();
+        }
+    }
+
+    /**
+     * Hits, misses and latencies are counted and exposed as JSON and over JMX.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+
+        proxy.setStatsPath("/_stats");
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+
+            final String stats = readLine(hostName, port, "/_stats");
+            final ProxyMetrics metrics = proxy.getMetrics();
+            final ObjectName name = new ObjectName("com.jolira.testing:type=CachingRESTProxy,name="
+                    + ObjectName.quote(proxy.getName()));
+
+            assertTrue(stats, stats.startsWith("{\"requests\":2,\"hits\":1,\"memoryHits\":0,\"misses\":1,"));
+            assertTrue(stats, stats.contains("\"backendLatency\":{\"count\":1,"));
+            assertEquals(0.5, metrics.getHitRatio(), 0);
+            assertEquals(0, metrics.getErrors());
+            assertTrue(metrics.getBytesFromCache() > 0);
+            assertEquals(metrics.getBytesFromCache(), metrics.getBytesFromBackend());
+            assertEquals(Long.valueOf(1), mbeans.getAttribute(name, "Hits"));
+        } finally {
+            proxy.stop();
+        }
+
+        assertTrue(mbeans.queryNames(new ObjectName("com.jolira.testing:type=CachingRESTProxy,*"), null).isEmpty());
+    }
+
+    /**
+     * Expired entries are revalidated with conditional requests and served stale if the backend fails.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRevalidation() throws Exception {
+        assertRevalidated(false);
+        assertRevalidated(true);
+    }
+
+    /**
+     * Entries are stored in and served from a segment log.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSegmentLog() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy1 = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        proxy1.setSegmentLog(new SegmentLogStore(cacheDir));
+
+        try {
+            proxy1.start();
+
+            final String hostName = proxy1.getHostName();
+            final int port = proxy1.getPort();
+
+            read(hostName, port, "/index.html");
+            read(hostName, port, "/index.html");
+        } finally {
+            proxy1.stop();
+        }
+
+        final CachingRESTProxy proxy2 = new CachingRESTProxy(false, null, cacheDir);
+
+        proxy2.setSegmentLog(new SegmentLogStore(cacheDir));
+
+        try {
+            proxy2.start();
+
+            read(proxy2.getHostName(), proxy2.getPort(), "/index.html");
+        } finally {
+            proxy2.stop();
+        }
+
+        assertNoTempFiles(cacheDir);
+    }
+
+    /**
+     * Expired entries are served right away and refreshed in the background.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator slow = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                final int call = calls.incrementAndGet();
+
+                try {
+                    Thread.sleep(500);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+
+                response.setContentType("text/plain");
+                response.setHeader("Cache-Control", "max-age=0");
+                final PrintWriter writer = response.getWriter();
+
+                writer.println("version " + call);
+                writer.close();
+            }
+        };
+
+        slow.start();
+
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, slow.getName(), getCacheDir());
+        final CacheRefresher refresher = new CacheRefresher(2, 16);
+
+        proxy.setRefresher(refresher);
+
+        try {
+            proxy.start();
+
+            final String hostName = proxy.getHostName();
+            final int port = proxy.getPort();
+
+            assertEquals("version 1", readLine(hostName, port, "/slow?q=1"));
+
+            final long start = System.currentTimeMillis();
+
+            for (int idx = 0; idx < 4; idx++) {
+                assertEquals("version 1", readLine(hostName, port, "/slow?q=1"));
+            }
+
+            assertTrue(System.currentTimeMillis() - start < 500);
+
+            for (int idx = 0; idx < 200 && refresher.getRefreshes() == 0; idx++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, refresher.getRefreshes());
+            assertEquals(2, calls.get());
+            assertEquals("version 2", readLine(hostName, port, "/slow?q=1"));
+            assertTrue(refresher.getMaxLag() >= 500);
+        } finally {
+            proxy.stop();
+            slow.stop();
+        }
+    }
+
+    /**
+     * Misses are streamed to the client while they are being written to the cache.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        final WebServerEmulator trickle = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                response.setContentType("text/plain");
+
+                final PrintWriter writer = response.getWriter();
+
+                writer.println("first");
+                writer.flush();
+
+                try {
+                    Thread.sleep(2000);
+                } catch (final InterruptedException e) {
+                    throw new ServletException(e);
+                }
+
+                writer.println("second");
+                writer.close();
+            }
+        };
+
+        trickle.start();
+
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, trickle.getName(), cacheDir);
+
+        try {
+            proxy.start();
+
+            final URL url = new URL("http", proxy.getHostName(), proxy.getPort(), "/trickle?q=1");
+            final URLConnection connection = url.openConnection();
+            final long start = System.currentTimeMillis();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+
+            try {
+                assertEquals("first", reader.readLine());
+                assertTrue(System.currentTimeMillis() - start < 1500);
+                assertEquals("second", reader.readLine());
+                assertNull(reader.readLine());
+            } finally {
+                reader.close();
+            }
+
+            assertEquals("first", readLine(proxy.getHostName(), proxy.getPort(), "/trickle?q=1"));
+        } finally {
+            proxy.stop();
+            trickle.stop();
+        }
+
+        assertNoTempFiles(cacheDir);
+    }
+
+    /**
+     * Replaced bodies are written under a new version and the versions that were superseded are removed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testVersionedBodies() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServerEmulator changing = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                response.setContentType("text/plain");
+                response.setHeader("Cache-Control", "max-age=0");
+
+                final PrintWriter writer = response.getWriter();
+
+                writer.println("version " + calls.incrementAndGet());
+                writer.close();
+            }
+        };
+
+        changing.start();
+
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, changing.getName(), cacheDir);
+
+        try {
+            proxy.start();
+
+            for (int idx = 1; idx <= 4; idx++) {
+                assertEquals("version " + idx, readLine(proxy.getHostName(), proxy.getPort(), "/changing?q=1"));
+            }
+        } finally {
+            proxy.stop();
+            changing.stop();
+        }
+
+        final File entry = new File(cacheDir, "changing?q=1");
+        final CacheMetadata metadata = CacheMetadata.read(new File(entry, CacheMetadata.FILE_NAME));
+        final File body = metadata.getBodyFile(entry);
+        final List<String> bodies = new ArrayList<String>();
+
+        for (final String name : entry.list()) {
+            if (CacheMetadata.isBodyFile(name)) {
+                bodies.add(name);
+            }
+        }
+
+        assertTrue(body.getName(), bodies.contains(body.getName()));
+        assertEquals(bodies.toString(), 2, bodies.size()); // the current and the one it replaced
+        assertEquals(metadata.length, body.length());
+        assertNoTempFiles(cacheDir);
+    }
+
+    /**
+     * The cache is warmed up through the proxy.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        final File cacheDir = getCacheDir();
+        final CachingRESTProxy proxy = new CachingRESTProxy(false, backend.getName(), cacheDir);
+
+        try {
+            proxy.start();
+
+            final CacheWarmer warmer = proxy.createWarmer(2, 0);
+
+            warmer.warm(Arrays.asList("/index.html", "/missing.html"), null, 0);
+
+            assertEquals(2, warmer.getCompleted());
+            assertEquals(1, warmer.getFailures());
+        } finally {
+            proxy.stop();
+        }
+
+        final CachingRESTProxy offline = new CachingRESTProxy(false, null, cacheDir);
+
+        try {
+            offline.start();
+
+            read(offline.getHostName(), offline.getPort(), "/index.html");
+        } finally {
+            offline.stop();
         }
     }
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class KeyNormalizerTest {
+    private static final String RULES = "# test rules\n" + "[/search(/.*)?]\n"
+            + "path = lowercase, collapse-slashes, strip-trailing-slash\n" + "names = lowercase\n"
+            + "rename = query:q\n" + "drop = _|ts|utm_.*\n" + "lowercase = q\n" + "bucket = lat:0.01, offset:10\n"
+            + "\n" + "[/.*]\n" + "drop = requestId\n";
+
+    /**
+     * Test method for {@link KeyNormalizer#getRoute(String)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testNormalize() throws Exception {
+        final KeyNormalizer normalizer = KeyNormalizer.parse(new StringReader(RULES), "test");
+        final KeyNormalizer.Route search = normalizer.getRoute("/search//Books/");
+
+        assertEquals("/search/books", search.normalizePath("/search//Books/"));
+
+        final Map<String, String[]> params = new TreeMap<String, String[]>();
+
+        params.put("Query", new String[] { "Jolira" });
+        params.put("q", new String[] { "Tools" });
+        params.put("ts", new String[] { "1290000000" });
+        params.put("utm_source", new String[] { "mail" });
+        params.put("lat", new String[] { "40.7128", "x" });
+        params.put("offset", new String[] { "27" });
+
+        final Map<String, String[]> normalized = search.normalizeParameters(params);
+
+        assertEquals(3, normalized.size());
+        assertArrayEquals(new String[] { "jolira", "tools" }, normalized.get("q"));
+        assertArrayEquals(new String[] { "40.71", "x" }, normalized.get("lat"));
+        assertArrayEquals(new String[] { "20" }, normalized.get("offset"));
+
+        // values the bucket width cannot be applied to cheaply are left as they are
+        params.put("lat", new String[] { "1e999999999", "-.5", "12345678901234567890" });
+
+        assertArrayEquals(new String[] { "1e999999999", "-0.50", "12345678901234567890" }, search
+                .normalizeParameters(params).get("lat"));
+
+        final KeyNormalizer.Route other = normalizer.getRoute("/list");
+
+        params.put("requestId", new String[] { "4711" });
+
+        assertEquals("/List/", other.normalizePath("/List/"));
+        assertEquals(6, other.normalizeParameters(params).size());
+        assertNull(KeyNormalizer.parse(new StringReader("[/search]\n"), "test").getRoute("/list"));
+    }
+
+    /**
+     * Invalid rules are reported with their line number.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testInvalid() throws Exception {
+        final String[] invalid = { "drop = ts\n", "[/a]\nfoo = bar\n", "[/a]\nbucket = lat\n", "[/a]\nbucket = lat:0\n",
+                "[/a]\ndrop = (\n", "[/a]\npath = upside-down\n" };
+
+        for (final String rules : invalid) {
+            try {
+                KeyNormalizer.parse(new StringReader(rules), "test");
+                fail(rules);
+            } catch (final IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("test:"));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class LatencyHistogramTest {
+    /**
+     * Test method for {@link LatencyHistogram#record(long)}.
+     */
+    @Test
+    public void testRecord() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getPercentile(0.99));
+
+        for (int idx = 0; idx < 98; idx++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(80));
+        }
+
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(40));
+
+        final long[] counts = histogram.getCounts();
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(98, counts[0]);
+        assertEquals(1, counts[5]);
+        assertEquals(1, counts[LatencyHistogram.BOUNDS.length]);
+        assertEquals(100, histogram.getPercentile(0.5));
+        assertEquals(5000, histogram.getPercentile(0.99));
+        assertEquals(40000000, histogram.getPercentile(1));
+        assertEquals(40000000, histogram.getMax());
+        assertEquals((98 * 80 + 3000 + 40000000) / 100, histogram.getMean());
+
+        final StringBuilder json = new StringBuilder();
+
+        histogram.appendJson(json);
+
+        assertTrue(json.toString(), json.toString().startsWith("{\"count\":100,"));
+        assertTrue(json.toString(), json.toString().endsWith("\"+Inf\":1}}"));
+    }
+}
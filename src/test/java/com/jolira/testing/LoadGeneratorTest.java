@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class LoadGeneratorTest {
+    /**
+     * Test method for {@link ZipfDistribution#next(Random)}.
+     */
+    @Test
+    public void testZipf() {
+        final ZipfDistribution zipf = new ZipfDistribution(100, 1);
+        final Random random = new Random(4711);
+        final int[] counts = new int[zipf.getKeys()];
+
+        for (int idx = 0; idx < 100000; idx++) {
+            counts[zipf.next(random)]++;
+        }
+
+        // with an exponent of 1, key 0 is drawn twice as often as key 1 and ten times as often as key 9
+        assertTrue(counts[0] > 1.8 * counts[1] && counts[0] < 2.2 * counts[1]);
+        assertTrue(counts[0] > 8 * counts[9] && counts[0] < 12 * counts[9]);
+
+        final ZipfDistribution uniform = new ZipfDistribution(1, 0);
+
+        assertEquals(0, uniform.next(random));
+    }
+
+    /**
+     * A proxy is driven with an open-loop load; repeated keys never reach the backend.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRun() throws Exception {
+        final ProxyLoadHarness harness = new ProxyLoadHarness(256, 0);
+
+        harness.start();
+
+        try {
+            final LoadGenerator generator = harness.createGenerator(200, 2);
+
+            generator.setKeys(10, 1);
+            generator.setMissRatio(0.1);
+            generator.run(500, null, 0);
+
+            final long sent = generator.getSent();
+            final ProxyMetrics metrics = harness.getProxy().getMetrics();
+
+            assertTrue(Long.toString(sent), sent >= 95 && sent <= 100);
+            assertEquals(sent, generator.getCompleted());
+            assertEquals(0, generator.getFailures());
+            assertEquals(sent * 256, generator.getBytes());
+            assertEquals(sent, metrics.getRequests());
+            assertEquals(metrics.getMisses(), harness.getBackendRequests());
+            assertTrue(harness.getBackendRequests() < sent);
+            assertTrue(generator.getLatencyPercentile(0.5) > 0);
+        } finally {
+            harness.stop();
+        }
+    }
+}
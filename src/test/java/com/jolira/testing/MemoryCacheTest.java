@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ */
+public class MemoryCacheTest {
+    private static MemoryCache.Entry put(final MemoryCache cache, final String key, final int length) {
+        final MemoryCache.Entry entry = cache.reserve(key, 200, "text/plain", null, null, length, Long.MAX_VALUE, 0);
+
+        if (entry == null) {
+            return null;
+        }
+
+        while (entry.body.hasRemaining()) {
+            entry.body.put((byte) key.charAt(1));
+        }
+
+        cache.release(cache.publish(entry));
+
+        return entry;
+    }
+
+    /**
+     * Frequently used entries are not displaced by one-hit wonders.
+     */
+    @Test
+    public void testAdmission() {
+        final MemoryCache cache = new MemoryCache(400, false);
+
+        assertNotNull(put(cache, "/hot1", 100));
+        assertNotNull(put(cache, "/hot2", 100));
+        assertNotNull(put(cache, "/hot3", 100));
+        assertNotNull(put(cache, "/hot4", 100));
+
+        for (int idx = 0; idx < 5; idx++) {
+            assertNotNull(cache.get("/hot1"));
+            assertNotNull(cache.get("/hot2"));
+            assertNotNull(cache.get("/hot3"));
+            assertNotNull(cache.get("/hot4"));
+        }
+
+        assertNull(cache.get("/cold"));
+        assertFalse(cache.admits("/cold", 100));
+        assertNull(put(cache, "/cold", 100));
+        assertEquals(1, cache.getRejections());
+        assertEquals(0, cache.getEvictions());
+
+        for (int idx = 0; idx < 10; idx++) {
+            cache.get("/warm");
+        }
+
+        assertTrue(cache.admits("/warm", 100));
+        assertNotNull(put(cache, "/warm", 100));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(400, cache.getSize());
+    }
+
+    /**
+     * Test method for {@link MemoryCache#get(String)}.
+     */
+    @Test
+    public void testGet() {
+        final MemoryCache cache = new MemoryCache(1024, true);
+
+        assertNull(cache.get("/a"));
+
+        final MemoryCache.Entry entry = put(cache, "/a", 10);
+
+        assertTrue(entry.getBody().isDirect());
+        assertEquals(10, entry.getBody().remaining());
+        assertEquals(entry, cache.get("/a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(10, cache.getSize());
+        assertFalse(cache.admits("/big", 512));
+
+        cache.remove("/a");
+
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Bodies are carved out of the slab and their blocks are only reused once the last reader released them.
+     */
+    @Test
+    public void testSlab() {
+        final MemoryCache cache = new MemoryCache(4096, true);
+
+        put(cache, "/a", 1000);
+
+        final MemoryCache.Entry sending = cache.get("/a");
+
+        cache.remove("/a");
+
+        assertNull(cache.get("/a"));
+        assertEquals(0, cache.getSize());
+        assertNotNull(put(cache, "/b", 1000));
+        assertNotNull(put(cache, "/c", 1000));
+        assertNotNull(put(cache, "/d", 1000));
+
+        cache.get("/e");
+        cache.get("/e");
+
+        assertNotNull(put(cache, "/e", 1000)); // the block of /a is still taken, so /b has to go
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("/b"));
+
+        final ByteBuffer body = sending.getBody();
+
+        while (body.hasRemaining()) {
+            assertEquals('a', body.get());
+        }
+
+        cache.release(sending);
+
+        assertNotNull(put(cache, "/f", 1000));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4000, cache.getSize());
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class QueryHashTest {
+    /**
+     * Test method for {@link QueryHash#hash(CharSequence)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testHash() throws Exception {
+        final String hash = QueryHash.hash("/search?q=jolira");
+
+        assertEquals(32, hash.length());
+        assertTrue(hash.matches("[0-9a-f]{32}"));
+        assertEquals(hash, QueryHash.hash(new StringBuilder("/search?q=jolira")));
+        assertFalse(hash.equals(QueryHash.hash("/search?q=joliRa")));
+
+        final Set<String> hashes = new HashSet<String>();
+        final Set<String> prefixes = new HashSet<String>();
+
+        for (int idx = 0; idx < 4096; idx++) {
+            final String _hash = QueryHash.hash("/search?q=" + idx);
+
+            hashes.add(_hash);
+            prefixes.add(_hash.substring(0, 2));
+        }
+
+        assertEquals(4096, hashes.size());
+        assertEquals(256, prefixes.size());
+
+        for (int length = 0; length < 20; length++) {
+            final StringBuilder query = new StringBuilder();
+
+            for (int idx = 0; idx < length; idx++) {
+                query.append('a');
+            }
+
+            hashes.add(QueryHash.hash(query));
+        }
+
+        assertEquals(4096 + 20, hashes.size());
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class RequestBodyTest {
+    private static byte[] getBytes(final int length) {
+        final byte[] bytes = new byte[length];
+
+        for (int idx = 0; idx < length; idx++) {
+            bytes[idx] = (byte) idx;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Test method for {@link RequestBody#read(String, InputStream)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRead() throws Exception {
+        final RequestBody empty = RequestBody.read("POST", new ByteArrayInputStream(new byte[0]));
+
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", empty.getHash());
+        assertEquals(0, empty.getLength());
+
+        final byte[] bytes = getBytes(100);
+        final RequestBody small = RequestBody.read("POST", new ByteArrayInputStream(bytes));
+
+        assertEquals("POST", small.getMethod());
+        assertEquals(100, small.getLength());
+        assertNotNull(small.getContent());
+        assertEquals(small.getHash(), RequestBody.read("PUT", new ByteArrayInputStream(bytes)).getHash());
+        assertFalse(small.getHash().equals(empty.getHash()));
+    }
+
+    /**
+     * Large bodies are spooled to a file rather than buffered.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSpooled() throws Exception {
+        final byte[] bytes = getBytes(RequestBody.MAX_BUFFERED + 1000);
+        final RequestBody body = RequestBody.read("POST", new ByteArrayInputStream(bytes));
+
+        assertNull(body.getContent());
+        assertEquals(bytes.length, body.getLength());
+
+        for (int pass = 0; pass < 2; pass++) {
+            final InputStream in = body.open();
+
+            for (final byte b : bytes) {
+                assertEquals(b & 0xff, in.read());
+            }
+
+            assertEquals(-1, in.read());
+        }
+
+        body.discard();
+        body.discard();
+
+        try {
+            body.open();
+            fail();
+        } catch (final FileNotFoundException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ */
+public class RequestCoalescerTest {
+    /**
+     * Test method for {@link RequestCoalescer#lead(String)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLeadAndFollow() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Flight flight = coalescer.lead("/a");
+
+        assertNotNull(flight);
+        assertNull(coalescer.lead("/a"));
+        assertNotNull(coalescer.lead("/b"));
+        assertEquals(2, coalescer.size());
+        assertFalse(coalescer.await("/a", 10));
+
+        coalescer.land("/a", flight);
+
+        assertTrue(flight.isLanded());
+        assertTrue(coalescer.await("/a", 10));
+        assertNotNull(coalescer.lead("/a"));
+    }
+
+    /**
+     * Followers learn why a flight produced no result.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testOutcome() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Flight failed = coalescer.lead("/a");
+        final RequestCoalescer.Flight passedThrough = coalescer.lead("/b");
+
+        assertSame(failed, coalescer.get("/a"));
+        failed.fail(502);
+        passedThrough.passThrough();
+        coalescer.land("/a", failed);
+        coalescer.land("/b", passedThrough);
+        coalescer.land("/b", passedThrough);
+
+        assertNull(coalescer.get("/a"));
+        assertEquals(502, failed.getFailure());
+        assertFalse(failed.isPassedThrough());
+        assertEquals(0, passedThrough.getFailure());
+        assertTrue(passedThrough.isPassedThrough());
+        assertEquals(0, coalescer.size());
+    }
+
+    /**
+     * Followers are released when the leader lands.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRelease() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Flight flight = coalescer.lead("/a");
+        final Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    // ignore
+                }
+
+                coalescer.land("/a", flight);
+            }
+        };
+
+        leader.start();
+
+        assertTrue(coalescer.await("/a", 5000));
+
+        leader.join();
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class SegmentLogStoreTest {
+    private static File createDir() throws IOException {
+        final File dir = File.createTempFile("jo-", "-log");
+
+        dir.delete();
+
+        return dir;
+    }
+
+    private static String read(final SegmentLogStore.Entry entry) {
+        final ByteBuffer body = entry.getBody();
+        final byte[] bytes = new byte[body.remaining()];
+
+        body.get(bytes);
+
+        return new String(bytes);
+    }
+
+    private static File write(final File file, final String content) throws IOException {
+        file.getParentFile().mkdirs();
+
+        final OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content.getBytes());
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    private static File write(final String content) throws IOException {
+        final File file = File.createTempFile("jo-", "-body");
+
+        file.deleteOnExit();
+
+        return write(file, content);
+    }
+
+    /**
+     * Test method for {@link SegmentLogStore#compact()}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCompact() throws Exception {
+        final File dir = createDir();
+        final SegmentLogStore store = new SegmentLogStore(dir);
+
+        store.setCompactionInterval(0);
+        store.setMaxSegmentSize(1024);
+        store.open();
+
+        try {
+            for (int round = 0; round < 10; round++) {
+                for (int idx = 0; idx < 10; idx++) {
+                    store.put("/key" + idx, 200, "text/plain", null, write("value " + idx + " round " + round));
+                }
+            }
+
+            store.remove("/key0");
+
+            final int before = store.getSegmentCount();
+
+            assertTrue(store.compact() > 0);
+            assertTrue(store.getSegmentCount() < before);
+            assertEquals(9, store.getSize());
+
+            for (int idx = 1; idx < 10; idx++) {
+                assertEquals("value " + idx + " round 9", read(store.get("/key" + idx)));
+            }
+        } finally {
+            store.close();
+        }
+
+        final SegmentLogStore reopened = new SegmentLogStore(dir);
+
+        reopened.setCompactionInterval(0);
+        reopened.open();
+
+        try {
+            assertEquals(9, reopened.getSize());
+            assertNull(reopened.get("/key0"));
+            assertEquals("value 5 round 9", read(reopened.get("/key5")));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Test method for {@link SegmentLogStore#importTree(File)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testImportTree() throws Exception {
+        final File tree = createDir();
+        final Properties prps = new Properties();
+
+        write(new File(tree, "index.html"), "<html/>");
+        write(new File(tree, "api/list?q=1/.dmp"), "{}");
+        prps.put("status", "201");
+        prps.put("Content-Type", "application/json");
+        prps.put("Set-Cookie.0", "a=b");
+        prps.put("Set-Cookie.1", "c=d");
+
+        final OutputStream out = new FileOutputStream(new File(tree, "api/list?q=1/.prp"));
+
+        try {
+            prps.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        final SegmentLogStore store = new SegmentLogStore(createDir());
+
+        store.setCompactionInterval(0);
+        store.open();
+
+        try {
+            assertEquals(2, store.importTree(tree));
+
+            final SegmentLogStore.Entry simple = store.get("/index.html");
+
+            assertEquals(200, simple.getStatus());
+            assertEquals("text/html", simple.getContentType());
+            assertEquals("<html/>", read(simple));
+
+            final SegmentLogStore.Entry full = store.get("/api/list?q=1");
+
+            assertEquals(201, full.getStatus());
+            assertEquals("application/json", full.getContentType());
+            assertEquals(2, full.getCookies().length);
+            assertEquals("a", full.getCookies()[0].getName());
+            assertEquals("d", full.getCookies()[1].getValue());
+            assertEquals("{}", read(full));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Reads that follow writes are served from the active segment, and from the sealed segments once they rolled
+     * over.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testInterleaved() throws Exception {
+        final SegmentLogStore store = new SegmentLogStore(createDir());
+
+        store.setCompactionInterval(0);
+        store.setMaxSegmentSize(4096);
+        store.open();
+
+        try {
+            for (int idx = 0; idx < 200; idx++) {
+                store.put("/key" + idx, 200, "text/plain", null, write("value " + idx));
+
+                assertEquals("value " + idx, read(store.get("/key" + idx)));
+                assertEquals("value " + idx / 2, read(store.get("/key" + idx / 2)));
+            }
+
+            assertTrue(store.getSegmentCount() > 1);
+
+            for (int idx = 0; idx < 200; idx++) {
+                assertEquals("value " + idx, read(store.get("/key" + idx)));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test method for {@link SegmentLogStore#put(String, int, String, String[], File)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPut() throws Exception {
+        final File dir = createDir();
+        final SegmentLogStore store = new SegmentLogStore(dir);
+
+        store.setCompactionInterval(0);
+        store.open();
+
+        final long total;
+
+        try {
+            store.put("/a", 200, "text/plain", new String[] { "x=y" }, write("first"));
+            store.put("/b", 404, null, null, write(""));
+            store.put("/a", 200, "text/plain", null, write("second"));
+
+            assertEquals(2, store.getSize());
+            assertEquals("second", read(store.get("/a")));
+            assertEquals(0, store.get("/a").getCookies().length);
+            assertNull(store.get("/b").getContentType());
+            assertNull(store.get("/c"));
+
+            total = store.getTotalBytes();
+        } finally {
+            store.close();
+        }
+
+        // closing the store cuts the active segment back to the records it holds
+        final File segment = dir.listFiles()[0];
+
+        assertEquals(total, segment.length());
+
+        // simulate a crash in the middle of an append
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[] { 0x4a, 0x4c, 0x53, 0x31, 1, 0, 0 });
+        } finally {
+            raf.close();
+        }
+
+        final SegmentLogStore reopened = new SegmentLogStore(dir);
+
+        reopened.setCompactionInterval(0);
+        reopened.open();
+
+        try {
+            assertEquals("second", read(reopened.get("/a")));
+            assertEquals(404, reopened.get("/b").getStatus());
+
+            reopened.put("/c", 200, "text/plain", null, write("third"));
+
+            assertEquals("third", read(reopened.get("/c")));
+
+            final CacheMetadata.Freshness freshness = new CacheMetadata.Freshness(1000, "\"v2\"", null, null);
+
+            assertTrue(reopened.replaceMetadata("/c", reopened.get("/c").getMetadata().refresh(freshness)));
+            assertEquals("third", read(reopened.get("/c")));
+            assertEquals("\"v2\"", reopened.get("/c").getMetadata().freshness.etag);
+            assertFalse(reopened.replaceMetadata("/d", reopened.get("/c").getMetadata()));
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2010 jolira. All rights reserved. This program and the accompanying materials are made available under
+ * the terms of the GNU Public License 2.0 which is available at http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ */
+
+package com.jolira.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author jfk
+ * @since 1.3
+ */
+public class SlabTest {
+    /**
+     * Test method for {@link Slab#allocate(int)} and {@link Slab#free(Slab.Block)}.
+     */
+    @Test
+    public void testAllocate() {
+        final Slab slab = new Slab(4096);
+        final Slab.Block small = slab.allocate(10);
+        final Slab.Block medium = slab.allocate(1000);
+        final Slab.Block large = slab.allocate(2048);
+
+        assertEquals(0, small.offset);
+        assertEquals(Slab.MIN_BLOCK_SIZE, small.getSize());
+        assertEquals(10, small.buffer.capacity());
+        assertTrue(small.buffer.isDirect());
+        assertEquals(1024, medium.offset);
+        assertEquals(2048, large.offset);
+        assertEquals(768, slab.getAvailable());
+        assertNull(slab.allocate(1024));
+
+        slab.free(medium);
+
+        final Slab.Block reused = slab.allocate(1024);
+
+        assertNotNull(reused);
+        assertEquals(1024, reused.offset);
+
+        slab.free(reused);
+        slab.free(large);
+        slab.free(small);
+
+        assertEquals(4096, slab.getAvailable());
+        assertEquals(0, slab.allocate(4096).offset); // the buddies were merged again
+    }
+}
@@ -9,21 +9,28 @@
 
 package com.jolira.testing;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Arrays;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.eclipse.jetty.server.Server;
 import org.junit.Test;
@@ -34,6 +41,38 @@ import org.junit.Test;
 public class WebServerEmulatorTest {
     private static final String TEST_TARGET = "/test";
 
+    private static byte[] read(final String name, final String target, final int expectedLength) throws IOException {
+        final URL url = new URL("http://" + name + target);
+        final URLConnection conn = url.openConnection();
+
+        conn.setReadTimeout(5000);
+
+        assertEquals(expectedLength, conn.getContentLength());
+
+        final InputStream in = conn.getInputStream();
+        final byte[] result = new byte[expectedLength];
+
+        try {
+            int pos = 0;
+
+            while (pos < expectedLength) {
+                final int read = in.read(result, pos, expectedLength - pos);
+
+                if (read == -1) {
+                    break;
+                }
+
+                pos += read;
+            }
+
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+
+        return result;
+    }
+
     /**
      * Test method for {@link WebServerEmulator#createServer(int)}.
      * 
@@ -177,6 +216,151 @@ public class WebServerEmulatorTest {
         }
     }
 
+    /**
+     * Test method for {@link WebServerEmulator#respond(String, HttpServletResponse, String)} answering conditional
+     * requests.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConditional() throws Exception {
+        final WebServerEmulator svr = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                respond(response, "/response.xml");
+            }
+        };
+
+        svr.start();
+
+        try {
+            final URL url = new URL("http://" + svr.getName() + TEST_TARGET);
+            final HttpURLConnection conn1 = (HttpURLConnection) url.openConnection();
+
+            assertEquals(200, conn1.getResponseCode());
+            assertTrue(conn1.getContentLength() > 0);
+
+            final String etag = conn1.getHeaderField("ETag");
+            final String lastModified = conn1.getHeaderField("Last-Modified");
+
+            assertNotNull(etag);
+            assertNotNull(lastModified);
+            conn1.getInputStream().close();
+
+            final HttpURLConnection conn2 = (HttpURLConnection) url.openConnection();
+
+            conn2.setRequestProperty("If-None-Match", "\"other\", " + etag);
+
+            assertEquals(304, conn2.getResponseCode());
+
+            final HttpURLConnection conn3 = (HttpURLConnection) url.openConnection();
+
+            conn3.setRequestProperty("If-Modified-Since", lastModified);
+
+            assertEquals(304, conn3.getResponseCode());
+
+            final HttpURLConnection conn4 = (HttpURLConnection) url.openConnection();
+
+            conn4.setRequestProperty("If-None-Match", "\"other\"");
+            conn4.setRequestProperty("If-Modified-Since", lastModified);
+
+            assertEquals(200, conn4.getResponseCode());
+            assertEquals(etag, conn4.getHeaderField("ETag"));
+            conn4.getInputStream().close();
+        } finally {
+            svr.stop();
+        }
+    }
+
+    /**
+     * Test method for {@link WebServerEmulator#respond(String, HttpServletRequest, HttpServletResponse, String)}
+     * answering conditional requests through a wrapped response.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConditionalWrapped() throws Exception {
+        final WebServerEmulator svr = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                respond("text/xml", request, new HttpServletResponseWrapper(response), "/response.xml");
+            }
+        };
+
+        svr.start();
+
+        try {
+            final URL url = new URL("http://" + svr.getName() + TEST_TARGET);
+            final HttpURLConnection conn1 = (HttpURLConnection) url.openConnection();
+
+            assertEquals(200, conn1.getResponseCode());
+
+            final String etag = conn1.getHeaderField("ETag");
+
+            assertNotNull(etag);
+            assertTrue(etag, etag.startsWith("W/\""));
+            conn1.getInputStream().close();
+
+            final HttpURLConnection conn2 = (HttpURLConnection) url.openConnection();
+
+            conn2.setRequestProperty("If-None-Match", etag.substring(2));
+
+            assertEquals(304, conn2.getResponseCode());
+        } finally {
+            svr.stop();
+        }
+    }
+
+    /**
+     * Test method for {@link WebServerEmulator#respond(String, HttpServletResponse, File)}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRespondFile() throws Exception {
+        final File small = File.createTempFile("jo-", "-lira");
+        final File large = File.createTempFile("jo-", "-lira");
+        final byte[] content = new byte[1024 * 1024];
+
+        for (int idx = 0; idx < content.length; idx++) {
+            content[idx] = (byte) idx;
+        }
+
+        final FileOutputStream out1 = new FileOutputStream(small);
+        final FileOutputStream out2 = new FileOutputStream(large);
+
+        try {
+            out1.write(content, 0, 1000);
+            out2.write(content);
+        } finally {
+            out1.close();
+            out2.close();
+        }
+
+        final WebServerEmulator svr = new WebServerEmulator() {
+            @Override
+            protected void handle(final String target, final HttpServletRequest request,
+                    final HttpServletResponse response) throws IOException, ServletException {
+                respond("application/octet-stream", response, "/small".equals(target) ? small : large);
+            }
+        };
+
+        svr.start();
+
+        try {
+            for (int run = 0; run < 2; run++) {
+                assertArrayEquals(Arrays.copyOf(content, 1000), read(svr.getName(), "/small", 1000));
+                assertArrayEquals(content, read(svr.getName(), "/large", content.length));
+            }
+        } finally {
+            svr.stop();
+            small.delete();
+            large.delete();
+        }
+    }
+
     /**
      * Test method for {@link WebServerEmulator#createServer(int)}.
      * 